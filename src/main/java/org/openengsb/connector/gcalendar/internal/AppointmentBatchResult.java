@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import org.openengsb.domain.appointment.Appointment;
+
+/**
+ * outcome of a single appointment within a batch operation
+ */
+public class AppointmentBatchResult {
+
+    private final Appointment appointment;
+    private final boolean success;
+    private final int statusCode;
+    private final String reason;
+
+    public AppointmentBatchResult(Appointment appointment, boolean success, int statusCode, String reason) {
+        this.appointment = appointment;
+        this.success = success;
+        this.statusCode = statusCode;
+        this.reason = reason;
+    }
+
+    public static AppointmentBatchResult failed(Appointment appointment, String reason) {
+        return new AppointmentBatchResult(appointment, false, -1, reason);
+    }
+
+    public Appointment getAppointment() {
+        return appointment;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * the http status google returned for this item, -1 if the item never reached the server
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s (%d %s)", appointment.getId(), success ? "success" : "failed", statusCode, reason);
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentConverter;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.data.calendar.CalendarEventEntry;
+
+/**
+ * bounded least-recently-used cache of calendar entries keyed by appointment id. Cached entries carry their ETag, so
+ * they can be revalidated with a conditional request instead of being downloaded again.
+ *
+ * Writers take an entry out of the cache and modify it, so readers never see the entry itself. They get the appointment
+ * it was converted to when it was cached.
+ */
+public class AppointmentEntryCache {
+
+    static final int DEFAULT_CAPACITY = 1000;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * a cached entry as readers see it
+     */
+    public static final class Cached {
+        private final CalendarEventEntry entry;
+        private final Appointment appointment;
+
+        private Cached(CalendarEventEntry entry) {
+            this.entry = entry;
+            appointment = AppointmentConverter.convertCalendarEventEntryToAppointment(entry);
+        }
+
+        public String getEtag() {
+            return entry.getEtag();
+        }
+
+        /**
+         * a copy of the appointment of the entry, which the caller may modify
+         */
+        public Appointment getAppointment() {
+            return AppointmentConverter.copyAppointment(appointment);
+        }
+    }
+
+    private volatile int capacity;
+    private final Map<String, Cached> entries;
+
+    public AppointmentEntryCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AppointmentEntryCache(int capacity) {
+        this.capacity = capacity;
+        entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > AppointmentEntryCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * returns the cached entry for reading, or null if there is none
+     */
+    public Cached get(String id) {
+        synchronized (entries) {
+            return entries.get(id);
+        }
+    }
+
+    /**
+     * removes and returns the cached entry. Used by callers that are going to modify the entry, so no other thread can
+     * see the modification before it was accepted by google.
+     */
+    public CalendarEventEntry take(String id) {
+        Cached cached;
+        synchronized (entries) {
+            cached = entries.remove(id);
+        }
+        return cached == null ? null : cached.entry;
+    }
+
+    /**
+     * caches the entry, which must not be modified from now on unless it was taken out of the cache again
+     */
+    public void put(String id, CalendarEventEntry entry) {
+        if (capacity <= 0 || entry.getEtag() == null) {
+            return;
+        }
+        // converted before the entry is published, no writer can have taken it yet
+        Cached cached = new Cached(entry);
+        synchronized (entries) {
+            entries.put(id, cached);
+        }
+    }
+
+    public void invalidate(String id) {
+        synchronized (entries) {
+            entries.remove(id);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * the cached entry was still up to date, google answered with 304
+     */
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * the cached entry was outdated and has been replaced by the version google sent
+     */
+    void recordRevalidation() {
+        revalidations.incrementAndGet();
+    }
+
+    /**
+     * there was no cached entry, a full request was necessary
+     */
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        if (capacity <= 0) {
+            clear();
+        }
+    }
+}
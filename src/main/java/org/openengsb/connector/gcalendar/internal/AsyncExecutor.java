@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openengsb.core.api.DomainMethodExecutionException;
+
+/**
+ * runs the asynchronous operations of one connector instance on a bounded number of threads. The number of operations
+ * in flight is limited as well, a caller that submits beyond that limit blocks until an earlier operation finished or
+ * was cancelled, and is rejected if that takes longer than the submit timeout. Idle threads time out, so an unused
+ * instance does not keep any threads alive.
+ */
+public class AsyncExecutor {
+
+    static final int DEFAULT_THREADS = 4;
+    static final int DEFAULT_MAX_PENDING = 100;
+    static final long DEFAULT_SUBMIT_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor executor;
+    private volatile Semaphore permits;
+    private volatile int maxPending;
+    private volatile long submitTimeout = DEFAULT_SUBMIT_TIMEOUT;
+
+    public AsyncExecutor(final String name) {
+        executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name + "-async-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        setMaxPending(DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * schedules the task, blocking while the maximum number of operations is in flight, at most for the submit timeout
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        final Semaphore current = permits;
+        try {
+            if (!current.tryAcquire(submitTimeout, TimeUnit.MILLISECONDS)) {
+                throw new DomainMethodExecutionException("no free slot for the operation",
+                    new RejectedExecutionException(maxPending + " operations are pending already"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DomainMethodExecutionException("interrupted while waiting for a free slot", e);
+        }
+        // done also runs for operations cancelled before they started, they free their slot as well
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                current.release();
+            }
+        };
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            current.release();
+            throw new DomainMethodExecutionException("the connector does not accept operations anymore", e);
+        }
+        return future;
+    }
+
+    public void setThreads(int threads) {
+        int size = Math.max(1, threads);
+        if (size >= executor.getCorePoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    public int getThreads() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * sets the number of operations that may be in flight at the same time. Operations already in flight keep using
+     * the previous limit.
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = Math.max(1, maxPending);
+        permits = new Semaphore(this.maxPending);
+    }
+
+    /**
+     * sets how long a caller waits for a free slot before the operation is rejected, in milliseconds
+     */
+    public void setSubmitTimeout(long submitTimeout) {
+        this.submitTimeout = Math.max(0, submitTimeout);
+    }
+
+    public long getSubmitTimeout() {
+        return submitTimeout;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * the number of operations submitted but not finished yet
+     */
+    public int getPending() {
+        return maxPending - permits.availablePermits();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openengsb.core.api.AliveState;
+import org.openengsb.core.api.DomainMethodExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.client.GoogleAuthTokenFactory;
+import com.google.gdata.client.calendar.CalendarService;
+import com.google.gdata.client.http.AuthTokenFactory;
+import com.google.gdata.util.AuthenticationException;
+import com.google.gdata.util.ServiceException;
+
+/**
+ * keeps an authenticated CalendarService per connector instance, so the ClientLogin round trip is only done once per
+ * token lifetime instead of once per call. The session is renewed when the token is expired or the server answers with
+ * an authentication error, and it is dropped whenever the credentials change.
+ *
+ * The token of a session is shared by a fixed number of clients. Every operation borrows one of them, so up to that
+ * number of calls run in parallel and any further caller waits for a free client. Only a caller holding a client
+ * leases a slot of the concurrency limiter shared with other instances, so callers queued for a busy instance do not
+ * hold slots other instances could use.
+ */
+public class CalendarSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CalendarSession.class);
+
+    static final String APPLICATION_NAME = "OPENENGSB";
+
+    /**
+     * ClientLogin tokens are valid for two weeks, renewing them a lot earlier keeps us away from the edge
+     */
+    static final long DEFAULT_TOKEN_LIFETIME = TimeUnit.HOURS.toMillis(24);
+
+    static final int DEFAULT_POOL_SIZE = 4;
+
+    /**
+     * a single call to google that may be repeated with a fresh service if the session turned out to be stale
+     */
+    public interface Operation<T> {
+        T execute(CalendarService service) throws IOException, ServiceException;
+    }
+
+    /**
+     * the clients sharing the token of one login
+     */
+    private final class ClientPool {
+        private final CalendarService primary;
+        private final BlockingQueue<CalendarService> idle;
+        private final long authenticatedAt = System.currentTimeMillis();
+
+        private ClientPool(CalendarService primary, int size) {
+            this.primary = primary;
+            idle = new ArrayBlockingQueue<CalendarService>(size);
+            idle.add(primary);
+            for (int i = 1; i < size; i++) {
+                idle.add(createClient(primary));
+            }
+        }
+
+        private CalendarService borrow() throws InterruptedIOException {
+            try {
+                return idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a free google client");
+            }
+        }
+
+        private void release(CalendarService client) {
+            idle.offer(client);
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - authenticatedAt > tokenLifetime;
+        }
+    }
+
+    private final Object lock = new Object();
+
+    private String googleUser;
+    private String googlePassword;
+    private long tokenLifetime = DEFAULT_TOKEN_LIFETIME;
+    private int poolSize = DEFAULT_POOL_SIZE;
+
+    private volatile ClientPool pool;
+    private volatile AliveState health = AliveState.DISCONNECTED;
+    private volatile ConnectorMetrics metrics;
+    private volatile RequestConcurrencyLimiter concurrencyLimiter;
+    private volatile String host;
+
+    /**
+     * sets the credentials used for authentication. An existing session is invalidated if they differ from the
+     * current ones.
+     */
+    public void setCredentials(String googleUser, String googlePassword) {
+        synchronized (lock) {
+            if (equal(this.googleUser, googleUser) && equal(this.googlePassword, googlePassword)) {
+                return;
+            }
+            this.googleUser = googleUser;
+            this.googlePassword = googlePassword;
+            pool = null;
+            health = AliveState.DISCONNECTED;
+        }
+    }
+
+    /**
+     * returns an authenticated service, logging in only if there is no valid session yet
+     */
+    public CalendarService getService() {
+        return getPool().primary;
+    }
+
+    private ClientPool getPool() {
+        ClientPool current = pool;
+        if (current != null && !current.isExpired()) {
+            return current;
+        }
+        synchronized (lock) {
+            if (pool == null || pool.isExpired()) {
+                health = AliveState.CONNECTING;
+                long begin = System.nanoTime();
+                try {
+                    pool = new ClientPool(authenticate(googleUser, googlePassword), poolSize);
+                } catch (RuntimeException e) {
+                    health = AliveState.DISCONNECTED;
+                    throw e;
+                } finally {
+                    ConnectorMetrics currentMetrics = metrics;
+                    if (currentMetrics != null) {
+                        currentMetrics.record(ConnectorMetrics.Phase.LOGIN, begin);
+                    }
+                }
+                health = AliveState.ONLINE;
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * runs the given operation with a client of the current session. If google rejects the token the session is
+     * renewed and the operation is repeated once.
+     */
+    public <T> T execute(Operation<T> operation) throws IOException, ServiceException {
+        ClientPool current = getPool();
+        try {
+            return executeWith(current, operation);
+        } catch (AuthenticationException e) {
+            LOGGER.debug("session was rejected by the google server, authenticating again", e);
+            invalidate(current);
+            return executeWith(getPool(), operation);
+        }
+    }
+
+    private <T> T executeWith(ClientPool current, Operation<T> operation) throws IOException, ServiceException {
+        CalendarService client = current.borrow();
+        RequestConcurrencyLimiter limiter = null;
+        String limiterHost = host;
+        try {
+            RequestConcurrencyLimiter candidate = concurrencyLimiter;
+            if (candidate != null) {
+                candidate.acquire(limiterHost);
+                limiter = candidate;
+            }
+            T result = operation.execute(client);
+            health = AliveState.ONLINE;
+            return result;
+        } catch (AuthenticationException e) {
+            health = AliveState.DISCONNECTED;
+            throw e;
+        } catch (ServiceException e) {
+            // the server answered, so the connection itself is fine
+            health = AliveState.ONLINE;
+            throw e;
+        } catch (IOException e) {
+            health = AliveState.OFFLINE;
+            throw e;
+        } finally {
+            if (limiter != null) {
+                limiter.release(limiterHost);
+            }
+            current.release(client);
+        }
+    }
+
+    /**
+     * drops the current session, the next call authenticates again
+     */
+    public void invalidate() {
+        synchronized (lock) {
+            pool = null;
+            health = AliveState.DISCONNECTED;
+        }
+    }
+
+    private void invalidate(ClientPool stale) {
+        synchronized (lock) {
+            // other threads may have renewed the session in the meantime
+            if (pool == stale) {
+                pool = null;
+            }
+        }
+    }
+
+    public boolean isAuthenticated() {
+        ClientPool current = pool;
+        return current != null && !current.isExpired();
+    }
+
+    /**
+     * the state of the connection as seen by the last call: ONLINE if google answered, OFFLINE if it could not be
+     * reached and DISCONNECTED if there is no valid session
+     */
+    public AliveState getAliveState() {
+        return health;
+    }
+
+    protected CalendarService authenticate(String user, String password) {
+        try {
+            CalendarService newService = new CalendarService(APPLICATION_NAME);
+            newService.setUserCredentials(user, password);
+            LOGGER.debug("authenticated {} at the google server", user);
+            return newService;
+        } catch (AuthenticationException e) {
+            throw new DomainMethodExecutionException(
+                "unable to authenticate at google server, maybe wrong username and/or password?", e);
+        }
+    }
+
+    /**
+     * creates another client that uses the token of the given authenticated service
+     */
+    protected CalendarService createClient(CalendarService authenticated) {
+        CalendarService client = new CalendarService(APPLICATION_NAME);
+        AuthTokenFactory tokenFactory = authenticated.getAuthTokenFactory();
+        if (tokenFactory != null && tokenFactory.getAuthToken() instanceof GoogleAuthTokenFactory.UserToken) {
+            client.setUserToken(((GoogleAuthTokenFactory.UserToken) tokenFactory.getAuthToken()).getValue());
+        }
+        return client;
+    }
+
+    /**
+     * lets the logins be measured by the given metrics
+     */
+    public void setMetrics(ConnectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * lets every call lease a slot of the given limiter once it has a client, null does not limit the calls
+     */
+    public void setConcurrencyLimiter(RequestConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public RequestConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * sets the host the calls are sent to, which is the key of the slots leased from the limiter
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setTokenLifetime(long tokenLifetime) {
+        this.tokenLifetime = tokenLifetime;
+    }
+
+    /**
+     * sets the number of clients, and thereby the number of parallel calls, of the next session
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = Math.max(1, poolSize);
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentConverter;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.data.DateTime;
+import com.google.gdata.data.calendar.CalendarEventEntry;
+
+/**
+ * keeps a local mirror of a calendar and brings it up to date by fetching only the entries that changed since the last
+ * cycle. Every cycle reports the differences to the previous state, so they can be committed to the EKB.
+ *
+ * Writes through the connector commit their own changes. A cycle running while such a write is in flight may see the
+ * written entry before the write recorded it, so the changes it finds are held back until no write is in flight
+ * anymore. Changes a write records in the meantime are dropped, the others are reported by the next cycle.
+ */
+public class CalendarSyncEngine {
+
+    /**
+     * allows for a clock difference between this host and google when no change was seen during a full sync
+     */
+    private static final long CLOCK_SKEW_MARGIN = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * queries the calendar for entries
+     */
+    public interface ChangeSource {
+        /**
+         * returns all entries changed since updatedMin, including deleted ones. If updatedMin is null all entries of
+         * the calendar are returned and deleted entries are omitted.
+         */
+        Iterator<CalendarEventEntry> fetchChanges(DateTime updatedMin);
+    }
+
+    /**
+     * the mirrored state of a single entry
+     */
+    static class MirrorEntry {
+        private final Appointment appointment;
+        private final long updated;
+
+        MirrorEntry(Appointment appointment, long updated) {
+            this.appointment = appointment;
+            this.updated = updated;
+        }
+
+        public Appointment getAppointment() {
+            return appointment;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+    }
+
+    /**
+     * a change found while writes were in flight
+     */
+    private static final class HeldChange {
+        private final Appointment appointment;
+        private final boolean inserted;
+        private final boolean deleted;
+
+        private HeldChange(Appointment appointment, boolean inserted, boolean deleted) {
+            this.appointment = appointment;
+            this.inserted = inserted;
+            this.deleted = deleted;
+        }
+    }
+
+    private Map<String, MirrorEntry> mirror = new LinkedHashMap<String, MirrorEntry>();
+    private final Map<String, HeldChange> held = new LinkedHashMap<String, HeldChange>();
+    private long updatedMin;
+    private boolean initialized;
+    private int writesInFlight;
+
+    /**
+     * runs one synchronization cycle. The first cycle loads the whole calendar, every following one only the
+     * entries that changed since the last change seen.
+     */
+    public synchronized SyncResult synchronize(ChangeSource source) {
+        SyncResult result = new SyncResult();
+        long startedAt = System.currentTimeMillis();
+        boolean fullSync = !initialized;
+        Set<String> seen = new HashSet<String>();
+        long lastChange = updatedMin;
+
+        Iterator<CalendarEventEntry> changes = source.fetchChanges(fullSync ? null : new DateTime(updatedMin));
+        while (changes.hasNext()) {
+            CalendarEventEntry entry = changes.next();
+            String key = entry.getId();
+            long updated = entry.getUpdated() == null ? startedAt : entry.getUpdated().getValue();
+            lastChange = Math.max(lastChange, updated);
+            seen.add(key);
+
+            MirrorEntry known = mirror.get(key);
+            if (AppointmentConverter.isCanceled(entry)) {
+                if (known != null) {
+                    mirror.remove(key);
+                    hold(key, new HeldChange(known.getAppointment(), false, true));
+                }
+                continue;
+            }
+            if (known != null && known.getUpdated() >= updated) {
+                // updated-min is inclusive, so the entries of the last change are seen twice
+                continue;
+            }
+            Appointment appointment = AppointmentConverter.convertCalendarEventEntryToAppointment(entry);
+            mirror.put(key, new MirrorEntry(appointment, updated));
+            hold(key, new HeldChange(appointment, known == null, false));
+        }
+
+        if (fullSync) {
+            Iterator<Map.Entry<String, MirrorEntry>> mirrored = mirror.entrySet().iterator();
+            while (mirrored.hasNext()) {
+                Map.Entry<String, MirrorEntry> entry = mirrored.next();
+                if (!seen.contains(entry.getKey())) {
+                    mirrored.remove();
+                    hold(entry.getKey(), new HeldChange(entry.getValue().getAppointment(), false, true));
+                }
+            }
+            if (seen.isEmpty()) {
+                lastChange = startedAt - CLOCK_SKEW_MARGIN;
+            }
+        }
+        updatedMin = lastChange;
+        initialized = true;
+        if (writesInFlight == 0) {
+            releaseHeld(result);
+        }
+        return result;
+    }
+
+    /**
+     * keeps a change until it is reported, merged with an earlier change of the same entry that is still held
+     */
+    private void hold(String key, HeldChange change) {
+        HeldChange earlier = held.remove(key);
+        if (earlier == null) {
+            held.put(key, change);
+        } else if (earlier.inserted && change.deleted) {
+            // the EKB never heard of the entry
+            return;
+        } else if (earlier.deleted && !change.deleted) {
+            held.put(key, new HeldChange(change.appointment, false, false));
+        } else {
+            held.put(key, new HeldChange(change.appointment, earlier.inserted, change.deleted));
+        }
+    }
+
+    private void releaseHeld(SyncResult result) {
+        for (HeldChange change : held.values()) {
+            if (change.deleted) {
+                result.getDeletes().add(change.appointment);
+            } else if (change.inserted) {
+                result.getInserts().add(change.appointment);
+            } else {
+                result.getUpdates().add(change.appointment);
+            }
+        }
+        held.clear();
+    }
+
+    /**
+     * drops the changes held back, e.g. because the cycle that found them only seeded the mirror
+     */
+    public synchronized void discardHeld() {
+        held.clear();
+    }
+
+    /**
+     * a write through the connector is about to be sent, changes found until it ended are held back
+     */
+    public synchronized void beginWrite() {
+        writesInFlight++;
+    }
+
+    /**
+     * a write begun before has ended, it was recorded if it succeeded
+     */
+    public synchronized void endWrite() {
+        writesInFlight--;
+    }
+
+    /**
+     * takes an entry written through this connector into the mirror, so the next cycle does not report the change
+     * that was committed to the EKB already
+     */
+    public synchronized void recordWrite(CalendarEventEntry entry) {
+        held.remove(entry.getId());
+        if (!initialized || entry.getUpdated() == null) {
+            return;
+        }
+        long updated = entry.getUpdated().getValue();
+        MirrorEntry known = mirror.get(entry.getId());
+        if (known == null || known.getUpdated() < updated) {
+            Appointment appointment = AppointmentConverter.convertCalendarEventEntryToAppointment(entry);
+            mirror.put(entry.getId(), new MirrorEntry(appointment, updated));
+        }
+    }
+
+    /**
+     * removes an appointment deleted through this connector from the mirror, so the next cycle does not report the
+     * deletion again
+     */
+    public synchronized void recordDelete(String appointmentId) {
+        Iterator<HeldChange> changes = held.values().iterator();
+        while (changes.hasNext()) {
+            if (appointmentId.equals(changes.next().appointment.getId())) {
+                changes.remove();
+            }
+        }
+        Iterator<MirrorEntry> mirrored = mirror.values().iterator();
+        while (mirrored.hasNext()) {
+            if (appointmentId.equals(mirrored.next().getAppointment().getId())) {
+                mirrored.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * forces the next cycle to load the whole calendar, e.g. because google does not keep deleted entries long enough
+     * for the last checkpoint. The mirror is kept, so only the real differences are reported.
+     */
+    public synchronized void reset() {
+        initialized = false;
+    }
+
+    public synchronized SyncCheckpoint getCheckpoint() {
+        return new SyncCheckpoint(updatedMin, new LinkedHashMap<String, MirrorEntry>(mirror));
+    }
+
+    public synchronized void restore(SyncCheckpoint checkpoint) {
+        mirror = new LinkedHashMap<String, MirrorEntry>(checkpoint.getEntries());
+        updatedMin = checkpoint.getUpdatedMin();
+        initialized = true;
+    }
+
+    public synchronized boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * a snapshot of all appointments in the mirror
+     */
+    public synchronized List<Appointment> getAppointments() {
+        List<Appointment> appointments = new ArrayList<Appointment>(mirror.size());
+        for (MirrorEntry entry : mirror.values()) {
+            appointments.add(entry.getAppointment());
+        }
+        return appointments;
+    }
+}
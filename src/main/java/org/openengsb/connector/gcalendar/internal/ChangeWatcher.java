@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * checks a calendar for changes in the background. The interval adapts to the activity of the calendar: it drops to
+ * the minimum whenever changes were found or written through the connector and doubles with every idle check, up to
+ * the maximum. The checks of all watchers run on a shared scheduler, so watching many calendars does not need a
+ * thread for each of them.
+ */
+public class ChangeWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeWatcher.class);
+
+    static final long DEFAULT_MIN_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    static final long DEFAULT_MAX_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    static final int DEFAULT_THREADS = 4;
+
+    /**
+     * looks for changes of the calendar and publishes them
+     */
+    public interface Check {
+        /**
+         * returns whether changes were found
+         */
+        boolean check() throws Exception;
+    }
+
+    private static final Random RANDOM = new Random();
+
+    private final Check check;
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong activeChecks = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+    private boolean enabled;
+    private long minInterval = DEFAULT_MIN_INTERVAL;
+    private long maxInterval = DEFAULT_MAX_INTERVAL;
+    private long interval = DEFAULT_MIN_INTERVAL;
+    private ScheduledFuture<?> next;
+    private long nextAt;
+    private boolean checking;
+    private boolean active;
+
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            runCheck();
+        }
+    };
+
+    public ChangeWatcher(Check check) {
+        this.check = check;
+    }
+
+    /**
+     * creates a scheduler for the watchers of many connector instances, running at most the given number of checks at
+     * the same time
+     */
+    public static ScheduledThreadPoolExecutor createScheduler(int threads) {
+        return new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gcalendar-watcher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void runCheck() {
+        synchronized (this) {
+            if (!enabled || scheduler == null) {
+                return;
+            }
+            checking = true;
+            next = null;
+        }
+        boolean changed = false;
+        try {
+            changed = check.check();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            LOGGER.warn("unable to check the calendar for changes", e);
+        } finally {
+            checks.incrementAndGet();
+            if (changed) {
+                activeChecks.incrementAndGet();
+            }
+            synchronized (this) {
+                checking = false;
+                if (changed || active) {
+                    interval = minInterval;
+                } else {
+                    // failures back off like idle checks, an unavailable google is not asked more often
+                    interval = Math.min(maxInterval, interval * 2);
+                }
+                active = false;
+                schedule(interval);
+            }
+        }
+    }
+
+    /**
+     * the calendar was changed through the connector, changes by others are likely to follow, so the next check is
+     * moved to the minimum interval
+     */
+    public synchronized void onActivity() {
+        interval = minInterval;
+        active = checking;
+        if (next != null && nextAt - System.currentTimeMillis() > minInterval) {
+            next.cancel(false);
+            schedule(minInterval);
+        }
+    }
+
+    /**
+     * starts or stops watching, the first check of a started watcher runs at a random point within the minimum
+     * interval, so watchers started together do not check at the same time
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        reschedule();
+    }
+
+    /**
+     * stops watching for good, the scheduled check is cancelled and later calls of setEnabled do not start it again
+     */
+    public synchronized void shutdown() {
+        enabled = false;
+        reschedule();
+        scheduler = null;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * sets the scheduler the checks run on, usually shared with the watchers of other instances
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        reschedule();
+    }
+
+    /**
+     * sets the bounds of the interval between two checks, in milliseconds
+     */
+    public synchronized void setIntervals(long minInterval, long maxInterval) {
+        this.minInterval = Math.max(1, minInterval);
+        this.maxInterval = Math.max(this.minInterval, maxInterval);
+        interval = Math.max(this.minInterval, Math.min(this.maxInterval, interval));
+        reschedule();
+    }
+
+    private void reschedule() {
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+        if (enabled && scheduler != null && !checking) {
+            long delay;
+            synchronized (RANDOM) {
+                delay = (long) (RANDOM.nextDouble() * minInterval);
+            }
+            interval = minInterval;
+            schedule(delay);
+        }
+    }
+
+    private void schedule(long delay) {
+        if (!enabled || scheduler == null || scheduler.isShutdown()) {
+            return;
+        }
+        nextAt = System.currentTimeMillis() + delay;
+        try {
+            next = scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("the scheduler was shut down, the calendar is not watched anymore");
+        }
+    }
+
+    /**
+     * the current interval between two checks, in milliseconds
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    public long getCheckCount() {
+        return checks.get();
+    }
+
+    /**
+     * the number of checks that found changes
+     */
+    public long getActiveCheckCount() {
+        return activeChecks.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+}
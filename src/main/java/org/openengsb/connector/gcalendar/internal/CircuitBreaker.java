@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * stops sending requests to google while most of the recent ones failed or were too slow. The breaker watches the
+ * last WINDOW_SIZE requests while it is closed and opens once the share of bad ones reaches the failure rate. While it
+ * is open requests are rejected right away. A background probe checks with a cheap request whether google is back,
+ * then the breaker is half-open and lets a single trial request through, which closes the breaker again if it
+ * succeeds. Without a probe, or a scheduler to run it on, the trial is let through once the open duration elapsed.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    static final int WINDOW_SIZE = 20;
+    static final int MINIMUM_CALLS = 10;
+    static final double DEFAULT_FAILURE_RATE = 0.5;
+    static final long DEFAULT_SLOW_CALL = TimeUnit.SECONDS.toNanos(10);
+    static final long DEFAULT_OPEN_DURATION = TimeUnit.SECONDS.toMillis(30);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * sends a cheap request to google, failing if google still cannot be used
+     */
+    public interface Probe {
+        void probe() throws Exception;
+    }
+
+    private final boolean[] window = new boolean[WINDOW_SIZE];
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong openCount = new AtomicLong();
+    private final Runnable probeTask = new Runnable() {
+        @Override
+        public void run() {
+            runProbe();
+        }
+    };
+
+    private volatile State state = State.CLOSED;
+    private volatile double failureRate = DEFAULT_FAILURE_RATE;
+    private volatile long slowCall = DEFAULT_SLOW_CALL;
+    private volatile long openDuration = DEFAULT_OPEN_DURATION;
+    private volatile Probe probe;
+    private volatile ScheduledExecutorService scheduler;
+
+    private int windowCalls;
+    private int windowPosition;
+    private int badCalls;
+    private long openedAt;
+    private boolean trialRunning;
+    private ScheduledFuture<?> pendingProbe;
+    private boolean shutdown;
+
+    /**
+     * whether a request may be sent. Every allowed request has to be reported with {@link #onResult(boolean, long)}
+     * or {@link #onIgnored()}.
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (isProbing() || now() - openedAt < openDuration) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                state = State.HALF_OPEN;
+            }
+            if (state == State.HALF_OPEN) {
+                if (trialRunning) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                trialRunning = true;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * reports the outcome of a request that was allowed
+     */
+    public void onResult(boolean failed, long nanos) {
+        boolean bad = failed || nanos >= slowCall;
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                trialRunning = false;
+                if (bad) {
+                    open();
+                } else {
+                    LOGGER.info("google is available again");
+                    state = State.CLOSED;
+                    resetWindow();
+                }
+                return;
+            }
+            if (state == State.OPEN) {
+                return;
+            }
+            if (windowCalls == WINDOW_SIZE && window[windowPosition]) {
+                badCalls--;
+            }
+            window[windowPosition] = bad;
+            windowPosition = (windowPosition + 1) % WINDOW_SIZE;
+            windowCalls = Math.min(WINDOW_SIZE, windowCalls + 1);
+            if (bad) {
+                badCalls++;
+            }
+            if (failureRate > 0 && windowCalls >= MINIMUM_CALLS && badCalls >= failureRate * windowCalls) {
+                LOGGER.warn("{} of the last {} requests to google failed or were slow, pausing requests", badCalls,
+                    windowCalls);
+                open();
+            }
+        }
+    }
+
+    /**
+     * reports that an allowed request ended without telling anything about google, e.g. because it was interrupted
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            trialRunning = false;
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = now();
+        openCount.incrementAndGet();
+        resetWindow();
+        scheduleProbe();
+    }
+
+    private boolean isProbing() {
+        return probe != null && scheduler != null && !shutdown;
+    }
+
+    private void scheduleProbe() {
+        if (!isProbing() || pendingProbe != null && !pendingProbe.isDone()) {
+            return;
+        }
+        try {
+            pendingProbe = scheduler.schedule(probeTask, openDuration, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the scheduler is shut down, so is the connector
+            pendingProbe = null;
+        }
+    }
+
+    private void resetWindow() {
+        windowCalls = 0;
+        windowPosition = 0;
+        badCalls = 0;
+    }
+
+    private void runProbe() {
+        Probe current = probe;
+        boolean available;
+        try {
+            if (current != null) {
+                current.probe();
+            }
+            available = true;
+        } catch (Exception e) {
+            LOGGER.debug("google is still not available", e);
+            available = false;
+        }
+        synchronized (this) {
+            pendingProbe = null;
+            if (state != State.OPEN || shutdown) {
+                return;
+            }
+            if (available) {
+                state = State.HALF_OPEN;
+            } else {
+                openedAt = now();
+                scheduleProbe();
+            }
+        }
+    }
+
+    /**
+     * cancels the pending probe, no probe is scheduled from now on
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (pendingProbe != null) {
+            pendingProbe.cancel(false);
+            pendingProbe = null;
+        }
+    }
+
+    /**
+     * the current time in milliseconds, the open duration is measured with it
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * sets the share of failed or slow requests among the recent ones that opens the breaker, 0 never opens it
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = Math.max(0, Math.min(1, failureRate));
+    }
+
+    /**
+     * sets the milliseconds after which a request counts as bad even if it succeeded
+     */
+    public void setSlowCall(long slowCall) {
+        this.slowCall = TimeUnit.MILLISECONDS.toNanos(slowCall);
+    }
+
+    /**
+     * sets the milliseconds to wait before google is probed again
+     */
+    public void setOpenDuration(long openDuration) {
+        this.openDuration = Math.max(1, openDuration);
+    }
+
+    /**
+     * sets the request that checks whether google is back while the breaker is open, null lets a trial request
+     * through once the open duration elapsed. An open breaker starts probing right away.
+     */
+    public synchronized void setProbe(Probe probe) {
+        this.probe = probe;
+        if (state == State.OPEN) {
+            scheduleProbe();
+        }
+    }
+
+    /**
+     * sets the scheduler the probe runs on, owned by whoever created the connector. Without one no probe is run. An
+     * open breaker starts probing right away.
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        if (state == State.OPEN) {
+            scheduleProbe();
+        }
+    }
+
+    /**
+     * the number of requests rejected while the breaker was open
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * the number of times the breaker opened
+     */
+    public long getOpenCount() {
+        return openCount.get();
+    }
+}
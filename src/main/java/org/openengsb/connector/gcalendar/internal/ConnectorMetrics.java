@@ -0,0 +1,398 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openengsb.connector.gcalendar.internal.misc.LatencyHistogram;
+import org.openengsb.connector.gcalendar.metrics.MetricsListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * measures the time one connector instance spends in each phase of its work and in the requests to google, and the
+ * bytes it receives. Recording only costs a few atomic increments, so the measurements stay on all the time. They
+ * are published through JMX and passed on to the registered {@link MetricsListener}s.
+ */
+public class ConnectorMetrics implements ConnectorMetricsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectorMetrics.class);
+
+    private static final String OBJECT_NAME = "org.openengsb.connector.gcalendar:type=ConnectorMetrics,instance=";
+
+    private static final String[] STATUS_CLASSES = { "2xx", "3xx", "4xx", "5xx", "io" };
+    private static final int IO_ERROR = STATUS_CLASSES.length - 1;
+
+    public enum Phase {
+        LOGIN("login"), QUERY("query"), AVAILABILITY("availability"), LOAD("load"), INSERT("insert"),
+        UPDATE("update"), DELETE("delete"), BATCH("batch"), CONVERSION("conversion"), EXPANSION("expansion"),
+        EKB_COMMIT("ekb.commit");
+
+        private final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final String instanceId;
+    private final LatencyHistogram[] latencies = createHistograms(Phase.values().length);
+    private final LatencyHistogram[] payloads = createHistograms(Phase.values().length);
+    private final LatencyHistogram[] requests = createHistograms(STATUS_CLASSES.length);
+
+    private final SingleFlight<?, ?>[] singleFlights = new SingleFlight<?, ?>[Phase.values().length];
+
+    private volatile List<MetricsListener> listeners = Collections.emptyList();
+    private volatile EkbCommitPipeline commitPipeline;
+    private volatile RequestConcurrencyLimiter concurrencyLimiter;
+    private volatile AppointmentEntryCache entryCache;
+    private volatile RequestExecutor requestExecutor;
+    private ObjectName registeredName;
+
+    public ConnectorMetrics(String instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    private static LatencyHistogram[] createHistograms(int size) {
+        LatencyHistogram[] histograms = new LatencyHistogram[size];
+        for (int i = 0; i < size; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * records a phase that started at the given {@link System#nanoTime()}
+     */
+    public void record(Phase phase, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        latencies[phase.ordinal()].record(nanos);
+        List<MetricsListener> current = listeners;
+        if (current.isEmpty()) {
+            return;
+        }
+        for (MetricsListener listener : current) {
+            try {
+                listener.operationCompleted(instanceId, phase.getName(), nanos);
+            } catch (RuntimeException e) {
+                LOGGER.debug("metrics listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * records a request to google that started at the given {@link System#nanoTime()}. A status of 0 or less means
+     * that no answer came back.
+     */
+    public void recordRequest(int status, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        int statusClass = status <= 0 ? IO_ERROR : Math.min(Math.max(status / 100 - 2, 0), IO_ERROR - 1);
+        requests[statusClass].record(nanos);
+        List<MetricsListener> current = listeners;
+        if (current.isEmpty()) {
+            return;
+        }
+        for (MetricsListener listener : current) {
+            try {
+                listener.requestCompleted(instanceId, STATUS_CLASSES[statusClass], nanos);
+            } catch (RuntimeException e) {
+                LOGGER.debug("metrics listener failed", e);
+            }
+        }
+    }
+
+    public void recordPayload(Phase phase, long bytes) {
+        payloads[phase.ordinal()].record(bytes);
+        List<MetricsListener> current = listeners;
+        if (current.isEmpty()) {
+            return;
+        }
+        for (MetricsListener listener : current) {
+            try {
+                listener.payloadReceived(instanceId, phase.getName(), bytes);
+            } catch (RuntimeException e) {
+                LOGGER.debug("metrics listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * sets the listeners the measurements are passed on to, the list may change later on
+     */
+    public void setListeners(List<MetricsListener> listeners) {
+        if (listeners == null) {
+            this.listeners = Collections.emptyList();
+        } else {
+            this.listeners = listeners;
+        }
+    }
+
+    /**
+     * reports the shared reads of the given phase
+     */
+    public synchronized void setSingleFlight(Phase phase, SingleFlight<?, ?> singleFlight) {
+        singleFlights[phase.ordinal()] = singleFlight;
+    }
+
+    /**
+     * reports the changes waiting for and dropped by the given pipeline
+     */
+    public void setCommitPipeline(EkbCommitPipeline commitPipeline) {
+        this.commitPipeline = commitPipeline;
+    }
+
+    /**
+     * reports the request slots of the given limiter, which is shared with the other instances of the factory
+     */
+    public void setConcurrencyLimiter(RequestConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public void setEntryCache(AppointmentEntryCache entryCache) {
+        this.entryCache = entryCache;
+    }
+
+    public void setRequestExecutor(RequestExecutor requestExecutor) {
+        this.requestExecutor = requestExecutor;
+    }
+
+    public LatencyHistogram getLatencies(Phase phase) {
+        return latencies[phase.ordinal()];
+    }
+
+    /**
+     * publishes the measurements of this instance at the platform MBean server
+     */
+    public synchronized void register() {
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME + ObjectName.quote(instanceId));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                // an instance with the same id was replaced without being shut down
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            LOGGER.warn("unable to publish the metrics of {} through JMX", instanceId, e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(registeredName)) {
+                server.unregisterMBean(registeredName);
+            }
+        } catch (JMException e) {
+            LOGGER.debug("metrics of {} were not registered anymore", instanceId, e);
+        }
+        registeredName = null;
+    }
+
+    @Override
+    public String[] getOperations() {
+        Phase[] phases = Phase.values();
+        String[] names = new String[phases.length];
+        for (int i = 0; i < phases.length; i++) {
+            names[i] = phases[i].getName();
+        }
+        return names;
+    }
+
+    @Override
+    public long getCount(String operation) {
+        return latencies[phase(operation).ordinal()].getCount();
+    }
+
+    @Override
+    public double getMeanMillis(String operation) {
+        return toMillis(latencies[phase(operation).ordinal()].getMean());
+    }
+
+    @Override
+    public double getPercentileMillis(String operation, double percentile) {
+        return toMillis(latencies[phase(operation).ordinal()].getPercentile(percentile));
+    }
+
+    @Override
+    public double getMaxMillis(String operation) {
+        return toMillis(latencies[phase(operation).ordinal()].getMax());
+    }
+
+    @Override
+    public String[] getStatusClasses() {
+        return STATUS_CLASSES.clone();
+    }
+
+    @Override
+    public long getRequestCount(String statusClass) {
+        return requests[statusClass(statusClass)].getCount();
+    }
+
+    @Override
+    public double getRequestPercentileMillis(String statusClass, double percentile) {
+        return toMillis(requests[statusClass(statusClass)].getPercentile(percentile));
+    }
+
+    @Override
+    public long getPayloadBytes(String operation) {
+        return payloads[phase(operation).ordinal()].getSum();
+    }
+
+    @Override
+    public double getMeanPayloadBytes(String operation) {
+        return payloads[phase(operation).ordinal()].getMean();
+    }
+
+    @Override
+    public synchronized double getSharedReadRate(String operation) {
+        SingleFlight<?, ?> singleFlight = singleFlights[phase(operation).ordinal()];
+        return singleFlight == null ? 0 : singleFlight.getHitRate();
+    }
+
+    @Override
+    public int getPendingEkbChanges() {
+        EkbCommitPipeline current = commitPipeline;
+        return current == null ? 0 : current.getPendingCount();
+    }
+
+    @Override
+    public long getDroppedEkbChanges() {
+        EkbCommitPipeline current = commitPipeline;
+        return current == null ? 0 : current.getDroppedCount();
+    }
+
+    @Override
+    public long getCacheHits() {
+        AppointmentEntryCache current = entryCache;
+        return current == null ? 0 : current.getHitCount();
+    }
+
+    @Override
+    public long getCacheRevalidations() {
+        AppointmentEntryCache current = entryCache;
+        return current == null ? 0 : current.getRevalidationCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        AppointmentEntryCache current = entryCache;
+        return current == null ? 0 : current.getMissCount();
+    }
+
+    @Override
+    public long getThrottledRequests() {
+        RequestExecutor current = requestExecutor;
+        return current == null ? 0 : current.getRateLimiter().getThrottledCount();
+    }
+
+    @Override
+    public long getRetriedRequests() {
+        RequestExecutor current = requestExecutor;
+        return current == null ? 0 : current.getRetryCount();
+    }
+
+    @Override
+    public String getCircuitState() {
+        RequestExecutor current = requestExecutor;
+        return (current == null ? CircuitBreaker.State.CLOSED : current.getCircuitBreaker().getState()).name();
+    }
+
+    @Override
+    public long getCircuitOpenCount() {
+        RequestExecutor current = requestExecutor;
+        return current == null ? 0 : current.getCircuitBreaker().getOpenCount();
+    }
+
+    @Override
+    public long getCircuitRejectedCount() {
+        RequestExecutor current = requestExecutor;
+        return current == null ? 0 : current.getCircuitBreaker().getRejectedCount();
+    }
+
+    @Override
+    public int getLeasedRequestSlots() {
+        RequestConcurrencyLimiter current = concurrencyLimiter;
+        return current == null ? 0 : current.getLeased();
+    }
+
+    @Override
+    public long getRequestSlotLeases() {
+        RequestConcurrencyLimiter current = concurrencyLimiter;
+        return current == null ? 0 : current.getLeaseCount();
+    }
+
+    @Override
+    public long getRequestSlotWaits() {
+        RequestConcurrencyLimiter current = concurrencyLimiter;
+        return current == null ? 0 : current.getWaitCount();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : latencies) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : payloads) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : requests) {
+            histogram.reset();
+        }
+    }
+
+    private static Phase phase(String operation) {
+        for (Phase phase : Phase.values()) {
+            if (phase.getName().equals(operation)) {
+                return phase;
+            }
+        }
+        throw new IllegalArgumentException("unknown operation " + operation);
+    }
+
+    private static int statusClass(String statusClass) {
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            if (STATUS_CLASSES[i].equals(statusClass)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown status class " + statusClass);
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
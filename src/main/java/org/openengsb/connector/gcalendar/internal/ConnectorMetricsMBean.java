@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+/**
+ * JMX view of the measurements of one connector instance. Times are reported in milliseconds.
+ */
+public interface ConnectorMetricsMBean {
+
+    String[] getOperations();
+
+    long getCount(String operation);
+
+    double getMeanMillis(String operation);
+
+    double getPercentileMillis(String operation, double percentile);
+
+    double getMaxMillis(String operation);
+
+    String[] getStatusClasses();
+
+    long getRequestCount(String statusClass);
+
+    double getRequestPercentileMillis(String statusClass, double percentile);
+
+    long getPayloadBytes(String operation);
+
+    double getMeanPayloadBytes(String operation);
+
+    /**
+     * the share of concurrent identical reads that were answered by the request of another caller
+     */
+    double getSharedReadRate(String operation);
+
+    /**
+     * the number of requests of all instances of the factory currently running against google
+     */
+    int getLeasedRequestSlots();
+
+    /**
+     * the number of requests of all instances of the factory that were let through the concurrency limit
+     */
+    long getRequestSlotLeases();
+
+    /**
+     * the number of requests of all instances of the factory that had to wait for a free slot
+     */
+    long getRequestSlotWaits();
+
+    /**
+     * the number of changed appointments waiting to be committed to the EKB
+     */
+    int getPendingEkbChanges();
+
+    /**
+     * the number of changes dropped because too many were waiting for the EKB
+     */
+    long getDroppedEkbChanges();
+
+    /**
+     * the number of loads answered from the entry cache after google confirmed the cached entry was up to date
+     */
+    long getCacheHits();
+
+    /**
+     * the number of loads that found an outdated cached entry, which google replaced
+     */
+    long getCacheRevalidations();
+
+    /**
+     * the number of loads that found no cached entry
+     */
+    long getCacheMisses();
+
+    /**
+     * the number of requests that had to wait for the rate limit
+     */
+    long getThrottledRequests();
+
+    /**
+     * the number of requests that were sent again after a failure
+     */
+    long getRetriedRequests();
+
+    /**
+     * the state of the circuit breaker: CLOSED, OPEN or HALF_OPEN
+     */
+    String getCircuitState();
+
+    /**
+     * the number of times the circuit breaker opened
+     */
+    long getCircuitOpenCount();
+
+    /**
+     * the number of requests the circuit breaker rejected while it was open
+     */
+    long getCircuitRejectedCount();
+
+    void reset();
+}
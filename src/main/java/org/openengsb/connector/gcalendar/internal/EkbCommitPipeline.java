@@ -0,0 +1,406 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openengsb.core.api.ekb.EKBCommit;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * collects the changes one connector instance reports to the EKB and sends them as one commit per flush. Changes of
+ * the same appointment collapse into the one operation that has the same effect, e.g. an insert followed by a delete
+ * is not committed at all. Commits never overlap, so the changes of one appointment reach the EKB in order.
+ *
+ * Without a flush interval every write is committed right away, like the connector always did: the changes a thread
+ * added are committed in one commit by its next flushIfDue, and a failure only reaches that thread. Threads flushing
+ * at the same time commit one after the other. With an interval
+ * the changes are committed in the background on the scheduler of the factory, and as soon as flushSize appointments
+ * are pending the writing thread commits them itself. While the EKB keeps failing at most maxPending appointments are
+ * kept, the oldest changes beyond that are dropped and counted.
+ */
+public class EkbCommitPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EkbCommitPipeline.class);
+
+    static final int DEFAULT_FLUSH_SIZE = 100;
+    static final int DEFAULT_MAX_PENDING = 10000;
+
+    /**
+     * creates the commit the pending changes are added to, filled in with the ids of the instance
+     */
+    public interface CommitFactory {
+        EKBCommit createCommit();
+    }
+
+    enum Operation {
+        INSERT, UPDATE, DELETE
+    }
+
+    private static final class Change {
+        private Operation operation;
+        private Appointment appointment;
+
+        private Change(Operation operation, Appointment appointment) {
+            this.operation = operation;
+            this.appointment = appointment;
+        }
+    }
+
+    private final CommitFactory commitFactory;
+    private final Object flushLock = new Object();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                LOGGER.warn("unable to commit the pending changes to the EKB, retrying with the next flush", e);
+            }
+        }
+    };
+
+    private volatile PersistInterface persistInterface;
+    private volatile int flushSize = DEFAULT_FLUSH_SIZE;
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+    private volatile ConnectorMetrics metrics;
+
+    /**
+     * the changes each thread added since its last flushIfDue while the pipeline works synchronously
+     */
+    private final ThreadLocal<Map<String, Change>> ownChanges = new ThreadLocal<Map<String, Change>>();
+
+    private Map<String, Change> pending = new LinkedHashMap<String, Change>();
+    private long flushInterval;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduledFlush;
+    private long commitCount;
+    private long collapsedCount;
+    private long droppedCount;
+    private boolean closed;
+
+    public EkbCommitPipeline(CommitFactory commitFactory) {
+        this.commitFactory = commitFactory;
+    }
+
+    public void insert(Appointment appointment) {
+        add(Operation.INSERT, appointment);
+    }
+
+    public void update(Appointment appointment) {
+        add(Operation.UPDATE, appointment);
+    }
+
+    public void delete(Appointment appointment) {
+        add(Operation.DELETE, appointment);
+    }
+
+    private synchronized void add(Operation operation, Appointment appointment) {
+        Map<String, Change> changes = pending;
+        if (isSynchronous()) {
+            changes = ownChanges.get();
+            if (changes == null) {
+                changes = new LinkedHashMap<String, Change>();
+                ownChanges.set(changes);
+            }
+        }
+        if (put(changes, operation, appointment)) {
+            collapsedCount++;
+        }
+        if (changes == pending) {
+            dropOverflow();
+        }
+    }
+
+    private boolean isSynchronous() {
+        return closed || flushInterval <= 0;
+    }
+
+    /**
+     * adds the change to the given ones, returns whether it was merged into a change of the same appointment
+     */
+    private static boolean put(Map<String, Change> changes, Operation operation, Appointment appointment) {
+        Change change = changes.get(appointment.getId());
+        if (change == null) {
+            changes.put(appointment.getId(), new Change(operation, appointment));
+            return false;
+        }
+        Operation merged = merge(change.operation, operation);
+        if (merged == null) {
+            changes.remove(appointment.getId());
+        } else {
+            change.operation = merged;
+            change.appointment = appointment;
+        }
+        return true;
+    }
+
+    /**
+     * drops the oldest pending changes beyond maxPending, they only pile up while the EKB keeps failing
+     */
+    private void dropOverflow() {
+        int overflow = pending.size() - maxPending;
+        if (overflow <= 0) {
+            return;
+        }
+        Iterator<Change> oldest = pending.values().iterator();
+        for (int i = 0; i < overflow; i++) {
+            oldest.next();
+            oldest.remove();
+        }
+        droppedCount += overflow;
+        LOGGER.warn("dropped {} changes that could not be committed to the EKB", overflow);
+    }
+
+    /**
+     * the single operation having the same effect on the EKB as the first operation followed by the second one, null
+     * if the appointment was created and removed again
+     */
+    static Operation merge(Operation first, Operation second) {
+        if (first == Operation.INSERT) {
+            return second == Operation.DELETE ? null : Operation.INSERT;
+        }
+        if (second == Operation.DELETE) {
+            return Operation.DELETE;
+        }
+        // the appointment exists in the EKB, or existed before it was deleted and recreated
+        return Operation.UPDATE;
+    }
+
+    /**
+     * to be called once the changes of a write were added. Commits the changes the calling thread added if the
+     * pipeline works synchronously, or the pending changes once flushSize appointments are pending.
+     */
+    public void flushIfDue() {
+        Map<String, Change> changes = ownChanges.get();
+        boolean synchronous;
+        boolean due;
+        synchronized (this) {
+            synchronous = changes != null || isSynchronous();
+            due = pending.size() >= flushSize;
+        }
+        if (!synchronous) {
+            if (due) {
+                flush();
+            }
+            return;
+        }
+        ownChanges.remove();
+        synchronized (flushLock) {
+            flushLeftOver();
+            if (changes != null && !changes.isEmpty()) {
+                commit(changes);
+            }
+        }
+    }
+
+    /**
+     * commits the changes still pending from before the flush interval was switched off, they are not the business of
+     * the calling thread, so a failure is only logged
+     */
+    private void flushLeftOver() {
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.warn("unable to commit the pending changes to the EKB, retrying with the next write", e);
+        }
+    }
+
+    /**
+     * commits all pending changes in one EKB commit. If the commit fails, the changes stay pending ahead of the ones
+     * added meanwhile and the failure is passed on.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, Change> changes;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                changes = pending;
+                pending = new LinkedHashMap<String, Change>();
+            }
+            try {
+                commit(changes);
+            } catch (RuntimeException e) {
+                requeue(changes);
+                throw e;
+            }
+        }
+    }
+
+    private void commit(Map<String, Change> changes) {
+        EKBCommit commit = commitFactory.createCommit();
+        for (Change change : changes.values()) {
+            switch (change.operation) {
+                case INSERT:
+                    commit.addInsert(change.appointment);
+                    break;
+                case UPDATE:
+                    commit.addUpdate(change.appointment);
+                    break;
+                default:
+                    commit.addDelete(change.appointment);
+                    break;
+            }
+        }
+        long begin = System.nanoTime();
+        try {
+            persistInterface.commit(commit);
+        } finally {
+            ConnectorMetrics current = metrics;
+            if (current != null) {
+                current.record(ConnectorMetrics.Phase.EKB_COMMIT, begin);
+            }
+        }
+        synchronized (this) {
+            commitCount++;
+        }
+    }
+
+    private synchronized void requeue(Map<String, Change> failed) {
+        Map<String, Change> newer = pending;
+        pending = failed;
+        for (Change change : newer.values()) {
+            put(pending, change.operation, change.appointment);
+        }
+        dropOverflow();
+    }
+
+    /**
+     * stops the background flushes and commits everything still pending on the calling thread
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            cancelScheduledFlush();
+        }
+        flush();
+    }
+
+    /**
+     * sets the time changes may wait before they are committed, 0 commits every write right away
+     */
+    public synchronized void setFlushInterval(long flushInterval) {
+        this.flushInterval = Math.max(0, flushInterval);
+        scheduleFlush();
+    }
+
+    /**
+     * sets the scheduler the background flushes run on, shared by all instances of a factory. Without one the pending
+     * changes are only committed once flushSize appointments are pending and on close.
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        cancelScheduledFlush();
+        if (flushInterval <= 0 || closed || scheduler == null) {
+            return;
+        }
+        try {
+            scheduledFlush = scheduler.scheduleWithFixedDelay(flushTask, flushInterval, flushInterval,
+                TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("the scheduler is shut down, pending changes are committed on the writing threads only");
+        }
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    public synchronized long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushSize(int flushSize) {
+        this.flushSize = Math.max(1, flushSize);
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    /**
+     * sets the number of appointments with changes kept while the EKB fails, the oldest changes beyond are dropped
+     */
+    public synchronized void setMaxPending(int maxPending) {
+        this.maxPending = Math.max(1, maxPending);
+        dropOverflow();
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public void setMetrics(ConnectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setPersistInterface(PersistInterface persistInterface) {
+        this.persistInterface = persistInterface;
+    }
+
+    /**
+     * the number of appointments with changes that were not committed yet
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * the number of commits sent to the EKB
+     */
+    public synchronized long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * the number of changes that were merged into a pending change of the same appointment
+     */
+    public synchronized long getCollapsedCount() {
+        return collapsedCount;
+    }
+
+    /**
+     * the number of changes dropped because more than maxPending appointments were waiting for the EKB
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
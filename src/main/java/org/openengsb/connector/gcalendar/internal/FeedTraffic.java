@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.openengsb.connector.gcalendar.internal.misc.CountingInputStream;
+
+/**
+ * counts the bytes of the feed pages an instance reads itself, as they arrive and after decompression
+ */
+public class FeedTraffic {
+
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+
+    /**
+     * a feed page being read, decompressed if google sent it gzip encoded
+     */
+    public final class Page {
+        private final CountingInputStream received;
+        private final CountingInputStream decoded;
+
+        private Page(InputStream response) throws IOException {
+            received = new CountingInputStream(response);
+            BufferedInputStream buffered = new BufferedInputStream(received);
+            decoded = new CountingInputStream(isGzip(buffered) ? new GZIPInputStream(buffered) : buffered);
+        }
+
+        public InputStream getStream() {
+            return decoded;
+        }
+
+        /**
+         * the bytes of this page that went over the wire so far
+         */
+        public long getReceivedBytes() {
+            return received.getCount();
+        }
+
+        /**
+         * adds the bytes read so far to the totals
+         */
+        public void finish() {
+            pages.incrementAndGet();
+            receivedBytes.addAndGet(received.getCount());
+            decodedBytes.addAndGet(decoded.getCount());
+        }
+    }
+
+    public Page open(InputStream response) throws IOException {
+        return new Page(response);
+    }
+
+    /**
+     * looks for the gzip magic number, depending on the transport the response may already be decompressed
+     */
+    private static boolean isGzip(BufferedInputStream in) throws IOException {
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        return first == 0x1f && second == 0x8b;
+    }
+
+    public long getPageCount() {
+        return pages.get();
+    }
+
+    /**
+     * the bytes that went over the wire
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * the bytes of the feed documents after decompression
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+}
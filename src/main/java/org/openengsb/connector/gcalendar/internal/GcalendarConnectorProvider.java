@@ -16,6 +16,63 @@ public class GcalendarConnectorProvider extends AbstractConnectorProvider {
                 .build());
         builder.attribute(builder.newAttribute().id("google.password").name("google.password.name")
             .description("google.password.description").asPassword().build());
+        builder.attribute(builder.newAttribute().id("calendars").name("calendars.name")
+            .description("calendars.description").build());
+        builder.attribute(builder.newAttribute().id("pool.size").name("pool.size.name")
+            .description("pool.size.description").defaultValue("4").build());
+        builder.attribute(builder.newAttribute().id("async.threads").name("async.threads.name")
+            .description("async.threads.description").defaultValue("4").build());
+        builder.attribute(builder.newAttribute().id("async.max.pending").name("async.max.pending.name")
+            .description("async.max.pending.description").defaultValue("100").build());
+        builder.attribute(builder.newAttribute().id("rate.limit").name("rate.limit.name")
+            .description("rate.limit.description").defaultValue("10").build());
+        builder.attribute(builder.newAttribute().id("retry.max").name("retry.max.name")
+            .description("retry.max.description").defaultValue("3").build());
+        builder.attribute(builder.newAttribute().id("circuit.failure.rate").name("circuit.failure.rate.name")
+            .description("circuit.failure.rate.description").defaultValue("50").build());
+        builder.attribute(builder.newAttribute().id("circuit.slow.call").name("circuit.slow.call.name")
+            .description("circuit.slow.call.description").defaultValue("10").build());
+        builder.attribute(builder.newAttribute().id("circuit.open.duration").name("circuit.open.duration.name")
+            .description("circuit.open.duration.description").defaultValue("30").build());
+        builder.attribute(builder.newAttribute().id("batch.size").name("batch.size.name")
+            .description("batch.size.description").defaultValue("50").build());
+        builder.attribute(builder.newAttribute().id("query.page.size").name("query.page.size.name")
+            .description("query.page.size.description").defaultValue("250").build());
+        builder.attribute(builder.newAttribute().id("query.streaming.parser").name("query.streaming.parser.name")
+            .description("query.streaming.parser.description").defaultValue("false").asBoolean().build());
+        builder.attribute(builder.newAttribute().id("query.lean").name("query.lean.name")
+            .description("query.lean.description").defaultValue("false").asBoolean().build());
+        builder.attribute(builder.newAttribute().id("query.slice.days").name("query.slice.days.name")
+            .description("query.slice.days.description").defaultValue("0").build());
+        builder.attribute(builder.newAttribute().id("query.slice.parallelism").name("query.slice.parallelism.name")
+            .description("query.slice.parallelism.description").defaultValue("4").build());
+        builder.attribute(builder.newAttribute().id("query.recurrence.expansion")
+            .name("query.recurrence.expansion.name").description("query.recurrence.expansion.description")
+            .defaultValue("false").asBoolean().build());
+        builder.attribute(builder.newAttribute().id("query.recurrence.max.age").name("query.recurrence.max.age.name")
+            .description("query.recurrence.max.age.description").defaultValue("10").build());
+        builder.attribute(builder.newAttribute().id("cache.size").name("cache.size.name")
+            .description("cache.size.description").defaultValue("1000").build());
+        builder.attribute(builder.newAttribute().id("optimistic.writes").name("optimistic.writes.name")
+            .description("optimistic.writes.description").defaultValue("false").asBoolean().build());
+        builder.attribute(builder.newAttribute().id("sync.checkpoint.file").name("sync.checkpoint.file.name")
+            .description("sync.checkpoint.file.description").build());
+        builder.attribute(builder.newAttribute().id("journal.file").name("journal.file.name")
+            .description("journal.file.description").build());
+        builder.attribute(builder.newAttribute().id("ekb.flush.interval").name("ekb.flush.interval.name")
+            .description("ekb.flush.interval.description").defaultValue("0").build());
+        builder.attribute(builder.newAttribute().id("ekb.flush.size").name("ekb.flush.size.name")
+            .description("ekb.flush.size.description").defaultValue("100").build());
+        builder.attribute(builder.newAttribute().id("ekb.max.pending").name("ekb.max.pending.name")
+            .description("ekb.max.pending.description").defaultValue("10000").build());
+        builder.attribute(builder.newAttribute().id("index.max.staleness").name("index.max.staleness.name")
+            .description("index.max.staleness.description").defaultValue("0").build());
+        builder.attribute(builder.newAttribute().id("watch.enabled").name("watch.enabled.name")
+            .description("watch.enabled.description").defaultValue("false").asBoolean().build());
+        builder.attribute(builder.newAttribute().id("watch.interval.min").name("watch.interval.min.name")
+            .description("watch.interval.min.description").defaultValue("30").build());
+        builder.attribute(builder.newAttribute().id("watch.interval.max").name("watch.interval.max.name")
+            .description("watch.interval.max.description").defaultValue("600").build());
 
         return builder.build();
     }
@@ -17,14 +17,44 @@
 
 package org.openengsb.connector.gcalendar.internal;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.openengsb.connector.gcalendar.internal.misc.AppointmentConverter;
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentFeedParser;
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentIds;
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentIndex;
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentMerger;
+import org.openengsb.connector.gcalendar.internal.misc.BusyIntervals;
+import org.openengsb.connector.gcalendar.internal.misc.FeedPage;
+import org.openengsb.connector.gcalendar.metrics.MetricsListener;
 import org.openengsb.core.api.AliveState;
 import org.openengsb.core.api.DomainMethodExecutionException;
 import org.openengsb.core.api.ekb.EKBCommit;
@@ -35,47 +65,211 @@ import org.openengsb.domain.appointment.AppointmentDomain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gdata.client.Service.GDataRequest;
 import com.google.gdata.client.calendar.CalendarQuery;
 import com.google.gdata.client.calendar.CalendarService;
 import com.google.gdata.data.DateTime;
+import com.google.gdata.data.Link;
+import com.google.gdata.data.batch.BatchOperationType;
+import com.google.gdata.data.batch.BatchStatus;
+import com.google.gdata.data.batch.BatchUtils;
 import com.google.gdata.data.calendar.CalendarEventEntry;
 import com.google.gdata.data.calendar.CalendarEventFeed;
-import com.google.gdata.util.AuthenticationException;
+import com.google.gdata.data.extensions.ExtendedProperty;
+import com.google.gdata.util.NotModifiedException;
+import com.google.gdata.util.PreconditionFailedException;
 import com.google.gdata.util.ServiceException;
 
 public class GcalendarServiceImpl extends AbstractOpenEngSBConnectorService implements AppointmentDomain {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(GcalendarServiceImpl.class);
 
-    private PersistInterface persistInterface;
+    static final String DEFAULT_FEED_URL = "https://www.google.com/calendar/feeds/default/private/full";
 
-    private AliveState state = AliveState.DISCONNECTED;
-    private String googleUser;
-    private String googlePassword;
+    /**
+     * partial response projection of the fields listing appointments needs, plus the link to the next page
+     */
+    static final String LEAN_FIELDS =
+        "link[@rel='next'],entry(link[@rel='edit'],title,content,gd:where,gd:when,gd:eventStatus)";
+    static final String BUSY_FIELDS = "link[@rel='next'],entry(gd:when,gd:transparency,gd:eventStatus)";
+    static final String FREE_BUSY_PROJECTION = "free-busy";
+
+    /**
+     * the recurring masters and the exceptions of a calendar, with what expanding their occurrences needs
+     */
+    static final String RECURRENCE_FIELDS = "link[@rel='next'],entry[gd:recurrence or gd:originalEvent]"
+        + "(link[@rel='edit'],title,content,gd:where,gd:recurrence,gd:originalEvent)";
+
+    /**
+     * like {@link #LEAN_FIELDS}, but without the recurring masters, whose occurrences are expanded locally
+     */
+    static final String LEAN_SINGLE_FIELDS =
+        "link[@rel='next'],entry[not(gd:recurrence)]"
+            + "(link[@rel='edit'],title,content,gd:where,gd:when,gd:eventStatus)";
+    static final String SINGLE_FIELDS = "link[@rel='next'],entry[not(gd:recurrence)]";
+
+    private static final String CALENDAR_FEED_URL = "https://www.google.com/calendar/feeds/%s/private/full";
+
+    /**
+     * google does not accept more than 50 operations within one batch request
+     */
+    static final int DEFAULT_BATCH_SIZE = 50;
+
+    static final int DEFAULT_PAGE_SIZE = 250;
+
+    /**
+     * If-Match value that makes google accept a write regardless of the current version of the entry
+     */
+    private static final String FORCE_OVERWRITE = "*";
 
-    private CalendarService service;
+    /**
+     * appointments created in write-behind mode get an id with this prefix until google assigned them one
+     */
+    static final String LOCAL_ID_PREFIX = "local:";
+
+    /**
+     * extended property holding the local id, it identifies entries whose insert may have been sent twice
+     */
+    private static final String LOCAL_ID_PROPERTY = "openengsb.localId";
+
+    private volatile String googleUser;
+    private volatile String googlePassword;
+
+    private volatile String feedUrl = DEFAULT_FEED_URL;
+    private volatile List<String> feedUrls = Collections.singletonList(DEFAULT_FEED_URL);
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int pageSize = DEFAULT_PAGE_SIZE;
+    private volatile boolean optimisticWrites;
+    private volatile boolean streamingParser;
+    private volatile boolean leanQueries;
+    private volatile boolean recurrenceExpansion;
+
+    private volatile CalendarSession session = new CalendarSession();
+    private final RequestExecutor requestExecutor = new RequestExecutor(session);
+    private final AppointmentEntryCache entryCache = new AppointmentEntryCache();
+    private final CalendarSyncEngine syncEngine = new CalendarSyncEngine();
+    private volatile File checkpointFile;
+    private volatile AppointmentIndex index;
+    private volatile long indexBuiltAt;
+    private volatile long maxIndexStaleness;
+    private final FeedTraffic feedTraffic = new FeedTraffic();
+    private final AsyncExecutor asyncExecutor;
+    private final AsyncExecutor queryExecutor;
+    private final ConnectorMetrics metrics;
+    private final SingleFlight<String, Appointment> loadFlights =
+        new SingleFlight<String, Appointment>(new SingleFlight.Copier<Appointment>() {
+            @Override
+            public Appointment copy(Appointment value) {
+                return AppointmentConverter.copyAppointment(value);
+            }
+        });
+    private final SingleFlight<List<Object>, ArrayList<Appointment>> queryFlights =
+        new SingleFlight<List<Object>, ArrayList<Appointment>>(new SingleFlight.Copier<ArrayList<Appointment>>() {
+            @Override
+            public ArrayList<Appointment> copy(ArrayList<Appointment> value) {
+                ArrayList<Appointment> copy = new ArrayList<Appointment>(value.size());
+                for (Appointment appointment : value) {
+                    copy.add(AppointmentConverter.copyAppointment(appointment));
+                }
+                return copy;
+            }
+        });
+    private final RecurrenceCache recurrenceCache = new RecurrenceCache(new RecurrenceCache.Loader() {
+        @Override
+        public Iterator<CalendarEventEntry> load(String feed) {
+            CalendarQuery query = createQuery(feed, null, null, null);
+            query.setStringCustomParameter("fields", RECURRENCE_FIELDS);
+            return searchForEntries(query);
+        }
+    });
+    private final ChangeWatcher changeWatcher = new ChangeWatcher(new ChangeWatcher.Check() {
+        @Override
+        public boolean check() {
+            return !synchronize(true).isEmpty();
+        }
+    });
+    private volatile long sliceLength;
+    private volatile ExecutorService prefetchExecutor;
+    private volatile WriteJournal journal;
+    private volatile JournalReplayer journalReplayer;
+    private ScheduledExecutorService scheduler;
+    private final EkbCommitPipeline commitPipeline = new EkbCommitPipeline(new EkbCommitPipeline.CommitFactory() {
+        @Override
+        public EKBCommit createCommit() {
+            return createEKBCommit();
+        }
+    });
 
     public GcalendarServiceImpl(String id) {
         super(id);
+        asyncExecutor = new AsyncExecutor("gcalendar-" + id);
+        queryExecutor = new AsyncExecutor("gcalendar-" + id + "-query");
+        metrics = new ConnectorMetrics(id);
+        requestExecutor.setMetrics(metrics);
+        session.setMetrics(metrics);
+        commitPipeline.setMetrics(metrics);
+        metrics.setCommitPipeline(commitPipeline);
+        metrics.setEntryCache(entryCache);
+        metrics.setRequestExecutor(requestExecutor);
+        metrics.setSingleFlight(ConnectorMetrics.Phase.LOAD, loadFlights);
+        metrics.setSingleFlight(ConnectorMetrics.Phase.QUERY, queryFlights);
+        requestExecutor.getCircuitBreaker().setProbe(new CircuitBreaker.Probe() {
+            @Override
+            public void probe() throws Exception {
+                probeGoogle();
+            }
+        });
+        session.setHost(hostOf(feedUrl));
     }
 
     @Override
     public String createAppointment(Appointment appointment) {
+        WriteJournal currentJournal = journal;
+        if (currentJournal != null) {
+            String localId = LOCAL_ID_PREFIX + UUID.randomUUID();
+            appointment.setId(localId);
+            appendToJournal(currentJournal, WriteJournal.Operation.INSERT, appointment);
+            return localId;
+        }
+        String id = insertAppointment(appointment, null, false);
+        commitPipeline.flushIfDue();
+        return id;
+    }
+
+    /**
+     * sends the appointment to google. Appointments created by the write-behind journal carry their local id, so an
+     * insert that may have reached google already is looked up instead of being sent a second time.
+     */
+    private String insertAppointment(Appointment appointment, String localId, boolean uncertain) {
         String id = null;
+        long begin = System.nanoTime();
+        syncEngine.beginWrite();
         try {
-            login();
-            URL postUrl =
-                new URL("https://www.google.com/calendar/feeds/default/private/full");
-            CalendarEventEntry myEntry = AppointmentConverter.convertAppointmentToCalendarEventEntry(appointment);
+            if (uncertain) {
+                CalendarEventEntry existing = findEntryByLocalId(localId);
+                if (existing != null) {
+                    LOGGER.info("appointment {} was created before as {}", localId, existing.getEditLink().getHref());
+                    return insertedEntry(appointment, existing);
+                }
+            }
+            final URL postUrl = new URL(feedUrl);
+            final CalendarEventEntry myEntry = toEntry(appointment);
+            if (localId != null) {
+                ExtendedProperty property = new ExtendedProperty();
+                property.setName(LOCAL_ID_PROPERTY);
+                property.setValue(localId);
+                myEntry.addExtendedProperty(property);
+            }
 
-            // Send the request and receive the response:
-            CalendarEventEntry insertedEntry = service.insert(postUrl, myEntry);
-            id = insertedEntry.getEditLink().getHref();
+            // Send the request and receive the response, a lost response must not lead to a duplicate entry
+            CalendarEventEntry insertedEntry = execute(new CalendarSession.Operation<CalendarEventEntry>() {
+                @Override
+                public CalendarEventEntry execute(CalendarService service) throws IOException, ServiceException {
+                    return service.insert(postUrl, myEntry);
+                }
+            }, false);
+            id = insertedEntry(appointment, insertedEntry);
             LOGGER.info("Successfully created appointment {}", id);
-            appointment.setId(id);
-
-            EKBCommit commit = createEKBCommit().addInsert(appointment);
-            persistInterface.commit(commit);
         } catch (MalformedURLException e) {
             // should never be thrown since the URL is static
             throw new DomainMethodExecutionException("invalid URL", e);
@@ -84,55 +278,401 @@ public class GcalendarServiceImpl extends AbstractOpenEngSBConnectorService impl
         } catch (ServiceException e) {
             throw new DomainMethodExecutionException("unable to insert the appointment", e);
         } finally {
-            this.state = AliveState.DISCONNECTED;
+            syncEngine.endWrite();
+            metrics.record(ConnectorMetrics.Phase.INSERT, begin);
         }
         return id;
     }
 
+    private String insertedEntry(Appointment appointment, CalendarEventEntry insertedEntry) {
+        String id = idOf(insertedEntry.getEditLink().getHref());
+        appointment.setId(id);
+        entryCache.put(id, insertedEntry);
+        written();
+        recordWrite(insertedEntry);
+
+        commitPipeline.insert(appointment);
+        return id;
+    }
+
+    private CalendarEventEntry findEntryByLocalId(String localId) {
+        CalendarQuery query = createQuery(feedUrl, null, null, null);
+        query.setStringCustomParameter("extq", "[" + LOCAL_ID_PROPERTY + ":" + localId + "]");
+        Iterator<CalendarEventEntry> entries = searchForEntries(query);
+        return entries.hasNext() ? entries.next() : null;
+    }
+
     @Override
     public void updateAppointment(Appointment appointment) {
-        login();
-        CalendarEventEntry entry = getAppointmentEntry(appointment);
-        AppointmentConverter.extendCalendarEventEntryWithAppointment(entry, appointment);
+        WriteJournal currentJournal = journal;
+        if (currentJournal != null) {
+            appendToJournal(currentJournal, WriteJournal.Operation.UPDATE, appointment);
+            return;
+        }
+        modifyAppointment(appointment);
+        commitPipeline.flushIfDue();
+    }
+
+    private void modifyAppointment(Appointment appointment) {
+        appointment.setId(canonicalId(appointment.getId()));
+        long begin = System.nanoTime();
+        syncEngine.beginWrite();
         try {
-            URL editUrl = new URL(entry.getEditLink().getHref());
-            service.update(editUrl, entry);
+            CalendarEventEntry updatedEntry;
+            if (optimisticWrites) {
+                updatedEntry = updateOptimistically(appointment);
+            } else {
+                updatedEntry = updateEntry(appointment, getAppointmentEntry(appointment));
+            }
+            entryCache.put(appointment.getId(), updatedEntry);
+            written();
+            recurrenceCache.invalidate(appointment.getId());
+            recordWrite(updatedEntry);
 
-            EKBCommit commit = createEKBCommit().addUpdate(appointment);
-            persistInterface.commit(commit);
+            commitPipeline.update(appointment);
         } catch (MalformedURLException e) {
-            // should never be thrown since the url is provided by google
-            throw new DomainMethodExecutionException("invalid URL", e);
+            throw new DomainMethodExecutionException("invalid id " + appointment.getId(), e);
         } catch (IOException e) {
             throw new DomainMethodExecutionException("unable to connect to the google server", e);
         } catch (ServiceException e) {
             throw new DomainMethodExecutionException("unable to update the appointment", e);
         } finally {
-            this.state = AliveState.DISCONNECTED;
+            syncEngine.endWrite();
+            metrics.record(ConnectorMetrics.Phase.UPDATE, begin);
         }
     }
 
     @Override
     public void deleteAppointment(String id) {
+        Appointment appointment = new Appointment();
+        appointment.setId(id);
+        WriteJournal currentJournal = journal;
+        if (currentJournal != null) {
+            appendToJournal(currentJournal, WriteJournal.Operation.DELETE, appointment);
+            return;
+        }
+        removeAppointment(appointment);
+        commitPipeline.flushIfDue();
+    }
+
+    private void removeAppointment(Appointment appointment) {
+        appointment.setId(canonicalId(appointment.getId()));
+        long begin = System.nanoTime();
+        syncEngine.beginWrite();
         try {
-            login();
-            Appointment appointment = new Appointment();
-            appointment.setId(id);
+            if (optimisticWrites) {
+                deleteOptimistically(appointment);
+            } else {
+                CalendarEventEntry entry = getAppointmentEntry(appointment);
+                deleteEntry(new URL(entry.getEditLink().getHref()), entry.getEtag());
+            }
 
-            CalendarEventEntry entry = getAppointmentEntry(appointment);
-            entry.delete();
+            written();
+            recurrenceCache.invalidate(appointment.getId());
+            recordDelete(appointment.getId());
 
-            EKBCommit commit = createEKBCommit().addDelete(appointment);
-            persistInterface.commit(commit);
+            commitPipeline.delete(appointment);
+        } catch (MalformedURLException e) {
+            throw new DomainMethodExecutionException("invalid id " + appointment.getId(), e);
         } catch (IOException e) {
             throw new DomainMethodExecutionException("unable to connect to google", e);
         } catch (ServiceException e) {
             throw new DomainMethodExecutionException("unable to delete the appointment", e);
         } finally {
-            this.state = AliveState.DISCONNECTED;
+            syncEngine.endWrite();
+            metrics.record(ConnectorMetrics.Phase.DELETE, begin);
+        }
+    }
+
+    /**
+     * records the write in the journal and lets the replayer send it to google. Ids google assigned to appointments
+     * that were created with a local id are filled in already.
+     */
+    private void appendToJournal(WriteJournal currentJournal, WriteJournal.Operation operation,
+            Appointment appointment) {
+        Appointment journaled = AppointmentConverter.copyAppointment(appointment);
+        journaled.setId(canonicalId(appointment.getId()));
+        String id = journaled.getId();
+        if (operation != WriteJournal.Operation.INSERT && id != null && id.startsWith(LOCAL_ID_PREFIX)
+                && !currentJournal.isKnown(id)) {
+            // the alias expired, replaying the write would fail and drop it silently
+            throw new DomainMethodExecutionException("unknown appointment " + id,
+                new IllegalArgumentException("local ids expire, the id committed to the EKB has to be used"));
+        }
+        try {
+            currentJournal.append(operation, journaled);
+        } catch (IOException e) {
+            throw new DomainMethodExecutionException("unable to write the journal", e);
+        }
+        journalReplayer.trigger();
+    }
+
+    /**
+     * the changes of a replayed write are committed to the EKB right away. The write itself is done, so a failed
+     * commit is only logged; with a flush interval the changes stay in the commit pipeline for the next flush.
+     */
+    private void flushReplayedChanges() {
+        try {
+            commitPipeline.flushIfDue();
+        } catch (RuntimeException e) {
+            LOGGER.warn("unable to commit replayed changes to the EKB", e);
+        }
+    }
+
+    /**
+     * writes the appointment into the given entry and sends it to google, guarded by the ETag of the entry
+     */
+    private CalendarEventEntry updateEntry(Appointment appointment, final CalendarEventEntry entry)
+        throws IOException, ServiceException {
+        writeIntoEntry(entry, appointment);
+        final URL editUrl = new URL(entry.getEditLink().getHref());
+        return execute(new CalendarSession.Operation<CalendarEventEntry>() {
+            @Override
+            public CalendarEventEntry execute(CalendarService service) throws IOException, ServiceException {
+                return service.update(editUrl, entry);
+            }
+        });
+    }
+
+    /**
+     * sends the update without loading the entry first if it is cached, guarded by the cached ETag. An entry that is
+     * not cached is loaded first, an update only carries the fields of the appointment and would drop everything else
+     * google knows about the entry. If the entry was changed in the meantime, the current version is loaded and the
+     * update is applied to it.
+     */
+    private CalendarEventEntry updateOptimistically(Appointment appointment) throws IOException, ServiceException {
+        try {
+            final CalendarEventEntry entry = entryCache.take(appointment.getId());
+            if (entry == null) {
+                return updateEntry(appointment, getAppointmentEntry(appointment));
+            }
+            final URL editUrl = new URL(entry.getEditLink().getHref());
+            writeIntoEntry(entry, appointment);
+            return execute(new CalendarSession.Operation<CalendarEventEntry>() {
+                @Override
+                public CalendarEventEntry execute(CalendarService service) throws IOException, ServiceException {
+                    return service.update(editUrl, entry, entry.getEtag());
+                }
+            });
+        } catch (PreconditionFailedException e) {
+            LOGGER.debug("appointment {} was modified concurrently, updating the current version", appointment.getId());
+            return updateEntry(appointment, getAppointmentEntry(appointment));
+        }
+    }
+
+    private void deleteEntry(final URL editUrl, final String etag) throws IOException, ServiceException {
+        execute(new CalendarSession.Operation<Void>() {
+            @Override
+            public Void execute(CalendarService service) throws IOException, ServiceException {
+                service.delete(editUrl, etag);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * deletes the entry without loading it first, guarded by the cached ETag if there is one
+     */
+    private void deleteOptimistically(Appointment appointment) throws IOException, ServiceException {
+        CalendarEventEntry cached = entryCache.take(appointment.getId());
+        try {
+            if (cached != null) {
+                deleteEntry(new URL(cached.getEditLink().getHref()), cached.getEtag());
+            } else {
+                deleteEntry(entryUrl(appointment.getId()), FORCE_OVERWRITE);
+            }
+        } catch (PreconditionFailedException e) {
+            LOGGER.debug("appointment {} was modified concurrently, deleting the current version", appointment.getId());
+            CalendarEventEntry entry = getAppointmentEntry(appointment);
+            deleteEntry(new URL(entry.getEditLink().getHref()), entry.getEtag());
+        }
+    }
+
+    /**
+     * creates all given appointments using as few batch requests as possible. The ids of the successfully created
+     * appointments are set and all of them are committed to the EKB at once.
+     */
+    public List<AppointmentBatchResult> createAppointments(List<Appointment> appointments) {
+        List<CalendarEventEntry> entries = new ArrayList<CalendarEventEntry>();
+        for (Appointment appointment : appointments) {
+            entries.add(toEntry(appointment));
+        }
+        return executeBatch(BatchOperationType.INSERT, appointments, entries);
+    }
+
+    /**
+     * updates all given appointments using as few batch requests as possible
+     */
+    public List<AppointmentBatchResult> updateAppointments(List<Appointment> appointments) {
+        List<CalendarEventEntry> entries = new ArrayList<CalendarEventEntry>();
+        for (Appointment appointment : appointments) {
+            appointment.setId(canonicalId(appointment.getId()));
+            CalendarEventEntry entry;
+            try {
+                entry = getAppointmentEntry(appointment);
+            } catch (DomainMethodExecutionException e) {
+                LOGGER.warn("unable to load appointment {} for batch update", appointment.getId());
+                entry = null;
+            }
+            if (entry != null) {
+                writeIntoEntry(entry, appointment);
+            }
+            entries.add(entry);
+        }
+        return executeBatch(BatchOperationType.UPDATE, appointments, entries);
+    }
+
+    /**
+     * deletes all appointments with the given ids using as few batch requests as possible
+     */
+    public List<AppointmentBatchResult> deleteAppointments(List<String> ids) {
+        List<Appointment> appointments = new ArrayList<Appointment>();
+        List<CalendarEventEntry> entries = new ArrayList<CalendarEventEntry>();
+        for (String id : ids) {
+            Appointment appointment = new Appointment();
+            appointments.add(appointment);
+            if (id == null || id.trim().isEmpty()) {
+                LOGGER.warn("missing id for batch delete");
+                appointment.setId(id);
+                entries.add(null);
+                continue;
+            }
+            appointment.setId(canonicalId(id));
+
+            // the edit link is all google needs to delete an entry, so there is no need to load it first
+            String editUrl;
+            try {
+                editUrl = entryUrl(appointment.getId()).toString();
+            } catch (MalformedURLException e) {
+                LOGGER.warn("invalid id {} for batch delete", id);
+                entries.add(null);
+                continue;
+            }
+            CalendarEventEntry entry = new CalendarEventEntry();
+            entry.setId(editUrl);
+            entry.addLink(Link.Rel.ENTRY_EDIT, Link.Type.ATOM, editUrl);
+            entries.add(entry);
+        }
+        return executeBatch(BatchOperationType.DELETE, appointments, entries);
+    }
+
+    /**
+     * sends the entries to the batch feed in chunks of at most batchSize operations. Entries that are null are
+     * reported as failed without contacting the server.
+     */
+    private List<AppointmentBatchResult> executeBatch(BatchOperationType type, List<Appointment> appointments,
+            List<CalendarEventEntry> entries) {
+        long begin = System.nanoTime();
+        syncEngine.beginWrite();
+        try {
+            return executeBatchChunks(type, appointments, entries);
+        } finally {
+            syncEngine.endWrite();
+            metrics.record(ConnectorMetrics.Phase.BATCH, begin);
+        }
+    }
+
+    private List<AppointmentBatchResult> executeBatchChunks(BatchOperationType type, List<Appointment> appointments,
+            List<CalendarEventEntry> entries) {
+        AppointmentBatchResult[] results = new AppointmentBatchResult[appointments.size()];
+        List<Integer> pending = new ArrayList<Integer>();
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i) == null) {
+                String reason = type == BatchOperationType.DELETE ? "invalid appointment id"
+                    : "unable to load the appointment";
+                results[i] = AppointmentBatchResult.failed(appointments.get(i), reason);
+            } else {
+                pending.add(i);
+            }
+        }
+
+        for (int from = 0; from < pending.size(); from += batchSize) {
+            List<Integer> chunk = pending.subList(from, Math.min(from + batchSize, pending.size()));
+            executeBatchChunk(type, appointments, entries, chunk, results);
+        }
+
+        boolean modified = false;
+        for (AppointmentBatchResult result : results) {
+            if (!result.isSuccess()) {
+                continue;
+            }
+            modified = true;
+            if (type == BatchOperationType.INSERT) {
+                commitPipeline.insert(result.getAppointment());
+            } else if (type == BatchOperationType.UPDATE) {
+                commitPipeline.update(result.getAppointment());
+                recurrenceCache.invalidate(result.getAppointment().getId());
+            } else {
+                commitPipeline.delete(result.getAppointment());
+                recurrenceCache.invalidate(result.getAppointment().getId());
+            }
+        }
+        if (modified) {
+            written();
+            commitPipeline.flushIfDue();
+        }
+        return Arrays.asList(results);
+    }
+
+    private void executeBatchChunk(BatchOperationType type, List<Appointment> appointments,
+            List<CalendarEventEntry> entries, List<Integer> chunk, AppointmentBatchResult[] results) {
+        final CalendarEventFeed request = new CalendarEventFeed();
+        for (Integer index : chunk) {
+            CalendarEventEntry entry = entries.get(index);
+            BatchUtils.setBatchId(entry, String.valueOf(index));
+            BatchUtils.setBatchOperationType(entry, type);
+            request.getEntries().add(entry);
+        }
+
+        CalendarEventFeed response;
+        try {
+            final URL batchUrl = new URL(feedUrl + "/batch");
+            response = execute(new CalendarSession.Operation<CalendarEventFeed>() {
+                @Override
+                public CalendarEventFeed execute(CalendarService service) throws IOException, ServiceException {
+                    return service.batch(batchUrl, request);
+                }
+            }, type != BatchOperationType.INSERT);
+        } catch (IOException e) {
+            LOGGER.warn("batch request failed, unable to connect to the google server", e);
+            for (Integer index : chunk) {
+                results[index] = AppointmentBatchResult.failed(appointments.get(index), e.getMessage());
+            }
+            return;
+        } catch (ServiceException e) {
+            LOGGER.warn("batch request was rejected by the google server", e);
+            for (Integer index : chunk) {
+                results[index] = new AppointmentBatchResult(appointments.get(index), false,
+                    e.getHttpErrorCodeOverride(), e.getMessage());
+            }
+            return;
+        }
+
+        for (CalendarEventEntry entry : response.getEntries()) {
+            int index = Integer.parseInt(BatchUtils.getBatchId(entry));
+            Appointment appointment = appointments.get(index);
+            BatchStatus status = BatchUtils.getBatchStatus(entry);
+            boolean success = BatchUtils.isSuccess(entry);
+            if (success && type == BatchOperationType.INSERT) {
+                appointment.setId(idOf(entry.getEditLink().getHref()));
+            }
+            if (success && type == BatchOperationType.DELETE) {
+                entryCache.invalidate(appointment.getId());
+                recordDelete(appointment.getId());
+            } else if (success) {
+                entryCache.put(appointment.getId(), entry);
+                recordWrite(entry);
+            }
+            results[index] = new AppointmentBatchResult(appointment, success, status.getCode(), status.getReason());
+        }
+        for (Integer index : chunk) {
+            if (results[index] == null) {
+                // google stops processing a batch after certain errors, the remaining items are not answered
+                results[index] = AppointmentBatchResult.failed(appointments.get(index), "batch was interrupted");
+            }
         }
     }
-    
+
     private EKBCommit createEKBCommit() {
         EKBCommit commit = new EKBCommit();
         commit.setDomainId(domainId).setConnectorId(connectorId).setInstanceId(instanceId);
@@ -141,109 +681,1312 @@ public class GcalendarServiceImpl extends AbstractOpenEngSBConnectorService impl
 
     @Override
     public Appointment loadAppointment(String id) {
-        Appointment appointment = new Appointment();
-        appointment.setId(id);
-        CalendarEventEntry entry = getAppointmentEntry(appointment);
-        return AppointmentConverter.convertCalendarEventEntryToAppointment(entry);
+        final Appointment appointment = new Appointment();
+        appointment.setId(canonicalId(id));
+        long begin = System.nanoTime();
+        try {
+            return loadFlights.execute(appointment.getId(), new Callable<Appointment>() {
+                @Override
+                public Appointment call() {
+                    return readAppointment(appointment);
+                }
+            });
+        } finally {
+            metrics.record(ConnectorMetrics.Phase.LOAD, begin);
+        }
+    }
+
+    private CalendarEventEntry toEntry(Appointment appointment) {
+        long begin = System.nanoTime();
+        try {
+            return AppointmentConverter.convertAppointmentToCalendarEventEntry(appointment);
+        } finally {
+            metrics.record(ConnectorMetrics.Phase.CONVERSION, begin);
+        }
+    }
+
+    private void writeIntoEntry(CalendarEventEntry entry, Appointment appointment) {
+        long begin = System.nanoTime();
+        try {
+            AppointmentConverter.extendCalendarEventEntryWithAppointment(entry, appointment);
+        } finally {
+            metrics.record(ConnectorMetrics.Phase.CONVERSION, begin);
+        }
+    }
+
+    private Appointment toAppointment(CalendarEventEntry entry) {
+        long begin = System.nanoTime();
+        try {
+            return AppointmentConverter.convertCalendarEventEntryToAppointment(entry);
+        } finally {
+            metrics.record(ConnectorMetrics.Phase.CONVERSION, begin);
+        }
+    }
+
+    /**
+     * loads an appointment from the server for reading. If the entry is cached it is only revalidated with a
+     * conditional request, so an unchanged entry costs a 304 instead of a full download. The cached entry itself is
+     * never handed out, writers modify it once they took it out of the cache.
+     */
+    private Appointment readAppointment(Appointment appointment) {
+        String id = appointment.getId();
+        if (id == null) {
+            LOGGER.error("given appointment has no id");
+            return null;
+        }
+        AppointmentEntryCache.Cached cached = entryCache.get(id);
+        CalendarEventEntry entry = fetchEntry(id, cached == null ? null : cached.getEtag());
+        if (entry == null) {
+            return cached.getAppointment();
+        }
+        Appointment result = toAppointment(entry);
+        entryCache.put(id, entry);
+        return result;
     }
 
     /**
-     * loads an appointment from the server
+     * loads an entry from the server for modification. The entry is taken out of the cache until the modification was
+     * accepted by google, if it is cached it is only revalidated with a conditional request.
      */
     private CalendarEventEntry getAppointmentEntry(Appointment appointment) {
+        String id = appointment.getId();
+        if (id == null) {
+            LOGGER.error("given appointment has no id");
+            return null;
+        }
+        CalendarEventEntry cached = entryCache.take(id);
+        CalendarEventEntry entry = fetchEntry(id, cached == null ? null : cached.getEtag());
+        return entry == null ? cached : entry;
+    }
+
+    /**
+     * loads an entry from the server, only if it no longer has the given ETag if there is one. Returns null if the
+     * entry did not change.
+     */
+    private CalendarEventEntry fetchEntry(String id, final String etag) {
         try {
-            if (appointment.getId() != null) {
-                CalendarEventEntry entry =
-                    (CalendarEventEntry) service.getEntry(new URL(appointment.getId()), CalendarEventEntry.class);
+            final URL entryUrl = entryUrl(id);
+            if (etag == null) {
+                entryCache.recordMiss();
+                return execute(new CalendarSession.Operation<CalendarEventEntry>() {
+                    @Override
+                    public CalendarEventEntry execute(CalendarService service) throws IOException, ServiceException {
+                        return service.getEntry(entryUrl, CalendarEventEntry.class);
+                    }
+                });
+            }
+            try {
+                CalendarEventEntry entry = execute(new CalendarSession.Operation<CalendarEventEntry>() {
+                    @Override
+                    public CalendarEventEntry execute(CalendarService service) throws IOException, ServiceException {
+                        return service.getEntry(entryUrl, CalendarEventEntry.class, etag);
+                    }
+                });
+                entryCache.recordRevalidation();
                 return entry;
-            } else {
-                LOGGER.error("given appointment has no id");
+            } catch (NotModifiedException e) {
+                entryCache.recordHit();
+                return null;
             }
         } catch (MalformedURLException e) {
-            throw new DomainMethodExecutionException("invalid id, id must be an url to contact", e);
+            throw new DomainMethodExecutionException("invalid id " + id, e);
         } catch (IOException e) {
             throw new DomainMethodExecutionException("unable to connect to the google server", e);
         } catch (ServiceException e) {
+            entryCache.invalidate(id);
             throw new DomainMethodExecutionException("unable to retrieve the appointment", e);
         }
-        return null;
     }
 
     /**
-     * searches for entries. Every parameter is only taken into concern if not null
+     * the id the appointment is known by internally. Local ids of the journal are replaced by the id google assigned,
+     * urls handed out by earlier versions of the connector by the compact id if they point into a configured calendar.
      */
-    private List<CalendarEventEntry> searchForEntries(Date start, Date end, String text) {
-        try {
-            URL feedUrl = new URL("https://www.google.com/calendar/feeds/default/private/full");
-            CalendarQuery myQuery = new CalendarQuery(feedUrl);
-            if (start != null) {
-                myQuery.setMinimumStartTime(new DateTime(start.getTime()));
-            }
-            if (end != null) {
-                myQuery.setMaximumStartTime(new DateTime(end.getTime()));
-            }
-            if (text != null) {
-                myQuery.setFullTextQuery(text);
-            }
-            CalendarEventFeed resultFeed = service.query(myQuery, CalendarEventFeed.class);
-            return resultFeed.getEntries();
-        } catch (MalformedURLException e) {
-            // should never be thrown since the URL is static
-            throw new DomainMethodExecutionException("invalid URL", e);
-        } catch (IOException e) {
-            throw new DomainMethodExecutionException("unable to connect to the google server", e);
-        } catch (ServiceException e) {
-            throw new DomainMethodExecutionException("unable to insert the appointment", e);
+    private String canonicalId(String id) {
+        WriteJournal currentJournal = journal;
+        String resolved = currentJournal == null || id == null ? id : currentJournal.resolve(id);
+        if (resolved == null || !AppointmentIds.isUrl(resolved)) {
+            return resolved;
         }
+        return idOf(resolved);
     }
 
-    @Override
-    public ArrayList<Appointment> getAppointments(Date start, Date end) {
-        login();
-        ArrayList<Appointment> appointments = new ArrayList<Appointment>();
+    /**
+     * the id handed out for the entry with the given edit link, the compact id if the entry can be found by it
+     */
+    private String idOf(String editLink) {
+        String compact = AppointmentIds.fromEditLink(editLink);
+        return feedOf(compact) == null ? editLink : compact;
+    }
 
-        for (CalendarEventEntry entry : searchForEntries(start, end, null)) {
-            Appointment appointment = AppointmentConverter.convertCalendarEventEntryToAppointment(entry);
-            appointments.add(appointment);
+    /**
+     * the url of the entry with the given id. Compact ids are resolved with the feed of their calendar, urls are used
+     * as they are.
+     */
+    private URL entryUrl(String id) throws MalformedURLException {
+        if (AppointmentIds.isUrl(id)) {
+            return new URL(id);
         }
-        this.state = AliveState.DISCONNECTED;
-
-        return appointments;
+        String feed = feedOf(id);
+        if (feed == null) {
+            throw new MalformedURLException("no calendar feed holds appointment " + id);
+        }
+        return new URL(feed + "/" + AppointmentIds.getEventId(id));
     }
 
-    @Override
-    public AliveState getAliveState() {
-        return this.state;
+    /**
+     * the feed of the calendar of the compact id. That is the configured feed of the calendar, or else one built like
+     * the configured feeds, since the calendar of an entry may be named differently than the feed it was read from,
+     * e.g. by the address of the user instead of {@code default}. Null if the id is no compact id.
+     */
+    private String feedOf(String id) {
+        String calendar = AppointmentIds.getCalendarKeyOf(id);
+        if (calendar == null) {
+            return null;
+        }
+        List<String> feeds = feedUrls;
+        for (String feed : feeds) {
+            if (calendar.equals(AppointmentIds.getCalendarKey(feed))) {
+                return feed;
+            }
+        }
+        for (String feed : feeds) {
+            String built = AppointmentIds.toFeedUrl(feed, calendar);
+            if (built != null) {
+                return built;
+            }
+        }
+        return null;
     }
 
-    private void login() {
+    /**
+     * creates a query on the given feed. Every parameter is only taken into concern if not null
+     */
+    private CalendarQuery createQuery(String feed, Date start, Date end, String text) {
+        CalendarQuery myQuery;
         try {
-            service = new CalendarService("OPENENGSB");
-            service.setUserCredentials(googleUser, googlePassword);
-            this.state = AliveState.ONLINE;
-        } catch (AuthenticationException e) {
-            throw new DomainMethodExecutionException(
-                "unable to authenticate at google server, maybe wrong username and/or password?", e);
+            myQuery = new CalendarQuery(new URL(feed));
+        } catch (MalformedURLException e) {
+            // the configured calendars are checked when they are set
+            throw new DomainMethodExecutionException("invalid URL", e);
+        }
+        if (start != null) {
+            myQuery.setMinimumStartTime(new DateTime(start.getTime()));
+        }
+        if (end != null) {
+            myQuery.setMaximumStartTime(new DateTime(end.getTime()));
+        }
+        if (text != null) {
+            myQuery.setFullTextQuery(text);
         }
+        myQuery.setMaxResults(pageSize);
+        return myQuery;
     }
 
-    public String getGooglePassword() {
-        return googlePassword;
+    private Iterator<CalendarEventEntry> searchForEntries(final CalendarQuery myQuery) {
+        return new PagedEntryIterator<CalendarEventEntry>(new PagedEntryIterator.PageSource<CalendarEventEntry>() {
+            @Override
+            public FeedPage<CalendarEventEntry> fetch(final URL pageUrl) throws IOException, ServiceException {
+                CalendarEventFeed feed = execute(new CalendarSession.Operation<CalendarEventFeed>() {
+                    @Override
+                    public CalendarEventFeed execute(CalendarService service) throws IOException, ServiceException {
+                        if (pageUrl == null) {
+                            return service.query(myQuery, CalendarEventFeed.class);
+                        }
+                        return service.getFeed(pageUrl, CalendarEventFeed.class);
+                    }
+                });
+                Link next = feed.getNextLink();
+                return new FeedPage<CalendarEventEntry>(feed.getEntries(), next == null ? null : next.getHref());
+            }
+        }, prefetchExecutor);
     }
 
-    public void setGooglePassword(String googlePassword) {
-        this.googlePassword = googlePassword;
+    /**
+     * like {@link #searchForEntries(CalendarQuery)}, but the pages are parsed straight into appointments without
+     * building the entry model of the GData client
+     */
+    private Iterator<Appointment> streamAppointments(final CalendarQuery myQuery) {
+        return new PagedEntryIterator<Appointment>(new PagedEntryIterator.PageSource<Appointment>() {
+            @Override
+            public FeedPage<Appointment> fetch(final URL pageUrl) throws IOException, ServiceException {
+                return execute(new CalendarSession.Operation<FeedPage<Appointment>>() {
+                    @Override
+                    public FeedPage<Appointment> execute(CalendarService service)
+                        throws IOException, ServiceException {
+                        GDataRequest request = service.createFeedRequest(pageUrl == null ? myQuery.getUrl() : pageUrl);
+                        try {
+                            if (leanQueries) {
+                                request.setHeader("Accept-Encoding", "gzip");
+                            }
+                            request.execute();
+                            FeedTraffic.Page page = feedTraffic.open(request.getResponseStream());
+                            try {
+                                return AppointmentFeedParser.parse(page.getStream());
+                            } finally {
+                                page.finish();
+                                metrics.recordPayload(ConnectorMetrics.Phase.QUERY, page.getReceivedBytes());
+                            }
+                        } finally {
+                            request.end();
+                        }
+                    }
+                });
+            }
+        }, prefetchExecutor);
     }
 
-    public String getGoogleUser() {
-        return googleUser;
-    }
+    @Override
+    public ArrayList<Appointment> getAppointments(final Date start, final Date end) {
+        long begin = System.nanoTime();
+        try {
+            final List<String> feeds = feedUrls;
 
-    public void setGoogleUser(String googleUser) {
-        this.googleUser = googleUser;
+            AppointmentIndex current = index;
+            if (feeds.size() == 1 && current != null
+                    && System.currentTimeMillis() - indexBuiltAt <= maxIndexStaleness) {
+                ArrayList<Appointment> appointments = new ArrayList<Appointment>();
+                long from = start == null ? Long.MIN_VALUE : start.getTime();
+                long to = end == null ? Long.MAX_VALUE : end.getTime();
+                for (Appointment appointment : current.findOverlapping(from, to)) {
+                    appointments.add(AppointmentConverter.copyAppointment(appointment));
+                }
+                return appointments;
+            }
+
+            // dates are mutable, the key holds their instants
+            List<Object> key = Arrays.<Object>asList(feeds, start == null ? null : start.getTime(),
+                end == null ? null : end.getTime());
+            return queryFlights.execute(key, new Callable<ArrayList<Appointment>>() {
+                @Override
+                public ArrayList<Appointment> call() {
+                    return queryAppointments(feeds, start, end);
+                }
+            });
+        } finally {
+            metrics.record(ConnectorMetrics.Phase.QUERY, begin);
+        }
     }
 
-    public void setPersistInterface(PersistInterface persistInterface) {
-        this.persistInterface = persistInterface;
+    private ArrayList<Appointment> queryAppointments(List<String> feeds, Date start, Date end) {
+        if (recurrenceExpansion && start != null && end != null) {
+            List<RecurrenceCache.Masters> masters = new ArrayList<RecurrenceCache.Masters>(feeds.size());
+            boolean complete = true;
+            for (String feed : feeds) {
+                RecurrenceCache.Masters calendarMasters = recurrenceCache.get(feed);
+                masters.add(calendarMasters);
+                complete &= calendarMasters.isComplete();
+            }
+            if (complete) {
+                return expandAppointments(feeds, masters, start, end);
+            }
+        }
+
+        ArrayList<Appointment> appointments = new ArrayList<Appointment>();
+        if (feeds.size() > 1 || isSliced(start, end)) {
+            Collection<List<Appointment>> results = queryConcurrently(feeds, start, end, false).values();
+            appointments.addAll(AppointmentMerger.merge(new ArrayList<List<Appointment>>(results)));
+            return appointments;
+        }
+
+        Iterator<Appointment> iterator = iterateAppointments(feeds.get(0), start, end, false);
+        while (iterator.hasNext()) {
+            appointments.add(iterator.next());
+        }
+        return appointments;
+    }
+
+    /**
+     * queries only the single appointments and the exceptions of recurring events from google and adds the
+     * occurrences of the recurring masters, which are expanded from the cached rules
+     */
+    private ArrayList<Appointment> expandAppointments(List<String> feeds, List<RecurrenceCache.Masters> masters,
+            Date start, Date end) {
+        List<List<Appointment>> results = new ArrayList<List<Appointment>>(feeds.size() * 2);
+        Map<String, List<Appointment>> queried = queryConcurrently(feeds, start, end, true);
+        for (int i = 0; i < feeds.size(); i++) {
+            RecurrenceCache.Masters calendarMasters = masters.get(i);
+            List<Appointment> single = new ArrayList<Appointment>();
+            for (Appointment appointment : queried.get(feeds.get(i))) {
+                // google leaves the masters out already, a master must not show up a second time in any case
+                if (!calendarMasters.isMaster(appointment.getId())) {
+                    single.add(appointment);
+                }
+            }
+            results.add(single);
+            List<Appointment> occurrences = new ArrayList<Appointment>();
+            long begin = System.nanoTime();
+            calendarMasters.expand(start.getTime(), end.getTime(), occurrences);
+            metrics.record(ConnectorMetrics.Phase.EXPANSION, begin);
+            results.add(occurrences);
+        }
+        return new ArrayList<Appointment>(AppointmentMerger.merge(results));
+    }
+
+    /**
+     * queries all calendars of this instance concurrently and returns the appointments of each of them, keyed by the
+     * feed url of the calendar in the configured order
+     */
+    public Map<String, List<Appointment>> getAppointmentsByCalendar(Date start, Date end) {
+        return queryConcurrently(feedUrls, start, end, false);
+    }
+
+    private boolean isSliced(Date start, Date end) {
+        long length = sliceLength;
+        return length > 0 && start != null && end != null && end.getTime() - start.getTime() > length;
+    }
+
+    /**
+     * queries the given feeds concurrently, wide ranges in slices of sliceLength. Appointments that overlap several
+     * slices are returned by each of them, the merged result of a feed contains them only once.
+     */
+    private Map<String, List<Appointment>> queryConcurrently(List<String> feeds, Date start, Date end,
+            boolean withoutMasters) {
+        Map<String, List<Future<List<Appointment>>>> pending =
+            new LinkedHashMap<String, List<Future<List<Appointment>>>>();
+        for (String feed : feeds) {
+            List<Future<List<Appointment>>> slices = new ArrayList<Future<List<Appointment>>>();
+            if (isSliced(start, end)) {
+                long length = sliceLength;
+                for (long from = start.getTime(); from < end.getTime(); from += length) {
+                    Date to = new Date(Math.min(from + length, end.getTime()));
+                    slices.add(submitQuery(feed, new Date(from), to, withoutMasters));
+                }
+            } else {
+                slices.add(submitQuery(feed, start, end, withoutMasters));
+            }
+            pending.put(feed, slices);
+        }
+
+        Map<String, List<Appointment>> results = new LinkedHashMap<String, List<Appointment>>();
+        try {
+            for (Map.Entry<String, List<Future<List<Appointment>>>> feed : pending.entrySet()) {
+                List<List<Appointment>> slices = new ArrayList<List<Appointment>>(feed.getValue().size());
+                for (Future<List<Appointment>> slice : feed.getValue()) {
+                    slices.add(awaitQuery(slice));
+                }
+                results.put(feed.getKey(), AppointmentMerger.merge(slices));
+            }
+        } finally {
+            // if one query failed, the others are not needed anymore
+            for (List<Future<List<Appointment>>> slices : pending.values()) {
+                for (Future<List<Appointment>> slice : slices) {
+                    slice.cancel(true);
+                }
+            }
+        }
+        return results;
+    }
+
+    private Future<List<Appointment>> submitQuery(final String feed, final Date start, final Date end,
+            final boolean withoutMasters) {
+        return queryExecutor.submit(new Callable<List<Appointment>>() {
+            @Override
+            public List<Appointment> call() throws Exception {
+                List<Appointment> result = new ArrayList<Appointment>();
+                Iterator<Appointment> iterator = iterateAppointments(feed, start, end, withoutMasters);
+                while (iterator.hasNext()) {
+                    result.add(iterator.next());
+                }
+                return result;
+            }
+        });
+    }
+
+    private static <T> T awaitQuery(Future<T> query) {
+        try {
+            return query.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DomainMethodExecutionException("interrupted while waiting for the appointments", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DomainMethodExecutionException("unable to retrieve the appointments", e.getCause());
+        }
+    }
+
+    /**
+     * returns the times between start and end at which any of the calendars of this instance is busy, as merged
+     * intervals in a flat array of alternating starts and ends in milliseconds. Only the times of the events are
+     * transferred, using the free/busy projection of the calendars where possible.
+     */
+    public long[] getBusyIntervals(Date start, Date end) {
+        if (start == null || end == null) {
+            throw new IllegalArgumentException("the availability is only queried for a bounded range");
+        }
+        long begin = System.nanoTime();
+        try {
+            final long from = start.getTime();
+            final long to = end.getTime();
+            List<String> feeds = feedUrls;
+
+            AppointmentIndex current = index;
+            if (feeds.size() == 1 && current != null
+                    && System.currentTimeMillis() - indexBuiltAt <= maxIndexStaleness) {
+                BusyIntervals busy = new BusyIntervals(from, to);
+                for (Appointment appointment : current.findOverlapping(from, to)) {
+                    busy.add(appointment.getStart().getTime(), appointment.getEnd().getTime());
+                }
+                return busy.toArray();
+            }
+            if (feeds.size() == 1) {
+                return queryBusy(feeds.get(0), from, to);
+            }
+
+            List<Future<long[]>> pending = new ArrayList<Future<long[]>>();
+            for (final String feed : feeds) {
+                pending.add(queryExecutor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() {
+                        return queryBusy(feed, from, to);
+                    }
+                }));
+            }
+            long[] busy = new long[0];
+            try {
+                for (Future<long[]> query : pending) {
+                    busy = BusyIntervals.union(busy, awaitQuery(query));
+                }
+            } finally {
+                for (Future<long[]> query : pending) {
+                    query.cancel(true);
+                }
+            }
+            return busy;
+        } finally {
+            metrics.record(ConnectorMetrics.Phase.AVAILABILITY, begin);
+        }
+    }
+
+    private long[] queryBusy(String feed, long from, long to) {
+        final BusyIntervals busy = new BusyIntervals(from, to);
+        String busyFeed = toFreeBusyFeed(feed);
+        CalendarQuery query = createQuery(busyFeed, new Date(from), new Date(to), null);
+        // single events ordered by start let the intervals be merged in one pass
+        query.setStringCustomParameter("singleevents", "true");
+        query.setStringCustomParameter("orderby", "starttime");
+        query.setStringCustomParameter("sortorder", "ascending");
+        if (leanQueries && busyFeed.equals(feed)) {
+            query.setStringCustomParameter("fields", BUSY_FIELDS);
+        }
+        try {
+            URL pageUrl = query.getUrl();
+            while (pageUrl != null) {
+                final URL currentPage = pageUrl;
+                String next = execute(new CalendarSession.Operation<String>() {
+                    @Override
+                    public String execute(CalendarService service) throws IOException, ServiceException {
+                        GDataRequest request = service.createFeedRequest(currentPage);
+                        try {
+                            if (leanQueries) {
+                                request.setHeader("Accept-Encoding", "gzip");
+                            }
+                            request.execute();
+                            FeedTraffic.Page page = feedTraffic.open(request.getResponseStream());
+                            try {
+                                return AppointmentFeedParser.parseBusy(page.getStream(), busy);
+                            } finally {
+                                page.finish();
+                                metrics.recordPayload(ConnectorMetrics.Phase.AVAILABILITY, page.getReceivedBytes());
+                            }
+                        } finally {
+                            request.end();
+                        }
+                    }
+                });
+                pageUrl = next == null ? null : new URL(next);
+            }
+        } catch (IOException e) {
+            throw new DomainMethodExecutionException("unable to connect to the google server", e);
+        } catch (ServiceException e) {
+            throw new DomainMethodExecutionException("unable to retrieve the availability", e);
+        }
+        return busy.toArray();
+    }
+
+    /**
+     * the free/busy projection of the given feed, which only carries the times of the events. Feeds that do not
+     * follow the usual layout are queried as they are.
+     */
+    static String toFreeBusyFeed(String feed) {
+        int projection = feed.lastIndexOf('/') + 1;
+        String name = feed.substring(projection);
+        if (name.equals("full") || name.equals("full-noattendees") || name.equals("composite")
+                || name.equals("basic")) {
+            return feed.substring(0, projection) + FREE_BUSY_PROJECTION;
+        }
+        return feed;
+    }
+
+    /**
+     * streaming variant of {@link #getAppointments(Date, Date)} for the primary calendar. All result pages are walked,
+     * but only the page that is currently consumed and the one prefetched after it are held in memory. Entries are
+     * converted on demand.
+     */
+    public Iterator<Appointment> iterateAppointments(Date start, Date end) {
+        return iterateAppointments(feedUrl, start, end, false);
+    }
+
+    /**
+     * queries the appointments of one feed, without the recurring masters if their occurrences are expanded locally.
+     * Cancelled occurrences of recurring events are left out.
+     */
+    private Iterator<Appointment> iterateAppointments(String feed, Date start, Date end, boolean withoutMasters) {
+        CalendarQuery query = createQuery(feed, start, end, null);
+        if (leanQueries) {
+            query.setStringCustomParameter("fields", withoutMasters ? LEAN_SINGLE_FIELDS : LEAN_FIELDS);
+            return streamAppointments(query);
+        }
+        if (withoutMasters) {
+            query.setStringCustomParameter("fields", SINGLE_FIELDS);
+        }
+        if (streamingParser) {
+            return streamAppointments(query);
+        }
+        final Iterator<CalendarEventEntry> entries = searchForEntries(query);
+        return new Iterator<Appointment>() {
+            private CalendarEventEntry next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && entries.hasNext()) {
+                    CalendarEventEntry entry = entries.next();
+                    if (!AppointmentConverter.isCanceled(entry)) {
+                        next = entry;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Appointment next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                CalendarEventEntry entry = next;
+                next = null;
+                return toAppointment(entry);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("the feed is read only");
+            }
+        };
+    }
+
+    /**
+     * brings the local mirror of the calendar up to date, fetching only the entries that changed since the last
+     * cycle, and commits the differences to the EKB
+     */
+    public SyncResult synchronize() {
+        return synchronize(false);
+    }
+
+    /**
+     * like {@link #synchronize()}, but if there is neither a mirror nor a checkpoint yet, the calendar is only loaded
+     * into the mirror and nothing is committed, since the EKB is expected to know the appointments that exist already.
+     * An empty result is returned in that case.
+     */
+    private SyncResult synchronize(boolean seed) {
+        if (!syncEngine.isInitialized()) {
+            restoreCheckpoint();
+        }
+        boolean seeding = seed && !syncEngine.isInitialized();
+        SyncResult result = null;
+        while (result == null) {
+            try {
+                result = syncEngine.synchronize(new CalendarSyncEngine.ChangeSource() {
+                    @Override
+                    public Iterator<CalendarEventEntry> fetchChanges(DateTime updatedMin) {
+                        CalendarQuery query = createQuery(feedUrl, null, null, null);
+                        if (updatedMin != null) {
+                            query.setUpdatedMin(updatedMin);
+                            query.setStringCustomParameter("showdeleted", "true");
+                        }
+                        return searchForEntries(query);
+                    }
+                });
+            } catch (DomainMethodExecutionException e) {
+                if (!isGone(e) || !syncEngine.isInitialized()) {
+                    throw e;
+                }
+                LOGGER.info("google no longer knows all changes since the last sync, loading the whole calendar");
+                syncEngine.reset();
+                deleteCheckpoint();
+            }
+        }
+
+        if (seeding) {
+            LOGGER.debug("seeded the mirror of the calendar: {}", result);
+            syncEngine.discardHeld();
+            result = new SyncResult();
+        } else if (!result.isEmpty()) {
+            for (Appointment appointment : result.getInserts()) {
+                commitPipeline.insert(appointment);
+            }
+            for (Appointment appointment : result.getUpdates()) {
+                commitPipeline.update(appointment);
+            }
+            for (Appointment appointment : result.getDeletes()) {
+                commitPipeline.delete(appointment);
+            }
+            commitPipeline.flushIfDue();
+        }
+        storeCheckpoint();
+        if (maxIndexStaleness > 0) {
+            index = new AppointmentIndex(syncEngine.getAppointments());
+            indexBuiltAt = System.currentTimeMillis();
+        }
+        LOGGER.debug("synchronized calendar: {}", result);
+        return result;
+    }
+
+    /**
+     * takes a change written through this instance into the mirror of the synchronized calendar, it was committed to
+     * the EKB already and must not be reported by the next sync again
+     */
+    private void recordWrite(CalendarEventEntry entry) {
+        if (isSynchronized(AppointmentIds.fromEditLink(entry.getEditLink().getHref()))) {
+            syncEngine.recordWrite(entry);
+        }
+        changeWatcher.onActivity();
+    }
+
+    private void recordDelete(String id) {
+        if (isSynchronized(id)) {
+            syncEngine.recordDelete(id);
+        }
+        changeWatcher.onActivity();
+    }
+
+    /**
+     * whether the appointment belongs to the calendar that is synchronized, the first configured one
+     */
+    private boolean isSynchronized(String id) {
+        String calendarKey = AppointmentIds.getCalendarKeyOf(id);
+        return calendarKey != null && calendarKey.equals(AppointmentIds.getCalendarKey(feedUrl));
+    }
+
+    /**
+     * changes made through this instance are not part of the mirror until the next sync, so the index must not be
+     * used until then
+     */
+    private void invalidateIndex() {
+        index = null;
+    }
+
+    /**
+     * to be called once a write through this instance succeeded: the index is stale, and reads in flight may have
+     * been answered before the write, so later reads must not join them
+     */
+    private void written() {
+        invalidateIndex();
+        loadFlights.newGeneration();
+        queryFlights.newGeneration();
+    }
+
+    /**
+     * google answers 410 if updated-min lies further back than deleted entries are kept
+     */
+    private static boolean isGone(DomainMethodExecutionException e) {
+        return e.getCause() instanceof ServiceException
+                && ((ServiceException) e.getCause()).getHttpErrorCodeOverride() == HttpURLConnection.HTTP_GONE;
+    }
+
+    private void restoreCheckpoint() {
+        if (checkpointFile == null || !checkpointFile.exists()) {
+            return;
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(checkpointFile));
+            try {
+                syncEngine.restore(SyncCheckpoint.readFrom(in));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("unable to read sync checkpoint {}, doing a full sync", checkpointFile, e);
+        }
+    }
+
+    /**
+     * the stored checkpoint was rejected by google and must not be restored again
+     */
+    private void deleteCheckpoint() {
+        if (checkpointFile != null && checkpointFile.exists() && !checkpointFile.delete()) {
+            LOGGER.warn("unable to delete stale sync checkpoint {}", checkpointFile);
+        }
+    }
+
+    private void storeCheckpoint() {
+        if (checkpointFile == null) {
+            return;
+        }
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                syncEngine.getCheckpoint().writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(checkpointFile) && !(checkpointFile.delete() && tempFile.renameTo(checkpointFile))) {
+                throw new IOException("unable to replace " + checkpointFile);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("unable to write sync checkpoint {}", checkpointFile, e);
+        }
+    }
+
+    /**
+     * asynchronous variant of {@link #createAppointment(Appointment)}
+     */
+    public Future<String> createAppointmentAsync(final Appointment appointment) {
+        return asyncExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return createAppointment(appointment);
+            }
+        });
+    }
+
+    /**
+     * asynchronous variant of {@link #updateAppointment(Appointment)}
+     */
+    public Future<Void> updateAppointmentAsync(final Appointment appointment) {
+        return asyncExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                updateAppointment(appointment);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * asynchronous variant of {@link #deleteAppointment(String)}
+     */
+    public Future<Void> deleteAppointmentAsync(final String id) {
+        return asyncExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                deleteAppointment(id);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * asynchronous variant of {@link #loadAppointment(String)}
+     */
+    public Future<Appointment> loadAppointmentAsync(final String id) {
+        return asyncExecutor.submit(new Callable<Appointment>() {
+            @Override
+            public Appointment call() throws Exception {
+                return loadAppointment(id);
+            }
+        });
+    }
+
+    /**
+     * asynchronous variant of {@link #getAppointments(Date, Date)}
+     */
+    public Future<ArrayList<Appointment>> getAppointmentsAsync(final Date start, final Date end) {
+        return asyncExecutor.submit(new Callable<ArrayList<Appointment>>() {
+            @Override
+            public ArrayList<Appointment> call() throws Exception {
+                return getAppointments(start, end);
+            }
+        });
+    }
+
+    @Override
+    public AliveState getAliveState() {
+        switch (requestExecutor.getCircuitBreaker().getState()) {
+            case OPEN:
+                return AliveState.OFFLINE;
+            case HALF_OPEN:
+                return AliveState.CONNECTING;
+            default:
+                return session.getAliveState();
+        }
+    }
+
+    /**
+     * asks google for a single title of the primary calendar, which tells whether google can be used again while the
+     * circuit breaker is open
+     */
+    private void probeGoogle() throws IOException, ServiceException {
+        CalendarQuery query = createQuery(feedUrl, null, null, null);
+        query.setMaxResults(1);
+        query.setStringCustomParameter("fields", "title");
+        final URL probeUrl = query.getUrl();
+        requestExecutor.executeProbe(new CalendarSession.Operation<Void>() {
+            @Override
+            public Void execute(CalendarService service) throws IOException, ServiceException {
+                GDataRequest request = service.createFeedRequest(probeUrl);
+                try {
+                    request.execute();
+                } finally {
+                    request.end();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * runs an idempotent operation with the cached session of this instance, only logging in if there is no valid
+     * session yet
+     */
+    private <T> T execute(CalendarSession.Operation<T> operation) throws IOException, ServiceException {
+        return execute(operation, true);
+    }
+
+    /**
+     * runs an operation within the rate limit of this instance. Failed operations are only retried if they are
+     * idempotent.
+     */
+    private <T> T execute(CalendarSession.Operation<T> operation, boolean idempotent)
+        throws IOException, ServiceException {
+        return requestExecutor.execute(operation, idempotent);
+    }
+
+    public String getGooglePassword() {
+        return googlePassword;
+    }
+
+    public void setGooglePassword(String googlePassword) {
+        this.googlePassword = googlePassword;
+        session.setCredentials(googleUser, googlePassword);
+    }
+
+    public String getGoogleUser() {
+        return googleUser;
+    }
+
+    public void setGoogleUser(String googleUser) {
+        this.googleUser = googleUser;
+        session.setCredentials(googleUser, googlePassword);
+    }
+
+    public void setPersistInterface(PersistInterface persistInterface) {
+        commitPipeline.setPersistInterface(persistInterface);
+    }
+
+    /**
+     * sets the milliseconds changes are collected before they are committed to the EKB together, 0 commits every
+     * write right away
+     */
+    public void setEkbFlushInterval(long ekbFlushInterval) {
+        commitPipeline.setFlushInterval(ekbFlushInterval);
+    }
+
+    /**
+     * sets the number of changed appointments that are committed to the EKB without waiting for the flush interval
+     */
+    public void setEkbFlushSize(int ekbFlushSize) {
+        commitPipeline.setFlushSize(ekbFlushSize);
+    }
+
+    /**
+     * sets the number of changed appointments kept while the EKB cannot be reached, older changes are dropped
+     */
+    public void setEkbMaxPending(int ekbMaxPending) {
+        commitPipeline.setMaxPending(ekbMaxPending);
+    }
+
+    public ConnectorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * passes the measurements of this instance on to the given listeners, the list may change later on
+     */
+    public void setMetricsListeners(List<MetricsListener> metricsListeners) {
+        metrics.setListeners(metricsListeners);
+    }
+
+    /**
+     * shares concurrent loads of the same appointment
+     */
+    public SingleFlight<String, Appointment> getLoadFlights() {
+        return loadFlights;
+    }
+
+    /**
+     * shares concurrent queries of the same range
+     */
+    public SingleFlight<List<Object>, ArrayList<Appointment>> getQueryFlights() {
+        return queryFlights;
+    }
+
+    public EkbCommitPipeline getCommitPipeline() {
+        return commitPipeline;
+    }
+
+    /**
+     * commits the changes still pending to the EKB and stops the background threads of this instance
+     */
+    public void shutdown() {
+        changeWatcher.shutdown();
+        requestExecutor.getCircuitBreaker().shutdown();
+        try {
+            stopJournal();
+            commitPipeline.close();
+        } finally {
+            asyncExecutor.shutdown();
+            queryExecutor.shutdown();
+            metrics.unregister();
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * the entry cache of this instance, including its hit, revalidation and miss counts
+     */
+    public AppointmentEntryCache getEntryCache() {
+        return entryCache;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        entryCache.setCapacity(cacheSize);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public boolean isOptimisticWrites() {
+        return optimisticWrites;
+    }
+
+    public void setOptimisticWrites(boolean optimisticWrites) {
+        this.optimisticWrites = optimisticWrites;
+    }
+
+    public boolean isStreamingParser() {
+        return streamingParser;
+    }
+
+    /**
+     * lets appointment queries parse the feed directly into appointments instead of using the entry model of the
+     * GData client
+     */
+    public void setStreamingParser(boolean streamingParser) {
+        this.streamingParser = streamingParser;
+    }
+
+    /**
+     * lets this instance check its calendar for changes in the background and commit them to the EKB, see
+     * {@link ChangeWatcher}. The checks only run once a scheduler was set. Without a checkpoint, the first check only
+     * loads the calendar into the mirror, the appointments that exist already are not committed again.
+     */
+    public void setWatchEnabled(boolean watchEnabled) {
+        changeWatcher.setEnabled(watchEnabled);
+    }
+
+    /**
+     * sets the executor the next page of a query is fetched on while the current one is read, shared by all instances
+     * of a factory. Null fetches every page when it is needed.
+     */
+    public void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * sets the scheduler the background tasks of this instance run on, shared by all instances of a factory: the
+     * checks for changes, the health probe of the circuit breaker, the EKB flushes and the replay of the journal
+     */
+    public void setScheduler(ScheduledExecutorService scheduler) {
+        synchronized (this) {
+            this.scheduler = scheduler;
+            if (journalReplayer != null) {
+                journalReplayer.setScheduler(scheduler);
+            }
+        }
+        changeWatcher.setScheduler(scheduler);
+        requestExecutor.getCircuitBreaker().setScheduler(scheduler);
+        commitPipeline.setScheduler(scheduler);
+    }
+
+    /**
+     * sets the bounds of the interval between two background checks, in milliseconds
+     */
+    public void setWatchIntervals(long minInterval, long maxInterval) {
+        changeWatcher.setIntervals(minInterval, maxInterval);
+    }
+
+    public ChangeWatcher getChangeWatcher() {
+        return changeWatcher;
+    }
+
+    public boolean isRecurrenceExpansion() {
+        return recurrenceExpansion;
+    }
+
+    /**
+     * lets appointment queries expand the occurrences of recurring events locally from the cached masters, instead of
+     * downloading them from google with every query. Calendars with rules that can not be expanded locally are still
+     * expanded by google.
+     */
+    public void setRecurrenceExpansion(boolean recurrenceExpansion) {
+        this.recurrenceExpansion = recurrenceExpansion;
+    }
+
+    /**
+     * sets how long, in milliseconds, the recurring masters of a calendar are used before they are loaded again
+     */
+    public void setRecurrenceMaxAge(long recurrenceMaxAge) {
+        recurrenceCache.setMaxAge(recurrenceMaxAge);
+    }
+
+    public RecurrenceCache getRecurrenceCache() {
+        return recurrenceCache;
+    }
+
+    public boolean isLeanQueries() {
+        return leanQueries;
+    }
+
+    /**
+     * lets appointment queries ask google only for the fields an appointment needs and accept gzip compressed
+     * responses. The pages are always read with the streaming parser then.
+     */
+    public void setLeanQueries(boolean leanQueries) {
+        this.leanQueries = leanQueries;
+    }
+
+    /**
+     * the bytes of the feed pages read by the streaming parser, before and after decompression
+     */
+    public FeedTraffic getFeedTraffic() {
+        return feedTraffic;
+    }
+
+    /**
+     * sets how long, in milliseconds, getAppointments may be answered from the mirror after the last sync. 0 disables
+     * the index and always queries google.
+     */
+    public void setMaxIndexStaleness(long maxIndexStaleness) {
+        this.maxIndexStaleness = maxIndexStaleness;
+        if (maxIndexStaleness <= 0) {
+            invalidateIndex();
+        }
+    }
+
+    /**
+     * sets the number of calls this instance runs against google in parallel
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize != session.getPoolSize()) {
+            session.setPoolSize(poolSize);
+            session.invalidate();
+        }
+    }
+
+    public void setAsyncThreads(int asyncThreads) {
+        asyncExecutor.setThreads(asyncThreads);
+    }
+
+    public void setAsyncMaxPending(int asyncMaxPending) {
+        asyncExecutor.setMaxPending(asyncMaxPending);
+    }
+
+    /**
+     * sets the number of requests per second this instance sends to google at most
+     */
+    public void setRateLimit(double rateLimit) {
+        requestExecutor.getRateLimiter().setMaxRate(rateLimit);
+    }
+
+    /**
+     * sets the share of failed or slow requests, in percent of the recent ones, that stops sending requests to google
+     * for a while, 0 keeps sending them
+     */
+    public void setCircuitFailureRate(double percent) {
+        requestExecutor.getCircuitBreaker().setFailureRate(percent / 100);
+    }
+
+    public void setCircuitSlowCall(long slowCall) {
+        requestExecutor.getCircuitBreaker().setSlowCall(slowCall);
+    }
+
+    public void setCircuitOpenDuration(long openDuration) {
+        requestExecutor.getCircuitBreaker().setOpenDuration(openDuration);
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        requestExecutor.setMaxRetries(maxRetries);
+    }
+
+    /**
+     * the request executor of this instance, including its throttle and retry counts
+     */
+    public RequestExecutor getRequestExecutor() {
+        return requestExecutor;
+    }
+
+    /**
+     * sets the length, in milliseconds, of the slices wide ranges are split into by getAppointments. 0 queries every
+     * range at once.
+     */
+    public void setSliceLength(long sliceLength) {
+        this.sliceLength = sliceLength;
+    }
+
+    /**
+     * sets the number of slices and calendars that are queried at the same time
+     */
+    public void setSliceParallelism(int sliceParallelism) {
+        queryExecutor.setThreads(sliceParallelism);
+    }
+
+    /**
+     * sets the calendars of this instance, given as feed urls or calendar ids. New appointments are created in the
+     * first one, all of them are queried by getAppointments. Without any calendar the default calendar of the user is
+     * used.
+     */
+    public void setCalendars(List<String> calendars) {
+        List<String> feeds = new ArrayList<String>();
+        for (String calendar : calendars) {
+            feeds.add(toFeedUrl(calendar));
+        }
+        if (feeds.isEmpty()) {
+            feeds.add(DEFAULT_FEED_URL);
+        }
+        feedUrl = feeds.get(0);
+        feedUrls = Collections.unmodifiableList(feeds);
+        session.setHost(hostOf(feedUrl));
+    }
+
+    public List<String> getCalendars() {
+        return feedUrls;
+    }
+
+    private static String hostOf(String feed) {
+        try {
+            return new URL(feed).getHost();
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("invalid feed url " + feed, e);
+        }
+    }
+
+    /**
+     * sets the limiter of concurrent requests shared by the instances of the factory, null does not limit them
+     */
+    public void setConcurrencyLimiter(RequestConcurrencyLimiter concurrencyLimiter) {
+        session.setConcurrencyLimiter(concurrencyLimiter);
+        metrics.setConcurrencyLimiter(concurrencyLimiter);
+    }
+
+    private static String toFeedUrl(String calendar) {
+        String feed = calendar;
+        if (!calendar.contains("://")) {
+            try {
+                feed = String.format(CALENDAR_FEED_URL, URLEncoder.encode(calendar, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is not supported", e);
+            }
+        }
+        try {
+            new URL(feed);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("invalid calendar " + calendar, e);
+        }
+        return feed;
+    }
+
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * enables the write-behind mode: writes are appended to the given journal file and sent to google in the
+     * background, so they return without waiting for google. Null sends every write right away.
+     */
+    public synchronized void setJournalFile(File journalFile) {
+        stopJournal();
+        if (journalFile == null) {
+            return;
+        }
+        WriteJournal newJournal;
+        try {
+            newJournal = new WriteJournal(journalFile);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("unable to open the journal " + journalFile, e);
+        }
+        journalReplayer = new JournalReplayer(newJournal, new JournalReplayer.Target() {
+            @Override
+            public String insert(Appointment appointment, String localId, boolean uncertain) {
+                String id = insertAppointment(appointment, localId, uncertain);
+                flushReplayedChanges();
+                return id;
+            }
+
+            @Override
+            public void update(Appointment appointment) {
+                modifyAppointment(appointment);
+                flushReplayedChanges();
+            }
+
+            @Override
+            public void delete(Appointment appointment) {
+                removeAppointment(appointment);
+                flushReplayedChanges();
+            }
+        });
+        journal = newJournal;
+        journalReplayer.setScheduler(scheduler);
+    }
+
+    private synchronized void stopJournal() {
+        if (journal == null) {
+            return;
+        }
+        WriteJournal stopped = journal;
+        journal = null;
+        journalReplayer.shutdown();
+        try {
+            stopped.close();
+        } catch (IOException e) {
+            LOGGER.warn("unable to close the journal, its last operations are replayed after a restart", e);
+        }
+    }
+
+    public WriteJournal getJournal() {
+        return journal;
+    }
+
+    public JournalReplayer getJournalReplayer() {
+        return journalReplayer;
+    }
+
+    void setFeedUrl(String feedUrl) {
+        this.feedUrl = feedUrl;
+        feedUrls = Collections.singletonList(feedUrl);
+        session.setHost(hostOf(feedUrl));
+    }
+
+    void setSession(CalendarSession session) {
+        session.setConcurrencyLimiter(this.session.getConcurrencyLimiter());
+        session.setHost(this.session.getHost());
+        this.session = session;
+        session.setMetrics(metrics);
+        requestExecutor.setSession(session);
     }
 }
@@ -17,20 +17,69 @@
 
 package org.openengsb.connector.gcalendar.internal;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.openengsb.connector.gcalendar.metrics.MetricsListener;
 import org.openengsb.core.api.Connector;
 import org.openengsb.core.api.ekb.PersistInterface;
 import org.openengsb.core.common.AbstractConnectorInstanceFactory;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class GcalendarServiceInstanceFactory extends AbstractConnectorInstanceFactory<GcalendarServiceImpl> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(GcalendarServiceInstanceFactory.class);
+
+    static final String INSTANCE_FILTER = "(&(domain=appointment)(connector=gcalendar))";
+
     private PersistInterface persistInterface;
+    private RequestConcurrencyLimiter concurrencyLimiter;
+    private List<MetricsListener> metricsListeners;
+    private final Set<GcalendarServiceImpl> instances =
+        Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<GcalendarServiceImpl, Boolean>()));
+    private final ScheduledThreadPoolExecutor scheduler =
+        ChangeWatcher.createScheduler(ChangeWatcher.DEFAULT_THREADS);
+    private final ExecutorService prefetchExecutor =
+        PagedEntryIterator.createPrefetchExecutor(PagedEntryIterator.DEFAULT_PREFETCH_THREADS);
+    private BundleContext bundleContext;
+
+    private final ServiceListener instanceListener = new ServiceListener() {
+        @Override
+        public void serviceChanged(ServiceEvent event) {
+            if (event.getType() == ServiceEvent.UNREGISTERING) {
+                Object id = event.getServiceReference().getProperty(Constants.SERVICE_PID);
+                if (id != null) {
+                    destroyInstance(id.toString());
+                }
+            }
+        }
+    };
 
     @Override
     public Connector createNewInstance(String id) {
         GcalendarServiceImpl service = new GcalendarServiceImpl(id);
         service.setPersistInterface(persistInterface);
+        service.setConcurrencyLimiter(concurrencyLimiter);
+        service.setMetricsListeners(metricsListeners);
+        service.setScheduler(scheduler);
+        service.setPrefetchExecutor(prefetchExecutor);
+        service.getMetrics().register();
+        instances.add(service);
         return service;
     }
 
@@ -38,9 +87,220 @@ public class GcalendarServiceInstanceFactory extends AbstractConnectorInstanceFa
     public void doApplyAttributes(GcalendarServiceImpl instance, Map<String, String> attributes) {
         instance.setGoogleUser(attributes.get("google.user"));
         instance.setGooglePassword(attributes.get("google.password"));
+        if (attributes.containsKey("calendars")) {
+            instance.setCalendars(splitCalendars(attributes.get("calendars")));
+        }
+        if (attributes.containsKey("pool.size")) {
+            instance.setPoolSize(Integer.parseInt(attributes.get("pool.size")));
+        }
+        if (attributes.containsKey("async.threads")) {
+            instance.setAsyncThreads(Integer.parseInt(attributes.get("async.threads")));
+        }
+        if (attributes.containsKey("async.max.pending")) {
+            instance.setAsyncMaxPending(Integer.parseInt(attributes.get("async.max.pending")));
+        }
+        if (attributes.containsKey("rate.limit")) {
+            instance.setRateLimit(Double.parseDouble(attributes.get("rate.limit")));
+        }
+        if (attributes.containsKey("retry.max")) {
+            instance.setMaxRetries(Integer.parseInt(attributes.get("retry.max")));
+        }
+        if (attributes.containsKey("circuit.failure.rate")) {
+            instance.setCircuitFailureRate(Double.parseDouble(attributes.get("circuit.failure.rate")));
+        }
+        if (attributes.containsKey("circuit.slow.call")) {
+            long seconds = Long.parseLong(attributes.get("circuit.slow.call"));
+            instance.setCircuitSlowCall(TimeUnit.SECONDS.toMillis(seconds));
+        }
+        if (attributes.containsKey("circuit.open.duration")) {
+            long seconds = Long.parseLong(attributes.get("circuit.open.duration"));
+            instance.setCircuitOpenDuration(TimeUnit.SECONDS.toMillis(seconds));
+        }
+        if (attributes.containsKey("batch.size")) {
+            instance.setBatchSize(Integer.parseInt(attributes.get("batch.size")));
+        }
+        if (attributes.containsKey("query.page.size")) {
+            instance.setPageSize(Integer.parseInt(attributes.get("query.page.size")));
+        }
+        if (attributes.containsKey("query.streaming.parser")) {
+            instance.setStreamingParser(Boolean.parseBoolean(attributes.get("query.streaming.parser")));
+        }
+        if (attributes.containsKey("query.lean")) {
+            instance.setLeanQueries(Boolean.parseBoolean(attributes.get("query.lean")));
+        }
+        if (attributes.containsKey("query.slice.days")) {
+            long days = Long.parseLong(attributes.get("query.slice.days"));
+            instance.setSliceLength(TimeUnit.DAYS.toMillis(days));
+        }
+        if (attributes.containsKey("query.slice.parallelism")) {
+            instance.setSliceParallelism(Integer.parseInt(attributes.get("query.slice.parallelism")));
+        }
+        if (attributes.containsKey("query.recurrence.expansion")) {
+            instance.setRecurrenceExpansion(Boolean.parseBoolean(attributes.get("query.recurrence.expansion")));
+        }
+        if (attributes.containsKey("query.recurrence.max.age")) {
+            long minutes = Long.parseLong(attributes.get("query.recurrence.max.age"));
+            instance.setRecurrenceMaxAge(TimeUnit.MINUTES.toMillis(minutes));
+        }
+        if (attributes.containsKey("cache.size")) {
+            instance.setCacheSize(Integer.parseInt(attributes.get("cache.size")));
+        }
+        if (attributes.containsKey("optimistic.writes")) {
+            instance.setOptimisticWrites(Boolean.parseBoolean(attributes.get("optimistic.writes")));
+        }
+        if (attributes.containsKey("sync.checkpoint.file")) {
+            String checkpointFile = attributes.get("sync.checkpoint.file");
+            if (checkpointFile == null || checkpointFile.isEmpty()) {
+                instance.setCheckpointFile(null);
+            } else {
+                instance.setCheckpointFile(new File(checkpointFile));
+            }
+        }
+        if (attributes.containsKey("journal.file")) {
+            String journalFile = attributes.get("journal.file");
+            if (journalFile == null || journalFile.isEmpty()) {
+                instance.setJournalFile(null);
+            } else {
+                instance.setJournalFile(new File(journalFile));
+            }
+        }
+        if (attributes.containsKey("ekb.flush.interval")) {
+            instance.setEkbFlushInterval(Long.parseLong(attributes.get("ekb.flush.interval")));
+        }
+        if (attributes.containsKey("ekb.flush.size")) {
+            instance.setEkbFlushSize(Integer.parseInt(attributes.get("ekb.flush.size")));
+        }
+        if (attributes.containsKey("ekb.max.pending")) {
+            instance.setEkbMaxPending(Integer.parseInt(attributes.get("ekb.max.pending")));
+        }
+        if (attributes.containsKey("index.max.staleness")) {
+            long seconds = Long.parseLong(attributes.get("index.max.staleness"));
+            instance.setMaxIndexStaleness(TimeUnit.SECONDS.toMillis(seconds));
+        }
+        if (attributes.containsKey("watch.interval.min") || attributes.containsKey("watch.interval.max")) {
+            long minSeconds = TimeUnit.MILLISECONDS.toSeconds(ChangeWatcher.DEFAULT_MIN_INTERVAL);
+            long maxSeconds = TimeUnit.MILLISECONDS.toSeconds(ChangeWatcher.DEFAULT_MAX_INTERVAL);
+            if (attributes.containsKey("watch.interval.min")) {
+                minSeconds = Long.parseLong(attributes.get("watch.interval.min"));
+            }
+            if (attributes.containsKey("watch.interval.max")) {
+                maxSeconds = Long.parseLong(attributes.get("watch.interval.max"));
+            }
+            instance.setWatchIntervals(TimeUnit.SECONDS.toMillis(minSeconds), TimeUnit.SECONDS.toMillis(maxSeconds));
+        }
+        if (attributes.containsKey("watch.enabled")) {
+            instance.setWatchEnabled(Boolean.parseBoolean(attributes.get("watch.enabled")));
+        }
+    }
+
+    private static List<String> splitCalendars(String calendars) {
+        List<String> result = new ArrayList<String>();
+        if (calendars != null) {
+            for (String calendar : calendars.split("[,\\s]+")) {
+                if (!calendar.isEmpty()) {
+                    result.add(calendar);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * stops the instance with the given id once it was deleted, its pending EKB changes are committed and its
+     * background tasks are removed from the shared scheduler
+     */
+    void destroyInstance(String id) {
+        List<GcalendarServiceImpl> removed = new ArrayList<GcalendarServiceImpl>();
+        synchronized (instances) {
+            Iterator<GcalendarServiceImpl> it = instances.iterator();
+            while (it.hasNext()) {
+                GcalendarServiceImpl instance = it.next();
+                if (id.equals(instance.getInstanceId())) {
+                    removed.add(instance);
+                    it.remove();
+                }
+            }
+        }
+        try {
+            for (GcalendarServiceImpl instance : removed) {
+                instance.shutdown();
+            }
+        } finally {
+            scheduler.purge();
+        }
+    }
+
+    int getInstanceCount() {
+        return instances.size();
+    }
+
+    /**
+     * starts listening for deleted instances, so they are stopped together with their connector service
+     */
+    public void init() {
+        if (bundleContext == null) {
+            return;
+        }
+        try {
+            bundleContext.addServiceListener(instanceListener, INSTANCE_FILTER);
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setBundleContext(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
     }
 
     public void setPersistInterface(PersistInterface persistInterface) {
         this.persistInterface = persistInterface;
     }
+
+    /**
+     * sets the limiter of concurrent requests all instances created by this factory share
+     */
+    public void setConcurrencyLimiter(RequestConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * sets the listeners the measurements of all instances are passed on to
+     */
+    public void setMetricsListeners(List<MetricsListener> metricsListeners) {
+        this.metricsListeners = metricsListeners;
+    }
+
+    /**
+     * sets the number of background tasks, checks for changes, health probes and EKB flushes, that run at the same
+     * time, for all instances together
+     */
+    public void setWatchThreads(int watchThreads) {
+        scheduler.setCorePoolSize(Math.max(1, watchThreads));
+    }
+
+    /**
+     * commits the pending EKB changes of all instances created by this factory and stops their threads
+     */
+    public void shutdown() {
+        if (bundleContext != null) {
+            try {
+                bundleContext.removeServiceListener(instanceListener);
+            } catch (IllegalStateException e) {
+                LOGGER.debug("the bundle was stopped already", e);
+            }
+        }
+        List<GcalendarServiceImpl> created;
+        synchronized (instances) {
+            created = new ArrayList<GcalendarServiceImpl>(instances);
+            instances.clear();
+        }
+        try {
+            for (GcalendarServiceImpl instance : created) {
+                instance.shutdown();
+            }
+        } finally {
+            scheduler.shutdownNow();
+            prefetchExecutor.shutdownNow();
+        }
+    }
 }
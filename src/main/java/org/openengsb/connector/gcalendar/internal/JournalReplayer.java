@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentConverter;
+import org.openengsb.domain.appointment.Appointment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.util.AuthenticationException;
+import com.google.gdata.util.ServiceException;
+
+/**
+ * sends the operations of a {@link WriteJournal} to google in the background. The operations of one appointment are
+ * merged first, so a burst of updates costs a single request and an appointment that was created and deleted again
+ * is never sent at all. While google cannot be reached the replay is retried with growing delays; operations google
+ * rejects for good are dropped with a warning, so they do not block the journal forever.
+ *
+ * The replay runs on the scheduler of the factory, shared by all instances. Without a scheduler nothing is sent until
+ * one is set.
+ */
+public class JournalReplayer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JournalReplayer.class);
+
+    private static final long MIN_RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * applies the merged operations to the calendar
+     */
+    public interface Target {
+        /**
+         * creates the appointment and returns the id google assigned. If uncertain is set the appointment may exist
+         * already and must not be created a second time.
+         */
+        String insert(Appointment appointment, String localId, boolean uncertain);
+
+        void update(Appointment appointment);
+
+        void delete(Appointment appointment);
+    }
+
+    private final WriteJournal journal;
+    private final Target target;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * held while replaying, so replays never overlap even if the shared scheduler runs them on different threads
+     */
+    private final ReentrantLock replaying = new ReentrantLock();
+    private final Runnable replayTask = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            replaying.lock();
+            try {
+                if (!enter()) {
+                    return;
+                }
+                try {
+                    runReplay();
+                } finally {
+                    leave();
+                }
+            } finally {
+                replaying.unlock();
+            }
+        }
+    };
+
+    private volatile ScheduledExecutorService scheduler;
+    private boolean stopped;
+    private ScheduledFuture<?> next;
+    private Thread replayThread;
+    private long retryDelay;
+
+    public JournalReplayer(WriteJournal journal, Target target) {
+        this.journal = journal;
+        this.target = target;
+    }
+
+    /**
+     * sets the scheduler the replay runs on and starts a replay if operations are waiting
+     */
+    public void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        if (journal.getPendingCount() > 0) {
+            trigger();
+        }
+    }
+
+    /**
+     * starts a replay unless one is scheduled already. While a retry is waiting for google to come back, new
+     * operations wait for that retry.
+     */
+    public void trigger() {
+        if (scheduled.compareAndSet(false, true) && !schedule(0)) {
+            scheduled.set(false);
+        }
+    }
+
+    /**
+     * schedules a replay, unless this replayer was shut down or there is no scheduler to run it on
+     */
+    private synchronized boolean schedule(long delay) {
+        ScheduledExecutorService current = scheduler;
+        if (stopped || current == null || current.isShutdown()) {
+            return false;
+        }
+        try {
+            next = current.schedule(replayTask, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("the scheduler was shut down, the journal is replayed after a restart");
+            return false;
+        }
+    }
+
+    private synchronized boolean enter() {
+        if (stopped) {
+            return false;
+        }
+        replayThread = Thread.currentThread();
+        return true;
+    }
+
+    private void leave() {
+        synchronized (this) {
+            replayThread = null;
+        }
+        // the thread belongs to the shared scheduler, an interrupt by shutdown must not hit its next task
+        Thread.interrupted();
+    }
+
+    private void runReplay() {
+        try {
+            replay();
+            retryDelay = 0;
+        } catch (RuntimeException e) {
+            retryDelay = Math.min(MAX_RETRY_DELAY, Math.max(MIN_RETRY_DELAY, retryDelay * 2));
+            LOGGER.warn("unable to replay the journal, retrying in {} ms", retryDelay, e);
+            if (scheduled.compareAndSet(false, true) && !schedule(retryDelay)) {
+                scheduled.set(false);
+            }
+        } catch (IOException e) {
+            LOGGER.error("unable to write to the journal, operations may be sent again after a restart", e);
+        }
+    }
+
+    /**
+     * sends all pending operations, stops at the first one that failed for a temporary reason and rethrows that
+     * failure
+     */
+    void replay() throws IOException {
+        Map<String, List<WriteJournal.Entry>> operations = new LinkedHashMap<String, List<WriteJournal.Entry>>();
+        for (WriteJournal.Entry entry : journal.getPending()) {
+            String id = journal.resolve(entry.getAppointment().getId());
+            List<WriteJournal.Entry> entries = operations.get(id);
+            if (entries == null) {
+                entries = new ArrayList<WriteJournal.Entry>();
+                operations.put(id, entries);
+            }
+            entries.add(entry);
+        }
+        for (Map.Entry<String, List<WriteJournal.Entry>> appointmentOperations : operations.entrySet()) {
+            List<WriteJournal.Entry> entries = appointmentOperations.getValue();
+            try {
+                apply(appointmentOperations.getKey(), entries);
+                replayed.addAndGet(entries.size());
+            } catch (RuntimeException e) {
+                if (isTemporary(e)) {
+                    for (WriteJournal.Entry entry : entries) {
+                        // the request may have reached google even though no answer came back
+                        entry.setUncertain(true);
+                    }
+                    throw e;
+                }
+                LOGGER.warn("google rejected the journaled changes of appointment {}, dropping them",
+                    appointmentOperations.getKey(), e);
+                dropped.addAndGet(entries.size());
+            }
+            journal.markApplied(entries);
+        }
+    }
+
+    private void apply(String id, List<WriteJournal.Entry> entries) throws IOException {
+        WriteJournal.Entry first = entries.get(0);
+        WriteJournal.Operation operation = first.getOperation();
+        boolean uncertain = false;
+        for (WriteJournal.Entry entry : entries) {
+            uncertain |= entry.isUncertain();
+            if (entry == first || operation == WriteJournal.Operation.DELETE) {
+                continue;
+            }
+            if (entry.getOperation() == WriteJournal.Operation.DELETE) {
+                if (operation == WriteJournal.Operation.INSERT) {
+                    // created and deleted again before google saw it
+                    return;
+                }
+                operation = WriteJournal.Operation.DELETE;
+            }
+        }
+        WriteJournal.Entry latest = entries.get(entries.size() - 1);
+        Appointment appointment = AppointmentConverter.copyAppointment(latest.getAppointment());
+        appointment.setId(id);
+        if (operation == WriteJournal.Operation.INSERT) {
+            String localId = first.getAppointment().getId();
+            journal.addAlias(localId, target.insert(appointment, localId, uncertain));
+        } else if (operation == WriteJournal.Operation.UPDATE) {
+            target.update(appointment);
+        } else {
+            target.delete(appointment);
+        }
+    }
+
+    /**
+     * whether the failure may go away by itself, like an unreachable server or an exceeded quota
+     */
+    private static boolean isTemporary(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AuthenticationException) {
+                return true;
+            }
+            if (cause instanceof ServiceException) {
+                return RequestExecutor.isTemporary((ServiceException) cause);
+            }
+            if (cause instanceof IOException) {
+                return !(cause instanceof MalformedURLException);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the number of journaled operations that were sent to google or merged into another one
+     */
+    public long getReplayedCount() {
+        return replayed.get();
+    }
+
+    /**
+     * the number of journaled operations google rejected
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * stops replaying, a running replay is interrupted and awaited. Operations not sent yet stay in the journal.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            stopped = true;
+            if (next != null) {
+                next.cancel(false);
+            }
+            if (replayThread != null) {
+                replayThread.interrupt();
+            }
+        }
+        try {
+            if (replaying.tryLock(10, TimeUnit.SECONDS)) {
+                replaying.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openengsb.connector.gcalendar.internal.misc.FeedPage;
+import org.openengsb.core.api.DomainMethodExecutionException;
+
+import com.google.gdata.util.ServiceException;
+
+/**
+ * walks all pages of a calendar feed by following the next links. Once the caller moved past the first entry of a
+ * page, the next page is fetched in the background, so at most two pages are held in memory at any time. Callers
+ * that only look at the first entry never cause a second request. If no prefetch executor is set, or all of its
+ * threads are busy, the next page is fetched on the calling thread when it is needed.
+ */
+public class PagedEntryIterator<E> implements Iterator<E> {
+
+    static final int DEFAULT_PREFETCH_THREADS = 8;
+
+    /**
+     * loads a single page of the feed
+     */
+    public interface PageSource<E> {
+        /**
+         * fetches the page at the given url or the first page of the query if the url is null
+         */
+        FeedPage<E> fetch(URL pageUrl) throws IOException, ServiceException;
+    }
+
+    private final PageSource<E> source;
+    private final ExecutorService prefetchExecutor;
+
+    private Iterator<E> current = Collections.<E> emptyList().iterator();
+    private boolean movedIntoPage;
+    private URL nextUrl;
+    private Future<FeedPage<E>> nextPage;
+    private boolean started;
+
+    public PagedEntryIterator(PageSource<E> source) {
+        this(source, null);
+    }
+
+    public PagedEntryIterator(PageSource<E> source, ExecutorService prefetchExecutor) {
+        this.source = source;
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * creates the executor the pages are prefetched on, with at most the given number of threads and no queue
+     */
+    public static ExecutorService createPrefetchExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "gcalendar-prefetch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!started) {
+            started = true;
+            takePage(fetch(null));
+        }
+        while (!current.hasNext()) {
+            if (nextPage != null) {
+                takePage(await(nextPage));
+            } else if (nextUrl != null) {
+                takePage(fetch(nextUrl));
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (movedIntoPage) {
+            startPrefetch();
+        }
+        movedIntoPage = true;
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("the feed is read only");
+    }
+
+    private void takePage(FeedPage<E> page) {
+        current = page.getItems().iterator();
+        movedIntoPage = false;
+        nextPage = null;
+        String next = page.getNextHref();
+        if (next == null) {
+            nextUrl = null;
+            return;
+        }
+        try {
+            nextUrl = new URL(next);
+        } catch (MalformedURLException e) {
+            // should never be thrown since the url is provided by google
+            throw new DomainMethodExecutionException("invalid URL", e);
+        }
+    }
+
+    private void startPrefetch() {
+        if (nextUrl == null || nextPage != null || prefetchExecutor == null) {
+            return;
+        }
+        final URL pageUrl = nextUrl;
+        try {
+            nextPage = prefetchExecutor.submit(new Callable<FeedPage<E>>() {
+                @Override
+                public FeedPage<E> call() throws Exception {
+                    return source.fetch(pageUrl);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // all prefetch threads are busy or shut down, the page is fetched once it is needed
+        }
+    }
+
+    private FeedPage<E> fetch(URL pageUrl) {
+        try {
+            return source.fetch(pageUrl);
+        } catch (IOException e) {
+            throw new DomainMethodExecutionException("unable to connect to the google server", e);
+        } catch (ServiceException e) {
+            throw new DomainMethodExecutionException("unable to retrieve the appointments", e);
+        }
+    }
+
+    private static <E> FeedPage<E> await(Future<FeedPage<E>> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DomainMethodExecutionException("interrupted while waiting for the next page", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new DomainMethodExecutionException("unable to connect to the google server", cause);
+            }
+            if (cause instanceof ServiceException) {
+                throw new DomainMethodExecutionException("unable to retrieve the appointments", cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DomainMethodExecutionException("unable to retrieve the appointments", cause);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * token bucket limiting the requests per second of one connector instance. The rate adapts additive-increase,
+ * multiplicative-decrease style: it is halved whenever google reports a quota problem and grows back slowly while
+ * requests succeed, up to the configured maximum.
+ */
+public class RateLimiter {
+
+    static final double DEFAULT_MAX_RATE = 10;
+
+    private static final double MIN_RATE = 0.5;
+
+    /**
+     * requests per second gained per second of successful requests at the current rate
+     */
+    private static final double ADDITIVE_INCREASE = 1;
+
+    /**
+     * several concurrent requests usually fail because of the same quota problem, they only halve the rate once
+     */
+    private static final long DECREASE_COOLDOWN = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+
+    private double maxRate;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastDecrease;
+
+    public RateLimiter() {
+        this(DEFAULT_MAX_RATE);
+    }
+
+    public RateLimiter(double maxRate) {
+        checkRate(maxRate);
+        this.maxRate = maxRate;
+        rate = maxRate;
+        tokens = maxRate;
+        lastRefill = nanoTime();
+    }
+
+    private static void checkRate(double maxRate) {
+        // without tokens to refill, every request would wait forever
+        if (!(maxRate > 0)) {
+            throw new IllegalArgumentException("the rate limit must be positive, but was " + maxRate);
+        }
+    }
+
+    /**
+     * takes a token, waiting until one is available
+     */
+    public void acquire() throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= 1;
+            if (tokens >= 0) {
+                return;
+            }
+            // the token is reserved, we only have to wait until it would have been refilled
+            waitNanos = (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+        throttled.incrementAndGet();
+        try {
+            sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the rate limit");
+        }
+    }
+
+    /**
+     * the current time in nanoseconds, overridden by tests
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * waits for the given nanoseconds, overridden by tests
+     */
+    void sleep(long nanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+
+    private void refill() {
+        long now = nanoTime();
+        double elapsed = (double) (now - lastRefill) / TimeUnit.SECONDS.toNanos(1);
+        // the bucket holds at most one second worth of requests
+        tokens = Math.min(rate, tokens + elapsed * rate);
+        lastRefill = now;
+    }
+
+    /**
+     * google accepted a request, the rate may grow
+     */
+    public synchronized void onSuccess() {
+        rate = Math.min(maxRate, rate + ADDITIVE_INCREASE / rate);
+    }
+
+    /**
+     * google reported that a quota was exceeded, the rate is halved
+     */
+    public synchronized void onQuotaExceeded() {
+        long now = nanoTime();
+        if (now - lastDecrease < DECREASE_COOLDOWN) {
+            return;
+        }
+        lastDecrease = now;
+        refill();
+        rate = Math.max(MIN_RATE, rate / 2);
+        tokens = Math.min(tokens, 0);
+        decreases.incrementAndGet();
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * sets the maximum rate, a changed maximum also replaces the current rate. The rate has to be positive.
+     */
+    public synchronized void setMaxRate(double maxRate) {
+        checkRate(maxRate);
+        if (maxRate != this.maxRate) {
+            this.maxRate = maxRate;
+            rate = maxRate;
+        }
+    }
+
+    /**
+     * the number of requests that had to wait for a token
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * the number of times the rate was halved because of quota errors
+     */
+    public long getDecreaseCount() {
+        return decreases.get();
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentConverter;
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentIds;
+import org.openengsb.connector.gcalendar.internal.misc.Recurrence;
+import org.openengsb.domain.appointment.Appointment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.data.DateTime;
+import com.google.gdata.data.calendar.CalendarEventEntry;
+import com.google.gdata.data.extensions.OriginalEvent;
+import com.google.gdata.util.ParseException;
+
+/**
+ * the recurring events of the calendars of one connector instance. The masters of a calendar and the exceptions
+ * overriding single occurrences are fetched once and kept for maxAge, the occurrences of any range are expanded
+ * locally instead of being downloaded again with every query.
+ */
+public class RecurrenceCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecurrenceCache.class);
+
+    static final long DEFAULT_MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * fetches the recurring masters and the exceptions of a calendar
+     */
+    public interface Loader {
+        Iterator<CalendarEventEntry> load(String feed);
+    }
+
+    private final Loader loader;
+    private final Map<String, Masters> snapshots = new HashMap<String, Masters>();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong expanded = new AtomicLong();
+
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+
+    public RecurrenceCache(Loader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * the masters of the given calendar, loaded again if the cached ones are older than maxAge
+     */
+    public Masters get(String feed) {
+        synchronized (snapshots) {
+            Masters masters = snapshots.get(feed);
+            if (masters != null && System.currentTimeMillis() - masters.loadedAt <= maxAge) {
+                return masters;
+            }
+        }
+        // concurrent loads of the same calendar are harmless, the last one is kept
+        Masters masters = load(feed);
+        synchronized (snapshots) {
+            snapshots.put(feed, masters);
+        }
+        return masters;
+    }
+
+    private Masters load(String feed) {
+        long loadedAt = System.currentTimeMillis();
+        loads.incrementAndGet();
+        Masters masters = new Masters(loadedAt);
+        Map<String, List<Long>> overridden = new HashMap<String, List<Long>>();
+        Iterator<CalendarEventEntry> entries = loader.load(feed);
+        while (entries.hasNext()) {
+            CalendarEventEntry entry = entries.next();
+            OriginalEvent original = entry.getOriginalEvent();
+            if (original != null && original.getOriginalStartTime() != null) {
+                DateTime originalStart = original.getOriginalStartTime().getStartTime();
+                List<Long> starts = overridden.get(original.getOriginalId());
+                if (starts == null) {
+                    starts = new ArrayList<Long>();
+                    overridden.put(original.getOriginalId(), starts);
+                }
+                starts.add(AppointmentConverter.toInstant(originalStart, originalStart.isDateOnly()));
+            } else if (entry.getRecurrence() != null) {
+                masters.add(entry);
+            }
+        }
+        for (Master master : masters.byId.values()) {
+            List<Long> starts = overridden.get(AppointmentIds.getEventId(master.template.getId()));
+            if (starts != null) {
+                master.overridden = new long[starts.size()];
+                for (int i = 0; i < starts.size(); i++) {
+                    master.overridden[i] = starts.get(i);
+                }
+                Arrays.sort(master.overridden);
+            }
+        }
+        return masters;
+    }
+
+    /**
+     * drops the masters of every calendar
+     */
+    public void invalidate() {
+        synchronized (snapshots) {
+            snapshots.clear();
+        }
+    }
+
+    /**
+     * drops the masters of the calendar the given appointment belongs to, if it is a master or an occurrence. Changing
+     * an occurrence creates an exception, so the occurrence must not be expanded anymore.
+     */
+    public void invalidate(String id) {
+        String eventId = AppointmentIds.getEventId(id);
+        if (eventId == null) {
+            return;
+        }
+        int separator = eventId.indexOf('_');
+        String masterId = (separator < 0 ? eventId : eventId.substring(0, separator)) + "@"
+            + AppointmentIds.getCalendarKeyOf(id);
+        synchronized (snapshots) {
+            Iterator<Masters> iterator = snapshots.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isMaster(masterId)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * sets how long, in milliseconds, the masters of a calendar are used before they are loaded again
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * the number of times the masters of a calendar were loaded from google
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * the number of occurrences that were expanded locally
+     */
+    public long getExpandedCount() {
+        return expanded.get();
+    }
+
+    private static final class Master {
+        private final Recurrence recurrence;
+        private final Appointment template;
+        private long[] overridden = new long[0];
+
+        private Master(Recurrence recurrence, Appointment template) {
+            this.recurrence = recurrence;
+            this.template = template;
+        }
+    }
+
+    /**
+     * the recurring masters of one calendar as they were loaded at one point in time
+     */
+    public final class Masters {
+        private final long loadedAt;
+        private final Map<String, Master> byId = new HashMap<String, Master>();
+        private boolean complete = true;
+
+        private Masters(long loadedAt) {
+            this.loadedAt = loadedAt;
+        }
+
+        private void add(CalendarEventEntry entry) {
+            Appointment template = AppointmentConverter.convertCalendarEventEntryToAppointment(entry);
+            if (AppointmentIds.getEventId(template.getId()) == null) {
+                complete = false;
+                return;
+            }
+            try {
+                byId.put(template.getId(), new Master(Recurrence.parse(entry.getRecurrence().getValue()), template));
+            } catch (ParseException e) {
+                // google still expands the occurrences of rules we do not know
+                LOGGER.debug("unable to expand the recurrence of {} locally", template.getId(), e);
+                complete = false;
+            }
+        }
+
+        /**
+         * whether every recurring event of the calendar can be expanded locally
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public boolean isMaster(String id) {
+            return byId.containsKey(id);
+        }
+
+        /**
+         * adds the occurrences of all masters overlapping the range from from to to to the given list, occurrences
+         * that were changed or deleted on their own are left out
+         */
+        public void expand(long from, long to, List<Appointment> out) {
+            long count = 0;
+            for (Map.Entry<String, Master> entry : byId.entrySet()) {
+                Master master = entry.getValue();
+                Recurrence.Occurrences occurrences = master.recurrence.occurrences(from, to, master.overridden);
+                while (occurrences.next()) {
+                    Appointment occurrence = AppointmentConverter.copyAppointment(master.template);
+                    occurrence.setId(AppointmentIds.occurrenceId(entry.getKey(), occurrences.getOriginalStart(),
+                        master.recurrence.isFullDay()));
+                    occurrence.setStart(new Date(occurrences.getStart()));
+                    occurrence.setEnd(new Date(occurrences.getEnd()));
+                    occurrence.setFullDay(master.recurrence.isFullDay());
+                    out.add(occurrence);
+                    count++;
+                }
+            }
+            expanded.addAndGet(count);
+        }
+    }
+}
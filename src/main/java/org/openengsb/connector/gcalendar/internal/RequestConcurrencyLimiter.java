@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * bounds the requests all connector instances of a factory run against google at the same time. Every request leases
+ * a slot for its host once it has a client of its instance, so no more than maxPerHost requests run against one host
+ * and no more than maxTotal overall, no matter how many instances exist. A host is forgotten as soon as none of its
+ * slots is leased or waited for.
+ *
+ * The limiter does not pool connections. They are left to the keep-alive cache of the JVM, which the GData client uses
+ * through HttpURLConnection; its settings belong to whoever runs the JVM.
+ */
+public class RequestConcurrencyLimiter {
+
+    static final int DEFAULT_MAX_TOTAL = 64;
+    static final int DEFAULT_MAX_PER_HOST = 16;
+
+    private static final class HostState {
+        private int leased;
+        private int waiting;
+    }
+
+    private final Map<String, HostState> hosts = new HashMap<String, HostState>();
+
+    private int maxTotal = DEFAULT_MAX_TOTAL;
+    private int maxPerHost = DEFAULT_MAX_PER_HOST;
+
+    private int leased;
+    private long leaseCount;
+    private long waitCount;
+    private boolean shutdown;
+
+    /**
+     * leases a slot for a request to the given host, waiting while the host or the limit overall is reached
+     */
+    public synchronized void acquire(String host) throws IOException {
+        HostState state = hosts.get(host);
+        if (state == null) {
+            state = new HostState();
+            hosts.put(host, state);
+        }
+        boolean waited = false;
+        while (!shutdown && (state.leased >= maxPerHost || leased >= maxTotal)) {
+            waited = true;
+            state.waiting++;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                forgetIfIdle(host, state);
+                throw new InterruptedIOException("interrupted while waiting for a free request slot");
+            } finally {
+                state.waiting--;
+            }
+        }
+        if (shutdown) {
+            forgetIfIdle(host, state);
+            throw new IOException("the request limiter is shut down");
+        }
+        if (waited) {
+            waitCount++;
+        }
+        state.leased++;
+        leased++;
+        leaseCount++;
+    }
+
+    public synchronized void release(String host) {
+        HostState state = hosts.get(host);
+        state.leased--;
+        leased--;
+        forgetIfIdle(host, state);
+        notifyAll();
+    }
+
+    private void forgetIfIdle(String host, HostState state) {
+        if (state.leased == 0 && state.waiting == 0) {
+            hosts.remove(host);
+        }
+    }
+
+    /**
+     * stops the limiter, requests waiting for a slot and all later ones fail
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    public synchronized void setMaxTotal(int maxTotal) {
+        this.maxTotal = Math.max(1, maxTotal);
+        notifyAll();
+    }
+
+    public synchronized void setMaxPerHost(int maxPerHost) {
+        this.maxPerHost = Math.max(1, maxPerHost);
+        notifyAll();
+    }
+
+    /**
+     * the number of requests currently holding a slot
+     */
+    public synchronized int getLeased() {
+        return leased;
+    }
+
+    public synchronized int getLeased(String host) {
+        HostState state = hosts.get(host);
+        return state == null ? 0 : state.leased;
+    }
+
+    /**
+     * the number of slots leased since the limiter was created
+     */
+    public synchronized long getLeaseCount() {
+        return leaseCount;
+    }
+
+    /**
+     * the number of leases that had to wait for a free slot
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * the number of hosts with leased or awaited slots
+     */
+    public synchronized int getHostCount() {
+        return hosts.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("leased %d of %d on %d hosts, %d leases, %d waits", leased, maxTotal, hosts.size(),
+            leaseCount, waitCount);
+    }
+}
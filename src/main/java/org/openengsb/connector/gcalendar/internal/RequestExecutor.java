@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.util.ServiceException;
+
+/**
+ * sends the requests of one connector instance through its rate limiter and retries failures that are worth another
+ * try with jittered exponential backoff. Operations that are not idempotent, like inserts, are never repeated, since
+ * google would create a second entry if the first request actually got through.
+ */
+public class RequestExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestExecutor.class);
+
+    static final int DEFAULT_MAX_RETRIES = 3;
+
+    private static final long BASE_DELAY = 200;
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(10);
+
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final CircuitBreaker circuitBreaker;
+    private final Random random = new Random();
+    private final AtomicLong retries = new AtomicLong();
+
+    private volatile CalendarSession session;
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    private volatile ConnectorMetrics metrics;
+
+    public RequestExecutor(CalendarSession session) {
+        this(session, new CircuitBreaker());
+    }
+
+    RequestExecutor(CalendarSession session, CircuitBreaker circuitBreaker) {
+        this.session = session;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public <T> T execute(CalendarSession.Operation<T> operation, boolean idempotent)
+        throws IOException, ServiceException {
+        int attempt = 0;
+        while (true) {
+            if (!circuitBreaker.allowRequest()) {
+                throw new CircuitOpenException("google is considered unavailable after too many failed requests");
+            }
+            boolean counted = true;
+            boolean failed = false;
+            long begin = System.nanoTime();
+            try {
+                rateLimiter.acquire();
+                // waiting for the rate limit says nothing about google
+                begin = System.nanoTime();
+                T result = session.execute(operation);
+                recordRequest(HttpURLConnection.HTTP_OK, begin);
+                rateLimiter.onSuccess();
+                return result;
+            } catch (IOException e) {
+                counted = !(e instanceof InterruptedIOException);
+                failed = counted;
+                recordRequest(0, begin);
+                if (!idempotent || attempt >= maxRetries || e instanceof InterruptedIOException) {
+                    throw e;
+                }
+                LOGGER.debug("unable to reach google, retrying", e);
+            } catch (ServiceException e) {
+                failed = isTemporary(e);
+                recordRequest(e.getHttpErrorCodeOverride(), begin);
+                boolean quotaExceeded = isQuotaExceeded(e);
+                if (quotaExceeded) {
+                    rateLimiter.onQuotaExceeded();
+                }
+                if (!idempotent || attempt >= maxRetries || !(quotaExceeded || isServerError(e))) {
+                    throw e;
+                }
+                LOGGER.debug("google answered {}, retrying", e.getHttpErrorCodeOverride(), e);
+            } catch (RuntimeException e) {
+                // e.g. an answer the client could not parse, a half-open breaker must not close on it
+                failed = true;
+                throw e;
+            } finally {
+                if (counted) {
+                    circuitBreaker.onResult(failed, System.nanoTime() - begin);
+                } else {
+                    circuitBreaker.onIgnored();
+                }
+            }
+            attempt++;
+            retries.incrementAndGet();
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * runs the probe of the circuit breaker once. It passes the open breaker and is not retried, the breaker learns
+     * its outcome from the probe itself, but it waits for the rate limit and is counted like any other request.
+     */
+    public <T> T executeProbe(CalendarSession.Operation<T> operation) throws IOException, ServiceException {
+        long begin = System.nanoTime();
+        try {
+            rateLimiter.acquire();
+            begin = System.nanoTime();
+            T result = session.execute(operation);
+            recordRequest(HttpURLConnection.HTTP_OK, begin);
+            rateLimiter.onSuccess();
+            return result;
+        } catch (IOException e) {
+            recordRequest(0, begin);
+            throw e;
+        } catch (ServiceException e) {
+            recordRequest(e.getHttpErrorCodeOverride(), begin);
+            if (isQuotaExceeded(e)) {
+                rateLimiter.onQuotaExceeded();
+            }
+            throw e;
+        }
+    }
+
+    private void recordRequest(int status, long begin) {
+        ConnectorMetrics current = metrics;
+        if (current != null) {
+            current.recordRequest(status, begin);
+        }
+    }
+
+    private void backoff(int attempt) throws InterruptedIOException {
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt - 1, 16));
+        // full jitter keeps concurrent callers from retrying in lockstep
+        long sleep;
+        synchronized (random) {
+            sleep = (long) (random.nextDouble() * delay);
+        }
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a retry");
+        }
+    }
+
+    /**
+     * whether google may accept the request when it is sent again later
+     */
+    static boolean isTemporary(ServiceException e) {
+        return isQuotaExceeded(e) || isServerError(e);
+    }
+
+    private static boolean isServerError(ServiceException e) {
+        int code = e.getHttpErrorCodeOverride();
+        return code >= HttpURLConnection.HTTP_INTERNAL_ERROR && code != HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+    }
+
+    /**
+     * google reports exceeded quotas as 403 with a reason mentioning the limit, or as 503
+     */
+    private static boolean isQuotaExceeded(ServiceException e) {
+        int code = e.getHttpErrorCodeOverride();
+        if (code == HttpURLConnection.HTTP_UNAVAILABLE) {
+            return true;
+        }
+        if (code != HttpURLConnection.HTTP_FORBIDDEN) {
+            return false;
+        }
+        String text = String.valueOf(e.getResponseBody()) + e.getMessage();
+        text = text.toLowerCase();
+        return text.contains("quota") || text.contains("limit");
+    }
+
+    void setSession(CalendarSession session) {
+        this.session = session;
+    }
+
+    /**
+     * lets every request be measured by the given metrics, by the status class of its answer
+     */
+    public void setMetrics(ConnectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * the number of requests that were repeated after a failure
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openengsb.core.api.DomainMethodExecutionException;
+
+/**
+ * lets concurrent identical reads share one request to google. The first caller for a key loads the value, callers
+ * arriving while it is loading wait for that result instead of sending their own request. A shared result is copied
+ * for every caller, so nobody sees the changes another caller makes to its result.
+ *
+ * A write makes the loads in flight stale, since they may have been answered before the write reached google. After
+ * {@link #newGeneration()} callers no longer join the loads started before, but start their own.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * creates an independent copy of a loaded value
+     */
+    public interface Copier<V> {
+        V copy(V value);
+    }
+
+    private static final class Flight<V> {
+        private final FutureTask<V> task;
+        private final long generation;
+        private int joined;
+
+        private Flight(Callable<V> loader, long generation) {
+            task = new FutureTask<V>(loader);
+            this.generation = generation;
+        }
+    }
+
+    private final Copier<V> copier;
+    private final Map<K, Flight<V>> inFlight = new HashMap<K, Flight<V>>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private long generation;
+
+    public SingleFlight(Copier<V> copier) {
+        this.copier = copier;
+    }
+
+    /**
+     * returns the value for the key, loading it with the given loader unless a load for the key is in flight already
+     */
+    public V execute(K key, Callable<V> loader) {
+        calls.incrementAndGet();
+        Flight<V> flight;
+        boolean leader;
+        synchronized (inFlight) {
+            flight = inFlight.get(key);
+            leader = flight == null || flight.generation != generation;
+            if (leader) {
+                flight = new Flight<V>(loader, generation);
+                inFlight.put(key, flight);
+            } else {
+                flight.joined++;
+            }
+        }
+        if (!leader) {
+            shared.incrementAndGet();
+            return copier.copy(await(flight));
+        }
+
+        int joined;
+        try {
+            flight.task.run();
+        } finally {
+            synchronized (inFlight) {
+                // a flight of a newer generation may have taken the place of this one
+                if (inFlight.get(key) == flight) {
+                    inFlight.remove(key);
+                }
+                joined = flight.joined;
+            }
+        }
+        V value = await(flight);
+        // nobody else can get hold of the value if no caller joined
+        return joined == 0 ? value : copier.copy(value);
+    }
+
+    private static <V> V await(Flight<V> flight) {
+        try {
+            return flight.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DomainMethodExecutionException("interrupted while waiting for a shared read", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DomainMethodExecutionException("shared read failed", cause);
+        }
+    }
+
+    /**
+     * lets the following calls start their own loads instead of joining the ones in flight, to be called once a write
+     * changed the data they load
+     */
+    public void newGeneration() {
+        synchronized (inFlight) {
+            generation++;
+        }
+    }
+
+    /**
+     * the number of reads, shared or not
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     * the number of reads that were answered by a request another caller sent
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    /**
+     * the share of reads that did not need a request of their own
+     */
+    public double getHitRate() {
+        long total = calls.get();
+        return total == 0 ? 0 : (double) shared.get() / total;
+    }
+}
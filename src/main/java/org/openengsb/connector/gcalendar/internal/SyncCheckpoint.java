@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openengsb.domain.appointment.Appointment;
+
+/**
+ * state of a {@link CalendarSyncEngine} that can be written to disk, so a restarted connector continues with a delta
+ * sync instead of loading the whole calendar again
+ */
+public class SyncCheckpoint {
+
+    /**
+     * strings written as length and UTF-8 bytes. Version 1 used modified UTF-8, which is limited to 64KB.
+     */
+    private static final int FORMAT_VERSION = 2;
+    private static final int LEGACY_FORMAT_VERSION = 1;
+
+    private final long updatedMin;
+    private final Map<String, CalendarSyncEngine.MirrorEntry> entries;
+
+    SyncCheckpoint(long updatedMin, Map<String, CalendarSyncEngine.MirrorEntry> entries) {
+        this.updatedMin = updatedMin;
+        this.entries = entries;
+    }
+
+    /**
+     * the time of the last change that was seen, in the clock of the google server
+     */
+    public long getUpdatedMin() {
+        return updatedMin;
+    }
+
+    Map<String, CalendarSyncEngine.MirrorEntry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FORMAT_VERSION);
+        data.writeLong(updatedMin);
+        data.writeInt(entries.size());
+        for (Map.Entry<String, CalendarSyncEngine.MirrorEntry> entry : entries.entrySet()) {
+            writeText(data, entry.getKey());
+            data.writeLong(entry.getValue().getUpdated());
+            writeAppointment(data, entry.getValue().getAppointment());
+        }
+        data.flush();
+    }
+
+    public static SyncCheckpoint readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readInt();
+        if (version != FORMAT_VERSION && version != LEGACY_FORMAT_VERSION) {
+            throw new IOException("unsupported checkpoint format " + version);
+        }
+        boolean legacy = version == LEGACY_FORMAT_VERSION;
+        long updatedMin = data.readLong();
+        int size = data.readInt();
+        Map<String, CalendarSyncEngine.MirrorEntry> entries =
+            new LinkedHashMap<String, CalendarSyncEngine.MirrorEntry>();
+        for (int i = 0; i < size; i++) {
+            String key = legacy ? data.readUTF() : readText(data);
+            long updated = data.readLong();
+            Appointment appointment = legacy ? readLegacyAppointment(data) : readAppointment(data);
+            entries.put(key, new CalendarSyncEngine.MirrorEntry(appointment, updated));
+        }
+        return new SyncCheckpoint(updatedMin, entries);
+    }
+
+    static void writeAppointment(DataOutputStream data, Appointment appointment) throws IOException {
+        writeString(data, appointment.getId());
+        writeString(data, appointment.getName());
+        writeString(data, appointment.getDescription());
+        writeString(data, appointment.getLocation());
+        writeDate(data, appointment.getStart());
+        writeDate(data, appointment.getEnd());
+        data.writeBoolean(Boolean.TRUE.equals(appointment.getFullDay()));
+    }
+
+    static Appointment readAppointment(DataInputStream data) throws IOException {
+        return readAppointment(data, false);
+    }
+
+    /**
+     * reads an appointment written with modified UTF-8 strings, as done by earlier versions
+     */
+    static Appointment readLegacyAppointment(DataInputStream data) throws IOException {
+        return readAppointment(data, true);
+    }
+
+    private static Appointment readAppointment(DataInputStream data, boolean legacy) throws IOException {
+        Appointment appointment = new Appointment();
+        appointment.setId(readString(data, legacy));
+        appointment.setName(readString(data, legacy));
+        appointment.setDescription(readString(data, legacy));
+        appointment.setLocation(readString(data, legacy));
+        appointment.setStart(readDate(data));
+        appointment.setEnd(readDate(data));
+        appointment.setFullDay(data.readBoolean());
+        return appointment;
+    }
+
+    /**
+     * writes the string as its length followed by its UTF-8 bytes. Unlike {@link DataOutputStream#writeUTF(String)}
+     * this is not limited to 64KB.
+     */
+    static void writeText(DataOutputStream data, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    static String readText(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            throw new IOException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            writeText(data, value);
+        }
+    }
+
+    private static String readString(DataInputStream data, boolean legacy) throws IOException {
+        if (!data.readBoolean()) {
+            return null;
+        }
+        return legacy ? data.readUTF() : readText(data);
+    }
+
+    private static void writeDate(DataOutputStream data, Date value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeLong(value.getTime());
+        }
+    }
+
+    private static Date readDate(DataInputStream data) throws IOException {
+        return data.readBoolean() ? new Date(data.readLong()) : null;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openengsb.domain.appointment.Appointment;
+
+/**
+ * the differences found by one synchronization cycle
+ */
+public class SyncResult {
+
+    private final List<Appointment> inserts = new ArrayList<Appointment>();
+    private final List<Appointment> updates = new ArrayList<Appointment>();
+    private final List<Appointment> deletes = new ArrayList<Appointment>();
+
+    public List<Appointment> getInserts() {
+        return inserts;
+    }
+
+    public List<Appointment> getUpdates() {
+        return updates;
+    }
+
+    public List<Appointment> getDeletes() {
+        return deletes;
+    }
+
+    public boolean isEmpty() {
+        return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d inserts, %d updates, %d deletes", inserts.size(), updates.size(), deletes.size());
+    }
+}
@@ -0,0 +1,497 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentConverter;
+import org.openengsb.domain.appointment.Appointment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * append-only file holding the writes of a connector instance that were accepted but not sent to google yet. Every
+ * record carries a checksum, so a record torn by a crash is detected and cut off when the journal is opened again.
+ *
+ * An append returns once its record is on disk. Appends arriving while the file is synced wait for the next sync,
+ * which then covers all of them, so concurrent writers share the cost of the fsync. Marking operations as applied is
+ * not synced, after a crash the last operations are simply sent again.
+ *
+ * The ids google assigned to appointments created with a local id are kept as aliases for maxAliasAge, and at most
+ * maxAliases of them, as long as no pending operation still refers to the local id. The age counts from the moment the
+ * insert was applied, which is when the id google assigned is committed to the EKB. A caller may use a local id until
+ * then and for maxAliasAge afterwards, as long as fewer than maxAliases inserts were applied since; later it has to use
+ * the id from the EKB. A local id that is neither pending nor aliased is unknown, see {@link #isKnown(String)}.
+ */
+public class WriteJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteJournal.class);
+
+    /**
+     * the journal is rewritten once it grew by this many bytes since it was last rewritten and all of its operations
+     * were applied
+     */
+    static final long DEFAULT_COMPACT_SIZE = 1024 * 1024;
+    static final long DEFAULT_MAX_ALIAS_AGE = TimeUnit.DAYS.toMillis(1);
+    static final int DEFAULT_MAX_ALIASES = 10000;
+
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * operation with modified UTF-8 strings, as written by earlier versions
+     */
+    private static final byte OPERATION_RECORD = 1;
+    private static final byte APPLIED_RECORD = 2;
+    /**
+     * alias without the time it was added, as written by earlier versions
+     */
+    private static final byte ALIAS_RECORD = 3;
+    /**
+     * alias with modified UTF-8 strings, as written by earlier versions
+     */
+    private static final byte TIMED_ALIAS_RECORD = 4;
+    private static final byte TEXT_OPERATION_RECORD = 5;
+    private static final byte TEXT_ALIAS_RECORD = 6;
+
+    public enum Operation {
+        INSERT, UPDATE, DELETE
+    }
+
+    /**
+     * an operation waiting to be sent to google
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final Operation operation;
+        private final Appointment appointment;
+        private volatile boolean uncertain;
+
+        private Entry(long sequence, Operation operation, Appointment appointment, boolean uncertain) {
+            this.sequence = sequence;
+            this.operation = operation;
+            this.appointment = appointment;
+            this.uncertain = uncertain;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public Appointment getAppointment() {
+            return appointment;
+        }
+
+        /**
+         * whether the operation may have reached google already, because it was recovered after a restart or the
+         * last attempt failed without an answer
+         */
+        public boolean isUncertain() {
+            return uncertain;
+        }
+
+        void setUncertain(boolean uncertain) {
+            this.uncertain = uncertain;
+        }
+    }
+
+    private static final class Alias {
+        private final String id;
+        private final long created;
+
+        private Alias(String id, long created) {
+            this.id = id;
+            this.created = created;
+        }
+    }
+
+    private final File file;
+    private final Object syncLock = new Object();
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private final Map<String, Alias> aliases = new LinkedHashMap<String, Alias>();
+
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long size;
+    private long compactedSize;
+    private long lastSequence;
+    private long syncedSequence;
+    private long syncCount;
+    private long compactSize = DEFAULT_COMPACT_SIZE;
+    private long maxAliasAge = DEFAULT_MAX_ALIAS_AGE;
+    private int maxAliases = DEFAULT_MAX_ALIASES;
+
+    /**
+     * opens the journal, recovering the operations that were not applied before the last shutdown or crash
+     */
+    public WriteJournal(File file) throws IOException {
+        this.file = file;
+        recover();
+        open();
+    }
+
+    private void recover() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] payload;
+            while ((payload = readRecord(in)) != null) {
+                apply(payload);
+                valid += RECORD_HEADER_SIZE + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+        if (valid < file.length()) {
+            LOGGER.warn("cutting off {} bytes of an incomplete record at the end of {}", file.length() - valid, file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        size = valid;
+        compactedSize = valid;
+        syncedSequence = lastSequence;
+        LOGGER.info("recovered {} pending operations from {}", pending.size(), file);
+    }
+
+    /**
+     * reads the next record, null at the end of the file or at a record that was not written completely
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return checksum(payload) == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = data.readByte();
+        if (type == OPERATION_RECORD || type == TEXT_OPERATION_RECORD) {
+            long sequence = data.readLong();
+            Operation operation = Operation.values()[data.readByte()];
+            Appointment appointment = type == OPERATION_RECORD
+                ? SyncCheckpoint.readLegacyAppointment(data) : SyncCheckpoint.readAppointment(data);
+            pending.put(sequence, new Entry(sequence, operation, appointment, true));
+            lastSequence = Math.max(lastSequence, sequence);
+        } else if (type == APPLIED_RECORD) {
+            pending.remove(data.readLong());
+        } else if (type == ALIAS_RECORD) {
+            putAlias(data.readUTF(), new Alias(data.readUTF(), System.currentTimeMillis()));
+        } else if (type == TIMED_ALIAS_RECORD) {
+            putAlias(data.readUTF(), new Alias(data.readUTF(), data.readLong()));
+        } else if (type == TEXT_ALIAS_RECORD) {
+            String localId = SyncCheckpoint.readText(data);
+            putAlias(localId, new Alias(SyncCheckpoint.readText(data), data.readLong()));
+        } else {
+            throw new IOException("unknown record type " + type + " in " + file);
+        }
+    }
+
+    private void open() throws IOException {
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    /**
+     * appends the operation and waits until it is on disk. The appointment is copied, so the caller may change it
+     * afterwards.
+     */
+    public long append(Operation operation, Appointment appointment) throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = lastSequence + 1;
+            Entry entry = new Entry(sequence, operation, AppointmentConverter.copyAppointment(appointment), false);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(TEXT_OPERATION_RECORD);
+            data.writeLong(sequence);
+            data.writeByte(operation.ordinal());
+            SyncCheckpoint.writeAppointment(data, entry.getAppointment());
+            writeRecord(bytes.toByteArray());
+            lastSequence = sequence;
+            pending.put(sequence, entry);
+        }
+        sync(sequence);
+        return sequence;
+    }
+
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSequence >= sequence) {
+                // synced together with the record of another writer
+                return;
+            }
+            long synced;
+            FileChannel channel;
+            synchronized (this) {
+                out.flush();
+                synced = lastSequence;
+                channel = fileOut.getChannel();
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                LOGGER.debug("the journal was compacted or closed meanwhile, which synced it");
+            }
+            syncedSequence = synced;
+            syncCount++;
+        }
+    }
+
+    /**
+     * removes the operations from the journal, they were sent to google or turned out to be obsolete
+     */
+    public synchronized void markApplied(Collection<Entry> entries) throws IOException {
+        for (Entry entry : entries) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(APPLIED_RECORD);
+            data.writeLong(entry.getSequence());
+            writeRecord(bytes.toByteArray());
+            pending.remove(entry.getSequence());
+        }
+        out.flush();
+        if (pending.isEmpty() && size - compactedSize >= compactSize) {
+            compact();
+        }
+    }
+
+    /**
+     * remembers the id google assigned to an appointment that was created with a local id
+     */
+    public synchronized void addAlias(String localId, String id) throws IOException {
+        Alias alias = new Alias(id, System.currentTimeMillis());
+        putAlias(localId, alias);
+        writeRecord(aliasRecord(localId, alias));
+        out.flush();
+        expireAliases(alias.created);
+    }
+
+    private void putAlias(String localId, Alias alias) {
+        // re-inserted, so the map stays ordered by age
+        aliases.remove(localId);
+        aliases.put(localId, alias);
+    }
+
+    /**
+     * forgets the aliases older than maxAliasAge and the oldest ones beyond maxAliases, unless a pending operation
+     * still refers to their local id. They are dropped from the file with the next compaction.
+     */
+    synchronized void expireAliases(long now) {
+        if (aliases.isEmpty()) {
+            return;
+        }
+        int excess = aliases.size() - maxAliases;
+        Set<String> referenced = new HashSet<String>();
+        for (Entry entry : pending.values()) {
+            referenced.add(entry.getAppointment().getId());
+        }
+        Iterator<Map.Entry<String, Alias>> oldest = aliases.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<String, Alias> alias = oldest.next();
+            boolean expired = now - alias.getValue().created >= maxAliasAge;
+            if (!expired && excess <= 0) {
+                break;
+            }
+            if (!referenced.contains(alias.getKey())) {
+                oldest.remove();
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * the id google assigned to the appointment with the given local id, or the given id if there is none
+     */
+    public synchronized String resolve(String id) {
+        Alias alias = aliases.get(id);
+        return alias == null ? id : alias.id;
+    }
+
+    /**
+     * whether the local id can still be used: its insert is pending or the id google assigned is still kept
+     */
+    public synchronized boolean isKnown(String localId) {
+        if (aliases.containsKey(localId)) {
+            return true;
+        }
+        for (Entry entry : pending.values()) {
+            if (localId.equals(entry.getAppointment().getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int getAliasCount() {
+        return aliases.size();
+    }
+
+    /**
+     * the operations not applied yet, in the order they were appended
+     */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<Entry>(pending.values());
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * the number of times the journal was synced to disk
+     */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    synchronized void setCompactSize(long compactSize) {
+        this.compactSize = compactSize;
+    }
+
+    /**
+     * sets the milliseconds the id google assigned to an appointment created with a local id is kept, counted from
+     * the moment the insert was applied
+     */
+    public synchronized void setMaxAliasAge(long maxAliasAge) {
+        this.maxAliasAge = Math.max(0, maxAliasAge);
+    }
+
+    /**
+     * sets the number of aliases kept, the oldest ones beyond are forgotten even if they are younger than maxAliasAge
+     */
+    public synchronized void setMaxAliases(int maxAliases) {
+        this.maxAliases = Math.max(0, maxAliases);
+    }
+
+    /**
+     * replaces the journal by one holding only the aliases that did not expire yet, which have to survive as long as
+     * callers may still use the local ids
+     */
+    private void compact() throws IOException {
+        expireAliases(System.currentTimeMillis());
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream tempOut = new FileOutputStream(tempFile);
+        long newSize = 0;
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tempOut));
+            for (Map.Entry<String, Alias> alias : aliases.entrySet()) {
+                byte[] payload = aliasRecord(alias.getKey(), alias.getValue());
+                writeRecord(data, payload);
+                newSize += RECORD_HEADER_SIZE + payload.length;
+            }
+            data.flush();
+            tempOut.getChannel().force(false);
+        } finally {
+            tempOut.close();
+        }
+        out.close();
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+            open();
+            throw new IOException("unable to replace " + file);
+        }
+        open();
+        size = newSize;
+        compactedSize = newSize;
+    }
+
+    private static byte[] aliasRecord(String localId, Alias alias) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(TEXT_ALIAS_RECORD);
+        SyncCheckpoint.writeText(data, localId);
+        SyncCheckpoint.writeText(data, alias.id);
+        data.writeLong(alias.created);
+        return bytes.toByteArray();
+    }
+
+    private void writeRecord(byte[] payload) throws IOException {
+        writeRecord(out, payload);
+        size += RECORD_HEADER_SIZE + payload.length;
+    }
+
+    private static void writeRecord(DataOutputStream data, byte[] payload) throws IOException {
+        data.writeInt(payload.length);
+        data.writeInt(checksum(payload));
+        data.write(payload);
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * writes the buffered records to disk and closes the file, pending operations are replayed when it is opened
+     * again
+     */
+    public synchronized void close() throws IOException {
+        out.flush();
+        fileOut.getChannel().force(false);
+        out.close();
+    }
+}
@@ -17,8 +17,8 @@
 
 package org.openengsb.connector.gcalendar.internal.misc;
 
-import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 
 import org.openengsb.domain.appointment.Appointment;
@@ -26,6 +26,7 @@ import org.openengsb.domain.appointment.Appointment;
 import com.google.gdata.data.DateTime;
 import com.google.gdata.data.TextConstruct;
 import com.google.gdata.data.calendar.CalendarEventEntry;
+import com.google.gdata.data.extensions.BaseEventEntry;
 import com.google.gdata.data.extensions.When;
 import com.google.gdata.data.extensions.Where;
 
@@ -34,6 +35,12 @@ import com.google.gdata.data.extensions.Where;
  * domain
  */
 public final class AppointmentConverter {
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int MILLIS_PER_MINUTE = 60 * 1000;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
     private AppointmentConverter() {
     }
     
@@ -42,30 +49,78 @@ public final class AppointmentConverter {
      */
     public static Appointment convertCalendarEventEntryToAppointment(CalendarEventEntry entry) {
         Appointment appointment = new Appointment();
-        appointment.setId(entry.getEditLink().getHref());
-        // in google multiple Locations can be set
-        appointment.setLocation(entry.getLocations().get(0).getValueString());
-        appointment.setName(entry.getTitle().getPlainText());
-        appointment.setDescription(entry.getPlainTextContent());
+        appointment.setId(AppointmentIds.fromEditLink(entry.getEditLink().getHref()));
+        // in google multiple Locations can be set, entries of a partial response may have none at all
+        List<Where> locations = entry.getLocations();
+        if (!locations.isEmpty()) {
+            appointment.setLocation(locations.get(0).getValueString());
+        }
+        if (entry.getTitle() != null) {
+            appointment.setName(entry.getTitle().getPlainText());
+        }
+        if (entry.getContent() != null) {
+            appointment.setDescription(entry.getPlainTextContent());
+        }
         
-        for (When time : entry.getTimes()) {
-            appointment.setFullDay(time.getStartTime().isDateOnly());
-            
-            Date start = new Date(time.getStartTime().getValue());
-            Date end = new Date(time.getEndTime().getValue());
-            
-            if(appointment.getFullDay()) {
-                start = trimTime(start, TimeZone.getDefault());
-                end = trimTime(end, TimeZone.getDefault());
-            }
-            appointment.setStart(start);
-            appointment.setEnd(end);
-            break;
+        List<When> times = entry.getTimes();
+        if (!times.isEmpty()) {
+            When time = times.get(0);
+            setTimes(appointment, time.getStartTime(), time.getEndTime());
         }
         
         return appointment;
     }
 
+    /**
+     * whether the entry was cancelled, like a deleted occurrence of a recurring event
+     */
+    public static boolean isCanceled(CalendarEventEntry entry) {
+        BaseEventEntry.EventStatus status = entry.getStatus();
+        return status != null && BaseEventEntry.EventStatus.CANCELED.getValue().equals(status.getValue());
+    }
+
+    /**
+     * sets the times of the appointment from the times of an entry
+     */
+    static void setTimes(Appointment appointment, DateTime startTime, DateTime endTime) {
+        boolean fullDay = startTime.isDateOnly();
+        appointment.setFullDay(fullDay);
+
+        appointment.setStart(new Date(toInstant(startTime, fullDay)));
+        appointment.setEnd(new Date(toInstant(endTime, fullDay)));
+    }
+
+    /**
+     * the instant of a time of an entry, the days of full day entries start at local midnight
+     */
+    public static long toInstant(DateTime time, boolean fullDay) {
+        return toInstant(time.getValue(), fullDay);
+    }
+
+    static long toInstant(long value, boolean fullDay) {
+        if (!fullDay) {
+            return value;
+        }
+        // the default zone may be changed while the connector runs, it is looked up for every conversion
+        TimeZone local = TimeZone.getDefault();
+        return startOfDay(value, local, local);
+    }
+
+    /**
+     * creates a copy of the given appointment, so the copy can be handed out without exposing the original
+     */
+    public static Appointment copyAppointment(Appointment appointment) {
+        Appointment copy = new Appointment();
+        copy.setId(appointment.getId());
+        copy.setName(appointment.getName());
+        copy.setDescription(appointment.getDescription());
+        copy.setLocation(appointment.getLocation());
+        copy.setStart(appointment.getStart() == null ? null : new Date(appointment.getStart().getTime()));
+        copy.setEnd(appointment.getEnd() == null ? null : new Date(appointment.getEnd().getTime()));
+        copy.setFullDay(appointment.getFullDay());
+        return copy;
+    }
+
     /**
      * converts an appointment object to a calendar event entry
      */
@@ -79,7 +134,10 @@ public final class AppointmentConverter {
      */
     public static CalendarEventEntry extendCalendarEventEntryWithAppointment(CalendarEventEntry entry,
             Appointment appointment) {
-        entry.setId(appointment.getId());
+        // neither a compact id nor an edit link is an atom id, an entry loaded from google keeps the one it has
+        if (entry.getId() == null && (appointment.getId() == null || AppointmentIds.isUrl(appointment.getId()))) {
+            entry.setId(appointment.getId());
+        }
 
         entry.setTitle(TextConstruct.plainText(appointment.getName()));
         entry.setContent(TextConstruct.plainText(appointment.getDescription()));
@@ -116,13 +174,16 @@ public final class AppointmentConverter {
         DateTime startTime;
         DateTime endTime;
 
+        long start = appointment.getStart().getTime();
+        long end = appointment.getEnd().getTime();
+        TimeZone local = TimeZone.getDefault();
         if (appointment.getFullDay() == null || !appointment.getFullDay()) {
-            startTime = new DateTime(appointment.getStart(), TimeZone.getDefault());
-            endTime = new DateTime(appointment.getEnd(), TimeZone.getDefault());
+            startTime = new DateTime(start, local.getOffset(start) / MILLIS_PER_MINUTE);
+            endTime = new DateTime(end, local.getOffset(end) / MILLIS_PER_MINUTE);
         }
         else {
-            startTime = new DateTime(trimTime(appointment.getStart(), TimeZone.getTimeZone("UTC")));
-            endTime = new DateTime(trimTime(appointment.getEnd(), TimeZone.getTimeZone("UTC")));
+            startTime = new DateTime(startOfDay(start, local, UTC));
+            endTime = new DateTime(startOfDay(end, local, UTC));
 
             startTime.setDateOnly(true);
             endTime.setDateOnly(true);
@@ -144,20 +205,21 @@ public final class AppointmentConverter {
     }
 
     /**
-     * sets the time information of a given Date to midnight in the given time zone 
+     * returns midnight, in midnightZone, of the day the given instant falls on in dayZone. This is plain arithmetic on
+     * the zone offsets, so unlike a Calendar it does not allocate anything.
      */
-    private static Date trimTime(Date date, TimeZone tz) {
-        Calendar cal = Calendar.getInstance();
-
-        cal.setTime(date);
-
-        cal.set(Calendar.HOUR_OF_DAY, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        
-        cal.setTimeZone(tz);
-
-        return cal.getTime();
+    static long startOfDay(long instant, TimeZone dayZone, TimeZone midnightZone) {
+        long localTime = instant + dayZone.getOffset(instant);
+        long day = localTime / MILLIS_PER_DAY;
+        if (localTime % MILLIS_PER_DAY < 0) {
+            day--;
+        }
+        long midnight = day * MILLIS_PER_DAY;
+        long result = midnight - midnightZone.getOffset(midnight - midnightZone.getRawOffset());
+        if (result + midnightZone.getOffset(result) != midnight) {
+            // midnight was skipped by a daylight saving time switch, like Calendar we take the offset before it
+            result = midnight - midnightZone.getOffset(result - 1);
+        }
+        return result;
     }
 }
@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.data.DateTime;
+import com.google.gdata.util.ParseException;
+
+/**
+ * reads an event feed straight into appointments. Only the elements the appointment domain needs are looked at,
+ * everything else is skipped without building any intermediate objects. The result is the same as parsing the feed
+ * with the GData client and converting every entry with
+ * {@link AppointmentConverter#convertCalendarEventEntryToAppointment}, but cancelled entries, like deleted occurrences
+ * of a recurring event, are left out.
+ */
+public final class AppointmentFeedParser {
+
+    private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+    private static final String GD_NS = "http://schemas.google.com/g/2005";
+    private static final String ATOM_TYPE = "application/atom+xml";
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private AppointmentFeedParser() {
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * parses one page of an event feed, leaving out cancelled entries. The stream is not closed.
+     */
+    public static FeedPage<Appointment> parse(InputStream in) throws ParseException {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(in);
+            reader.nextTag();
+            if (!isElement(reader, ATOM_NS, "feed")) {
+                throw new ParseException("expected an atom feed but found " + reader.getName());
+            }
+            List<Appointment> appointments = new ArrayList<Appointment>();
+            String nextHref = null;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (isElement(reader, ATOM_NS, "entry")) {
+                    Appointment appointment = parseEntry(reader);
+                    if (appointment != null) {
+                        appointments.add(appointment);
+                    }
+                } else {
+                    if (nextHref == null && isAtomLink(reader, "next")) {
+                        nextHref = reader.getAttributeValue(null, "href");
+                    }
+                    skipElement(reader);
+                }
+            }
+            return new FeedPage<Appointment>(appointments, nextHref);
+        } catch (XMLStreamException e) {
+            throw new ParseException("unable to parse the event feed", e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * reads the times of every entry of one page of an event feed into the given intervals and returns the href of
+     * the next page, null if this is the last one. Entries that do not block time are left out. The stream is not
+     * closed.
+     */
+    public static String parseBusy(InputStream in, BusyIntervals busy) throws ParseException {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(in);
+            reader.nextTag();
+            if (!isElement(reader, ATOM_NS, "feed")) {
+                throw new ParseException("expected an atom feed but found " + reader.getName());
+            }
+            String nextHref = null;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (isElement(reader, ATOM_NS, "entry")) {
+                    parseBusyEntry(reader, busy);
+                } else {
+                    if (nextHref == null && isAtomLink(reader, "next")) {
+                        nextHref = reader.getAttributeValue(null, "href");
+                    }
+                    skipElement(reader);
+                }
+            }
+            return nextHref;
+        } catch (XMLStreamException e) {
+            throw new ParseException("unable to parse the event feed", e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * an entry of a recurring event carries one time for every occurrence in the queried range
+     */
+    private static void parseBusyEntry(XMLStreamReader reader, BusyIntervals busy) throws XMLStreamException {
+        long[] times = new long[8];
+        int size = 0;
+        boolean free = false;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (isElement(reader, GD_NS, "when")) {
+                String start = reader.getAttributeValue(null, "startTime");
+                String end = reader.getAttributeValue(null, "endTime");
+                if (start != null && end != null) {
+                    DateTime startTime = parseDateTime(start);
+                    boolean fullDay = startTime.isDateOnly();
+                    if (size == times.length) {
+                        times = Arrays.copyOf(times, size * 2);
+                    }
+                    times[size++] = AppointmentConverter.toInstant(startTime, fullDay);
+                    times[size++] = AppointmentConverter.toInstant(parseDateTime(end), fullDay);
+                }
+            } else if (isElement(reader, GD_NS, "transparency") || isElement(reader, GD_NS, "eventStatus")) {
+                String value = reader.getAttributeValue(null, "value");
+                free |= value != null && (value.endsWith(".transparent") || value.endsWith(".canceled"));
+            }
+            skipElement(reader);
+        }
+        for (int i = 0; !free && i < size; i += 2) {
+            busy.add(times[i], times[i + 1]);
+        }
+    }
+
+    /**
+     * reads the entry the reader is positioned at, leaving it at the end of the entry. Returns null if the entry was
+     * cancelled.
+     */
+    private static Appointment parseEntry(XMLStreamReader reader) throws XMLStreamException {
+        Appointment appointment = new Appointment();
+        boolean located = false;
+        boolean timed = false;
+        boolean canceled = false;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (appointment.getId() == null && isAtomLink(reader, "edit")) {
+                appointment.setId(AppointmentIds.fromEditLink(reader.getAttributeValue(null, "href")));
+                skipElement(reader);
+            } else if (isElement(reader, ATOM_NS, "title")) {
+                appointment.setName(readText(reader));
+            } else if (isElement(reader, ATOM_NS, "content")) {
+                appointment.setDescription(readText(reader));
+            } else if (!located && isElement(reader, GD_NS, "where")) {
+                // in google multiple locations can be set, like the converter we take the first one
+                appointment.setLocation(reader.getAttributeValue(null, "valueString"));
+                located = true;
+                skipElement(reader);
+            } else if (!timed && isElement(reader, GD_NS, "when")) {
+                String start = reader.getAttributeValue(null, "startTime");
+                String end = reader.getAttributeValue(null, "endTime");
+                if (start != null && end != null) {
+                    AppointmentConverter.setTimes(appointment, parseDateTime(start), parseDateTime(end));
+                }
+                timed = true;
+                skipElement(reader);
+            } else if (isElement(reader, GD_NS, "eventStatus")) {
+                String value = reader.getAttributeValue(null, "value");
+                canceled = value != null && value.endsWith(".canceled");
+                skipElement(reader);
+            } else {
+                skipElement(reader);
+            }
+        }
+        return canceled ? null : appointment;
+    }
+
+    private static DateTime parseDateTime(String value) throws XMLStreamException {
+        try {
+            return DateTime.parseDateTimeChoice(value);
+        } catch (NumberFormatException e) {
+            throw new XMLStreamException("invalid date " + value, e);
+        }
+    }
+
+    private static boolean isElement(XMLStreamReader reader, String namespace, String localName) {
+        return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+    }
+
+    private static boolean isAtomLink(XMLStreamReader reader, String rel) {
+        return isElement(reader, ATOM_NS, "link") && rel.equals(reader.getAttributeValue(null, "rel"))
+                && ATOM_TYPE.equals(reader.getAttributeValue(null, "type"));
+    }
+
+    /**
+     * returns the character content of the current element, leaving the reader at its end
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // nothing left to clean up
+        }
+    }
+}
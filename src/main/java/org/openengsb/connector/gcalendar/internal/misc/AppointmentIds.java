@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * the compact ids of appointments. An appointment is identified by its event id and the key of its calendar, like
+ * {@code 4q8v0h7k2a@user@gmail.com}. Unlike the edit link google identifies an entry with, the compact id stays the
+ * same when the appointment is updated.
+ */
+public final class AppointmentIds {
+
+    private static final String FEEDS = "/feeds/";
+
+    private AppointmentIds() {
+    }
+
+    /**
+     * the compact id of the entry with the given edit link, or the link itself if it does not point to a calendar
+     * entry
+     */
+    public static String fromEditLink(String href) {
+        int begin = href.indexOf(FEEDS);
+        if (begin < 0) {
+            return href;
+        }
+        // <calendar>/<visibility>/<projection>/<event id>, followed by the version of the entry
+        String[] segments = href.substring(begin + FEEDS.length()).split("/");
+        if (segments.length < 4 || segments[0].length() == 0 || segments[3].length() == 0) {
+            return href;
+        }
+        return segments[3] + "@" + decode(segments[0]);
+    }
+
+    /**
+     * the key of the calendar of the given feed url, null if it is no calendar feed
+     */
+    public static String getCalendarKey(String feedUrl) {
+        int begin = feedUrl.indexOf(FEEDS);
+        if (begin < 0) {
+            return null;
+        }
+        String path = feedUrl.substring(begin + FEEDS.length());
+        int end = path.indexOf('/');
+        return decode(end < 0 ? path : path.substring(0, end));
+    }
+
+    /**
+     * the feed of the calendar with the given key, built like the given calendar feed, e.g. with the same visibility
+     * and projection. Null if the template is no calendar feed.
+     */
+    public static String toFeedUrl(String templateFeedUrl, String calendarKey) {
+        int begin = templateFeedUrl.indexOf(FEEDS);
+        if (begin < 0) {
+            return null;
+        }
+        begin += FEEDS.length();
+        int end = templateFeedUrl.indexOf('/', begin);
+        if (end < 0) {
+            return null;
+        }
+        return templateFeedUrl.substring(0, begin) + encode(calendarKey) + templateFeedUrl.substring(end);
+    }
+
+    /**
+     * whether the id is the url of an entry, as handed out by earlier versions of the connector
+     */
+    public static boolean isUrl(String id) {
+        return id.contains("://");
+    }
+
+    /**
+     * the event id part of a compact id, null if the id is no compact id
+     */
+    public static String getEventId(String id) {
+        int separator = id.indexOf('@');
+        return separator <= 0 || isUrl(id) ? null : id.substring(0, separator);
+    }
+
+    /**
+     * the calendar key part of a compact id, null if the id is no compact id
+     */
+    public static String getCalendarKeyOf(String id) {
+        int separator = id.indexOf('@');
+        return separator <= 0 || isUrl(id) ? null : id.substring(separator + 1);
+    }
+
+    /**
+     * the id google gives the occurrence of a recurring event starting at the given original start, the event id of
+     * the master followed by the start in UTC, like {@code 4q8v0h7k2a_20120315T100000Z@user@gmail.com}, or only by
+     * the day for full day events. Null if the master id is no compact id.
+     */
+    public static String occurrenceId(String masterId, long originalStart, boolean fullDay) {
+        String eventId = getEventId(masterId);
+        if (eventId == null) {
+            return null;
+        }
+        long day = RecurrenceRule.floorDiv(originalStart, RecurrenceRule.DAY);
+        StringBuilder id = new StringBuilder(masterId.length() + 17).append(eventId).append('_');
+        appendDigits(id, RecurrenceRule.year(day), 4);
+        appendDigits(id, RecurrenceRule.month(day), 2);
+        appendDigits(id, RecurrenceRule.dayOfMonth(day), 2);
+        if (!fullDay) {
+            long seconds = RecurrenceRule.floorMod(originalStart, RecurrenceRule.DAY) / 1000;
+            id.append('T');
+            appendDigits(id, (int) (seconds / 3600), 2);
+            appendDigits(id, (int) (seconds / 60 % 60), 2);
+            appendDigits(id, (int) (seconds % 60), 2);
+            id.append('Z');
+        }
+        return id.append('@').append(getCalendarKeyOf(masterId)).toString();
+    }
+
+    private static void appendDigits(StringBuilder builder, int value, int digits) {
+        String text = Integer.toString(value);
+        for (int i = text.length(); i < digits; i++) {
+            builder.append('0');
+        }
+        builder.append(text);
+    }
+
+    private static String encode(String segment) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+    private static String decode(String segment) {
+        try {
+            return URLDecoder.decode(segment, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.openengsb.domain.appointment.Appointment;
+
+/**
+ * immutable interval index over appointments. The appointments are sorted by start time and every node of the implicit
+ * balanced tree over that array knows the latest end time below it, so a range lookup only visits subtrees that can
+ * contain overlapping appointments, which makes it O(log n + k).
+ */
+public final class AppointmentIndex {
+
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] maxEnds;
+    private final Appointment[] appointments;
+
+    public AppointmentIndex(Collection<Appointment> source) {
+        List<Appointment> sorted = new ArrayList<Appointment>(source.size());
+        for (Appointment appointment : source) {
+            if (appointment.getStart() != null && appointment.getEnd() != null) {
+                sorted.add(appointment);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Appointment>() {
+            @Override
+            public int compare(Appointment o1, Appointment o2) {
+                long s1 = o1.getStart().getTime();
+                long s2 = o2.getStart().getTime();
+                return s1 < s2 ? -1 : s1 == s2 ? 0 : 1;
+            }
+        });
+
+        int size = sorted.size();
+        starts = new long[size];
+        ends = new long[size];
+        maxEnds = new long[size];
+        appointments = sorted.toArray(new Appointment[size]);
+        for (int i = 0; i < size; i++) {
+            starts[i] = appointments[i].getStart().getTime();
+            ends[i] = appointments[i].getEnd().getTime();
+        }
+        buildMaxEnds(0, size);
+    }
+
+    /**
+     * fills maxEnds for the subtree over [lo, hi) and returns its maximum
+     */
+    private long buildMaxEnds(int lo, int hi) {
+        if (lo >= hi) {
+            return Long.MIN_VALUE;
+        }
+        int mid = (lo + hi) >>> 1;
+        long max = Math.max(ends[mid], Math.max(buildMaxEnds(lo, mid), buildMaxEnds(mid + 1, hi)));
+        maxEnds[mid] = max;
+        return max;
+    }
+
+    /**
+     * returns all appointments that end after start and begin before end, ordered by their start time. This matches
+     * the semantics of start-min and start-max in google calendar queries.
+     */
+    public List<Appointment> findOverlapping(long start, long end) {
+        List<Appointment> result = new ArrayList<Appointment>();
+        collect(0, appointments.length, start, end, result);
+        return result;
+    }
+
+    private void collect(int lo, int hi, long start, long end, List<Appointment> result) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (maxEnds[mid] <= start) {
+            // nothing in this subtree ends after the range begins
+            return;
+        }
+        collect(lo, mid, start, end, result);
+        if (starts[mid] >= end) {
+            // everything to the right begins even later
+            return;
+        }
+        if (ends[mid] > start) {
+            result.add(appointments[mid]);
+        }
+        collect(mid + 1, hi, start, end, result);
+    }
+
+    public int size() {
+        return appointments.length;
+    }
+}
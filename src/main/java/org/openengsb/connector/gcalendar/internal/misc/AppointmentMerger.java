@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openengsb.domain.appointment.Appointment;
+
+/**
+ * merges the results of several queries into one list ordered by start time
+ */
+public final class AppointmentMerger {
+
+    private static final Comparator<Appointment> BY_START = new Comparator<Appointment>() {
+        @Override
+        public int compare(Appointment o1, Appointment o2) {
+            if (o1.getStart() == null || o2.getStart() == null) {
+                // appointments without a start go last
+                return o1.getStart() == null ? (o2.getStart() == null ? 0 : 1) : -1;
+            }
+            return o1.getStart().compareTo(o2.getStart());
+        }
+    };
+
+    private AppointmentMerger() {
+    }
+
+    /**
+     * merges the given results, keeping only the first appointment of every id. Appointments with the same start keep
+     * the order in which they were passed.
+     */
+    public static List<Appointment> merge(List<List<Appointment>> results) {
+        int size = 0;
+        for (List<Appointment> result : results) {
+            size += result.size();
+        }
+        List<Appointment> merged = new ArrayList<Appointment>(size);
+        Set<String> ids = new HashSet<String>(size * 2);
+        for (List<Appointment> result : results) {
+            for (Appointment appointment : result) {
+                if (appointment.getId() == null || ids.add(appointment.getId())) {
+                    merged.add(appointment);
+                }
+            }
+        }
+        Collections.sort(merged, BY_START);
+        return merged;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import java.util.Arrays;
+
+/**
+ * collects busy times and merges them into disjoint intervals. The result is a flat array of alternating starts and
+ * ends in milliseconds, {@code [start0, end0, start1, end1, ...]}, ordered by start, where touching or overlapping
+ * intervals are joined. Intervals added in the order of their starts, as google returns them, are merged in a single
+ * linear pass, others are sorted first.
+ */
+public final class BusyIntervals {
+
+    private static final long[] EMPTY = new long[0];
+
+    private final long from;
+    private final long to;
+    private long[] bounds = new long[32];
+    private int size;
+    private boolean sorted = true;
+
+    /**
+     * collects the busy times between from and to, the parts of intervals outside of that range are cut off
+     */
+    public BusyIntervals(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    public void add(long start, long end) {
+        start = Math.max(start, from);
+        end = Math.min(end, to);
+        if (start >= end) {
+            return;
+        }
+        if (size == bounds.length) {
+            bounds = Arrays.copyOf(bounds, size * 2);
+        }
+        if (size > 0 && start < bounds[size - 2]) {
+            sorted = false;
+        }
+        bounds[size++] = start;
+        bounds[size++] = end;
+    }
+
+    /**
+     * the number of intervals added so far, before merging
+     */
+    public int getAddedCount() {
+        return size / 2;
+    }
+
+    public long[] toArray() {
+        if (size == 0) {
+            return EMPTY;
+        }
+        return sorted ? mergeSorted() : mergeUnsorted();
+    }
+
+    private long[] mergeSorted() {
+        long[] merged = new long[size];
+        int length = 0;
+        long start = bounds[0];
+        long end = bounds[1];
+        for (int i = 2; i < size; i += 2) {
+            if (bounds[i] <= end) {
+                end = Math.max(end, bounds[i + 1]);
+            } else {
+                merged[length++] = start;
+                merged[length++] = end;
+                start = bounds[i];
+                end = bounds[i + 1];
+            }
+        }
+        merged[length++] = start;
+        merged[length++] = end;
+        return length == merged.length ? merged : Arrays.copyOf(merged, length);
+    }
+
+    /**
+     * sorts starts and ends on their own and sweeps over them, counting how many intervals are open at a time
+     */
+    private long[] mergeUnsorted() {
+        int count = size / 2;
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = bounds[2 * i];
+            ends[i] = bounds[2 * i + 1];
+        }
+        Arrays.sort(starts);
+        Arrays.sort(ends);
+
+        long[] merged = new long[size];
+        int length = 0;
+        int open = 0;
+        int next = 0;
+        for (int i = 0; i < count; i++) {
+            // an interval starting where another one ends continues the busy time
+            while (next < count && starts[next] <= ends[i]) {
+                if (open++ == 0) {
+                    merged[length++] = starts[next];
+                }
+                next++;
+            }
+            if (--open == 0) {
+                merged[length++] = ends[i];
+            }
+        }
+        return length == merged.length ? merged : Arrays.copyOf(merged, length);
+    }
+
+    /**
+     * joins two merged interval arrays in linear time
+     */
+    public static long[] union(long[] first, long[] second) {
+        if (first.length == 0) {
+            return second;
+        }
+        if (second.length == 0) {
+            return first;
+        }
+        BusyIntervals union = new BusyIntervals(Long.MIN_VALUE, Long.MAX_VALUE);
+        int i = 0;
+        int j = 0;
+        while (i < first.length || j < second.length) {
+            if (j == second.length || i < first.length && first[i] <= second[j]) {
+                union.add(first[i], first[i + 1]);
+                i += 2;
+            } else {
+                union.add(second[j], second[j + 1]);
+                j += 2;
+            }
+        }
+        return union.toArray();
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import java.util.List;
+
+/**
+ * the items of one page of a feed together with the link to the following page
+ */
+public final class FeedPage<E> {
+
+    private final List<E> items;
+    private final String nextHref;
+
+    public FeedPage(List<E> items, String nextHref) {
+        this.items = items;
+        this.nextHref = nextHref;
+    }
+
+    public List<E> getItems() {
+        return items;
+    }
+
+    /**
+     * the href of the next page or null if this is the last one
+     */
+    public String getNextHref() {
+        return nextHref;
+    }
+}
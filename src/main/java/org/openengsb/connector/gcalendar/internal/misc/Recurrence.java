@@ -0,0 +1,418 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.google.gdata.util.ParseException;
+
+/**
+ * the recurrence of a recurring event as google sends it in gd:recurrence, a DTSTART, a DTEND or DURATION, one RRULE
+ * and any number of EXDATEs in iCalendar syntax. The occurrences in a range are expanded lazily in the time zone of the
+ * event, the days of full day events are turned into instants like {@link AppointmentConverter} does. Recurrences
+ * using other properties are reported as parse errors.
+ */
+public final class Recurrence {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long DAY = RecurrenceRule.DAY;
+
+    private final RecurrenceRule rule;
+    private final TimeZone zone;
+    private final boolean fullDay;
+    private final long startDay;
+    private final long timeOfDay;
+    private final long start;
+    private final long duration;
+    private final long until;
+    private final long[] exdates;
+
+    private Recurrence(RecurrenceRule rule, TimeZone zone, boolean fullDay, long startLocal, long duration,
+            long[] exdates) {
+        this.rule = rule;
+        this.zone = zone;
+        this.fullDay = fullDay;
+        startDay = RecurrenceRule.floorDiv(startLocal, DAY);
+        timeOfDay = startLocal - startDay * DAY;
+        start = startOf(startDay);
+        this.duration = duration;
+        this.exdates = exdates;
+        until = resolveUntil();
+    }
+
+    /**
+     * a single property line, like {@code DTSTART;TZID=Europe/Vienna:20120101T100000}
+     */
+    private static final class Property {
+        private final String name;
+        private final Map<String, String> parameters = new HashMap<String, String>();
+        private final String value;
+
+        private Property(String line) throws ParseException {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                throw new ParseException("invalid recurrence line " + line);
+            }
+            String[] head = line.substring(0, colon).split(";");
+            name = head[0].trim().toUpperCase();
+            for (int i = 1; i < head.length; i++) {
+                int separator = head[i].indexOf('=');
+                if (separator > 0) {
+                    parameters.put(head[i].substring(0, separator).toUpperCase(), head[i].substring(separator + 1));
+                }
+            }
+            value = line.substring(colon + 1).trim();
+        }
+
+        private boolean isDate() {
+            return "DATE".equalsIgnoreCase(parameters.get("VALUE")) || value.length() == 8;
+        }
+    }
+
+    public static Recurrence parse(String text) throws ParseException {
+        Property dtstart = null;
+        Property dtend = null;
+        Property durationProperty = null;
+        RecurrenceRule rule = null;
+        List<Property> exdateProperties = new ArrayList<Property>();
+        int nesting = 0;
+        // long lines are folded by starting the following line with a space
+        for (String line : text.replaceAll("\r?\n[ \t]", "").split("\r?\n")) {
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            Property property = new Property(line);
+            if ("BEGIN".equals(property.name)) {
+                nesting++;
+            } else if ("END".equals(property.name)) {
+                nesting--;
+            } else if (nesting > 0) {
+                // the time zones are taken from the JVM, their definitions are not needed
+                continue;
+            } else if ("DTSTART".equals(property.name)) {
+                dtstart = property;
+            } else if ("DTEND".equals(property.name)) {
+                dtend = property;
+            } else if ("DURATION".equals(property.name)) {
+                durationProperty = property;
+            } else if ("RRULE".equals(property.name)) {
+                if (rule != null) {
+                    throw new ParseException("more than one rule is not supported");
+                }
+                rule = RecurrenceRule.parse(property.value);
+            } else if ("EXDATE".equals(property.name)) {
+                exdateProperties.add(property);
+            } else {
+                throw new ParseException("unsupported recurrence property " + property.name);
+            }
+        }
+        if (dtstart == null || rule == null) {
+            throw new ParseException("a recurrence needs a start and a rule");
+        }
+
+        boolean fullDay = dtstart.isDate();
+        TimeZone zone = fullDay ? UTC : zoneOf(dtstart);
+        long startLocal = localValue(dtstart.value);
+        long duration;
+        if (dtend != null) {
+            if (fullDay) {
+                duration = (RecurrenceRule.parseDate(dtend.value) - RecurrenceRule.floorDiv(startLocal, DAY)) * DAY;
+            } else {
+                duration = toInstant(dtend.value, zoneOf(dtend)) - toInstant(dtstart.value, zone);
+            }
+        } else if (durationProperty != null) {
+            duration = parseDuration(durationProperty.value);
+        } else {
+            duration = fullDay ? DAY : 0;
+        }
+        if (duration < 0) {
+            throw new ParseException("the recurring event ends before it starts");
+        }
+
+        Recurrence recurrence = new Recurrence(rule, zone, fullDay, startLocal, duration, new long[0]);
+        List<Long> exdates = new ArrayList<Long>();
+        for (Property property : exdateProperties) {
+            for (String value : property.value.split(",")) {
+                exdates.add(recurrence.exdateOf(property, value.trim()));
+            }
+        }
+        long[] sorted = new long[exdates.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = exdates.get(i);
+        }
+        Arrays.sort(sorted);
+        return new Recurrence(rule, zone, fullDay, startLocal, duration, sorted);
+    }
+
+    private static TimeZone zoneOf(Property property) throws ParseException {
+        String id = property.parameters.get("TZID");
+        if (id == null) {
+            // floating times are read in the zone of the JVM, like the converter does
+            return property.value.endsWith("Z") ? UTC : TimeZone.getDefault();
+        }
+        TimeZone zone = TimeZone.getTimeZone(id);
+        if (!zone.getID().equals(id)) {
+            throw new ParseException("unknown time zone " + id);
+        }
+        return zone;
+    }
+
+    /**
+     * a DATE or DATE-TIME value in milliseconds since the epoch, as if it was given in UTC
+     */
+    private static long localValue(String value) throws ParseException {
+        return value.length() == 8 ? RecurrenceRule.parseDate(value) * DAY : RecurrenceRule.parseDateTime(value);
+    }
+
+    private static long toInstant(String value, TimeZone zone) throws ParseException {
+        long local = localValue(value);
+        return value.endsWith("Z") ? local : toUtc(local, zone);
+    }
+
+    private long exdateOf(Property property, String value) throws ParseException {
+        if (value.length() == 8) {
+            // a date excludes the occurrence of that day
+            return startOf(RecurrenceRule.parseDate(value));
+        }
+        if (fullDay) {
+            return startOf(RecurrenceRule.floorDiv(localValue(value), DAY));
+        }
+        return toInstant(value, property.parameters.containsKey("TZID") ? zoneOf(property) : zone);
+    }
+
+    /**
+     * parses a DURATION value like {@code P1W} or {@code PT1H30M}
+     */
+    static long parseDuration(String value) throws ParseException {
+        int index = 0;
+        boolean negative = false;
+        if (value.startsWith("+") || value.startsWith("-")) {
+            negative = value.charAt(0) == '-';
+            index++;
+        }
+        if (index >= value.length() || value.charAt(index) != 'P') {
+            throw new ParseException("invalid duration " + value);
+        }
+        long millis = 0;
+        long number = -1;
+        for (index++; index < value.length(); index++) {
+            char c = value.charAt(index);
+            if (c >= '0' && c <= '9') {
+                number = (number < 0 ? 0 : number * 10) + c - '0';
+            } else if (c == 'T') {
+                continue;
+            } else {
+                long unit = unitOf(c);
+                if (unit == 0 || number < 0) {
+                    throw new ParseException("invalid duration " + value);
+                }
+                millis += number * unit;
+                number = -1;
+            }
+        }
+        if (number >= 0) {
+            throw new ParseException("invalid duration " + value);
+        }
+        return negative ? -millis : millis;
+    }
+
+    private static long unitOf(char designator) {
+        switch (designator) {
+            case 'W':
+                return 7 * DAY;
+            case 'D':
+                return DAY;
+            case 'H':
+                return 3600000L;
+            case 'M':
+                return 60000L;
+            case 'S':
+                return 1000L;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * converts a local time of the zone into an instant. Times that occur twice when the clocks are turned back are
+     * taken at their first occurrence, times skipped when the clocks are turned forward are shifted by the gap, as
+     * RFC 5545 asks for.
+     */
+    static long toUtc(long local, TimeZone zone) {
+        int before = zone.getOffset(local - DAY);
+        int after = zone.getOffset(local + DAY);
+        if (before == after) {
+            return local - before;
+        }
+        int larger = Math.max(before, after);
+        if (zone.getOffset(local - larger) == larger) {
+            return local - larger;
+        }
+        int smaller = Math.min(before, after);
+        if (zone.getOffset(local - smaller) == smaller) {
+            return local - smaller;
+        }
+        return local - before;
+    }
+
+    /**
+     * the end of the rule in the unit occurrences are compared in, days for full day events and instants otherwise
+     */
+    private long resolveUntil() {
+        long value = rule.getUntil();
+        switch (rule.getUntilKind()) {
+            case NONE:
+                return Long.MAX_VALUE;
+            case DATE:
+                return fullDay ? RecurrenceRule.floorDiv(value, DAY) : toUtc(value + DAY, zone) - 1;
+            case LOCAL:
+                return fullDay ? RecurrenceRule.floorDiv(value, DAY) : toUtc(value, zone);
+            default:
+                return fullDay ? RecurrenceRule.floorDiv(value, DAY) : value;
+        }
+    }
+
+    private long startOf(long day) {
+        if (fullDay) {
+            return AppointmentConverter.toInstant(day * DAY, true);
+        }
+        return toUtc(day * DAY + timeOfDay, zone);
+    }
+
+    private long endOf(long day, long begin) {
+        if (fullDay) {
+            return AppointmentConverter.toInstant(day * DAY + duration, true);
+        }
+        return begin + duration;
+    }
+
+    public boolean isFullDay() {
+        return fullDay;
+    }
+
+    /**
+     * the start of the first occurrence
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * the occurrences that overlap the range from from to to. Occurrences starting at one of the given sorted
+     * instants are left out, like those excluded by the recurrence itself.
+     */
+    public Occurrences occurrences(long from, long to, long[] overridden) {
+        return new Occurrences(from, to, overridden);
+    }
+
+    /**
+     * walks the occurrences of a range in ascending order
+     */
+    public final class Occurrences {
+        private final long from;
+        private final long to;
+        private final long[] overridden;
+        private final long limitDay;
+        private final long[] days = new long[RecurrenceRule.MAX_CANDIDATES];
+        private int size;
+        private int position;
+        private long period;
+        private long generated;
+        private boolean done;
+        private long day;
+        private long begin;
+        private long end;
+
+        private Occurrences(long from, long to, long[] overridden) {
+            this.from = from;
+            this.to = to;
+            this.overridden = overridden;
+            // two days of margin cover any zone offset
+            limitDay = RecurrenceRule.floorDiv(to, DAY) + 2;
+            if (rule.getCount() < 0) {
+                long fromDay = RecurrenceRule.floorDiv(from - duration, DAY) - 2;
+                period = rule.periodOf(startDay, fromDay);
+            }
+        }
+
+        public boolean next() {
+            while (!done) {
+                if (position == size) {
+                    if (rule.firstDayOf(startDay, period) > limitDay) {
+                        done = true;
+                        break;
+                    }
+                    size = rule.candidates(startDay, period++, days);
+                    position = 0;
+                    continue;
+                }
+                long candidate = days[position++];
+                if (candidate < startDay) {
+                    continue;
+                }
+                long candidateStart = startOf(candidate);
+                if (fullDay ? candidate > until : candidateStart > until) {
+                    done = true;
+                    break;
+                }
+                if (rule.getCount() >= 0 && ++generated > rule.getCount()) {
+                    done = true;
+                    break;
+                }
+                if (candidateStart >= to) {
+                    done = true;
+                    break;
+                }
+                long candidateEnd = endOf(candidate, candidateStart);
+                if (candidateEnd <= from && !(candidateEnd == candidateStart && candidateStart >= from)) {
+                    continue;
+                }
+                if (Arrays.binarySearch(exdates, candidateStart) >= 0
+                        || Arrays.binarySearch(overridden, candidateStart) >= 0) {
+                    continue;
+                }
+                day = candidate;
+                begin = candidateStart;
+                end = candidateEnd;
+                return true;
+            }
+            return false;
+        }
+
+        public long getStart() {
+            return begin;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * the start google identifies the occurrence by, the instant for timed events and midnight UTC of the day for
+         * full day events
+         */
+        public long getOriginalStart() {
+            return fullDay ? day * DAY : begin;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gdata.util.ParseException;
+
+/**
+ * an RRULE of RFC 5545 as google writes them: daily, weekly, monthly and yearly rules with INTERVAL, COUNT, UNTIL,
+ * BYDAY, BYMONTHDAY, BYMONTH, BYSETPOS and WKST. Days are handled as epoch days, the rule generates the candidate days
+ * of one period at a time, so occurrences far from the start of the rule are reached without walking every day in
+ * between.
+ */
+public final class RecurrenceRule {
+
+    static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * the largest number of candidates a single period can have
+     */
+    static final int MAX_CANDIDATES = 366;
+
+    private static final String[] WEEKDAYS = { "MO", "TU", "WE", "TH", "FR", "SA", "SU" };
+
+    enum Frequency {
+        DAILY, WEEKLY, MONTHLY, YEARLY
+    }
+
+    /**
+     * how the UNTIL part was given
+     */
+    enum Until {
+        NONE, DATE, LOCAL, UTC
+    }
+
+    private Frequency frequency;
+    private int interval = 1;
+    private int count = -1;
+    private Until untilKind = Until.NONE;
+    private long until;
+    private int monthMask;
+    private int[] monthDays = new int[0];
+    private int[] weekdays = new int[0];
+    private int[] ordinals = new int[0];
+    private int[] setPositions = new int[0];
+    private int weekStart;
+
+    private RecurrenceRule() {
+    }
+
+    /**
+     * parses the value of an RRULE property. Parts the rule does not support are reported as parse errors, so the
+     * caller can fall back to the expansion google does.
+     */
+    public static RecurrenceRule parse(String value) throws ParseException {
+        RecurrenceRule rule = new RecurrenceRule();
+        for (String part : value.split(";")) {
+            int separator = part.indexOf('=');
+            if (separator <= 0) {
+                throw new ParseException("invalid rule part " + part);
+            }
+            String name = part.substring(0, separator).toUpperCase();
+            String argument = part.substring(separator + 1).toUpperCase();
+            try {
+                rule.set(name, argument);
+            } catch (NumberFormatException e) {
+                throw new ParseException("invalid rule part " + part, e);
+            }
+        }
+        if (rule.frequency == null) {
+            throw new ParseException("rule without frequency " + value);
+        }
+        if (rule.ordinals.length > 0 && hasOrdinal(rule.ordinals) && rule.frequency != Frequency.MONTHLY
+                && rule.frequency != Frequency.YEARLY) {
+            throw new ParseException("numbered weekdays need a monthly or yearly rule " + value);
+        }
+        return rule;
+    }
+
+    private void set(String name, String argument) throws ParseException {
+        if ("FREQ".equals(name)) {
+            try {
+                frequency = Frequency.valueOf(argument);
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("unsupported frequency " + argument, e);
+            }
+        } else if ("INTERVAL".equals(name)) {
+            interval = Integer.parseInt(argument);
+            if (interval < 1) {
+                throw new ParseException("invalid interval " + argument);
+            }
+        } else if ("COUNT".equals(name)) {
+            count = Integer.parseInt(argument);
+        } else if ("UNTIL".equals(name)) {
+            parseUntil(argument);
+        } else if ("BYMONTH".equals(name)) {
+            for (int month : parseNumbers(argument, 1, 12)) {
+                monthMask |= 1 << month;
+            }
+        } else if ("BYMONTHDAY".equals(name)) {
+            monthDays = parseNumbers(argument, 1, 31);
+        } else if ("BYSETPOS".equals(name)) {
+            setPositions = parseNumbers(argument, 1, 366);
+        } else if ("BYDAY".equals(name)) {
+            String[] days = argument.split(",");
+            weekdays = new int[days.length];
+            ordinals = new int[days.length];
+            for (int i = 0; i < days.length; i++) {
+                String day = days[i].trim();
+                weekdays[i] = weekday(day.substring(Math.max(0, day.length() - 2)));
+                ordinals[i] = day.length() > 2 ? Integer.parseInt(day.substring(0, day.length() - 2)) : 0;
+                if (Math.abs(ordinals[i]) > 53) {
+                    throw new ParseException("invalid weekday " + day);
+                }
+            }
+        } else if ("WKST".equals(name)) {
+            weekStart = weekday(argument);
+        } else {
+            throw new ParseException("unsupported rule part " + name);
+        }
+    }
+
+    private void parseUntil(String argument) throws ParseException {
+        if (argument.length() == 8) {
+            untilKind = Until.DATE;
+            until = parseDate(argument) * DAY;
+        } else if (argument.length() == 15 || argument.length() == 16 && argument.endsWith("Z")) {
+            untilKind = argument.length() == 16 ? Until.UTC : Until.LOCAL;
+            until = parseDateTime(argument);
+        } else {
+            throw new ParseException("invalid end of rule " + argument);
+        }
+    }
+
+    /**
+     * parses a DATE value into an epoch day
+     */
+    static long parseDate(String value) throws ParseException {
+        try {
+            if (value.length() != 8) {
+                throw new NumberFormatException();
+            }
+            int year = Integer.parseInt(value.substring(0, 4));
+            int month = Integer.parseInt(value.substring(4, 6));
+            int day = Integer.parseInt(value.substring(6, 8));
+            if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+                throw new NumberFormatException();
+            }
+            return daysFromCivil(year, month, day);
+        } catch (NumberFormatException e) {
+            throw new ParseException("invalid date " + value, e);
+        }
+    }
+
+    /**
+     * parses a DATE-TIME value into milliseconds since the epoch, as if the time was given in UTC
+     */
+    static long parseDateTime(String value) throws ParseException {
+        try {
+            if (value.length() < 15 || value.charAt(8) != 'T') {
+                throw new NumberFormatException();
+            }
+            int hour = Integer.parseInt(value.substring(9, 11));
+            int minute = Integer.parseInt(value.substring(11, 13));
+            int second = Integer.parseInt(value.substring(13, 15));
+            if (hour > 23 || minute > 59 || second > 60) {
+                throw new NumberFormatException();
+            }
+            return parseDate(value.substring(0, 8)) * DAY + ((hour * 60L + minute) * 60 + second) * 1000;
+        } catch (NumberFormatException e) {
+            throw new ParseException("invalid date " + value, e);
+        }
+    }
+
+    private static int[] parseNumbers(String argument, int min, int max) throws ParseException {
+        String[] values = argument.split(",");
+        int[] numbers = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            numbers[i] = Integer.parseInt(values[i].trim());
+            // negative values count from the end, except for months
+            if (numbers[i] == 0 || Math.abs(numbers[i]) > max || numbers[i] < 0 && min == 1 && max == 12) {
+                throw new ParseException("value out of range " + values[i]);
+            }
+        }
+        return numbers;
+    }
+
+    private static int weekday(String name) throws ParseException {
+        for (int i = 0; i < WEEKDAYS.length; i++) {
+            if (WEEKDAYS[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new ParseException("invalid weekday " + name);
+    }
+
+    private static boolean hasOrdinal(int[] ordinals) {
+        for (int ordinal : ordinals) {
+            if (ordinal != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    Until getUntilKind() {
+        return untilKind;
+    }
+
+    /**
+     * the end of the rule, see {@link #getUntilKind()} for how to read it
+     */
+    long getUntil() {
+        return until;
+    }
+
+    /**
+     * the number of the period that holds the given day, for a rule starting at startDay. Earlier periods can not
+     * produce occurrences on or after that day.
+     */
+    long periodOf(long startDay, long day) {
+        long periods;
+        switch (frequency) {
+            case DAILY:
+                periods = day - startDay;
+                break;
+            case WEEKLY:
+                periods = (weekOf(day) - weekOf(startDay)) / 7;
+                break;
+            case MONTHLY:
+                periods = monthIndex(day) - monthIndex(startDay);
+                break;
+            default:
+                periods = year(day) - year(startDay);
+                break;
+        }
+        return Math.max(0, periods / interval);
+    }
+
+    /**
+     * the first day of the given period of a rule starting at startDay
+     */
+    long firstDayOf(long startDay, long period) {
+        switch (frequency) {
+            case DAILY:
+                return startDay + period * interval;
+            case WEEKLY:
+                return weekOf(startDay) + period * interval * 7;
+            case MONTHLY:
+                long month = monthIndex(startDay) + period * interval;
+                return daysFromCivil((int) floorDiv(month, 12), (int) floorMod(month, 12) + 1, 1);
+            default:
+                return daysFromCivil((int) (year(startDay) + period * interval), 1, 1);
+        }
+    }
+
+    /**
+     * writes the candidate days of the given period in ascending order into days and returns their number. Days before
+     * the start of the rule are included, the caller skips them.
+     */
+    int candidates(long startDay, long period, long[] days) {
+        long first = firstDayOf(startDay, period);
+        int size = 0;
+        switch (frequency) {
+            case DAILY:
+                if (matchesMonth(first) && matchesMonthDay(first) && matchesWeekday(first)) {
+                    days[size++] = first;
+                }
+                break;
+            case WEEKLY:
+                for (long day = first; day < first + 7; day++) {
+                    boolean weekday = weekdays.length == 0 ? weekday(day) == weekday(startDay) : matchesWeekday(day);
+                    if (weekday && matchesMonth(day)) {
+                        days[size++] = day;
+                    }
+                }
+                break;
+            case MONTHLY:
+                size = monthCandidates(startDay, first, days, 0, false);
+                break;
+            default:
+                int year = year(first);
+                for (int month = 1; month <= 12; month++) {
+                    if (monthMask == 0 && monthDays.length == 0 && weekdays.length == 0 && month != month(startDay)) {
+                        continue;
+                    }
+                    size = monthCandidates(startDay, daysFromCivil(year, month, 1), days, size, monthMask == 0);
+                }
+                break;
+        }
+        return applySetPositions(days, size);
+    }
+
+    private int monthCandidates(long startDay, long first, long[] days, int size, boolean yearlyOrdinals) {
+        if (!matchesMonth(first)) {
+            return size;
+        }
+        int year = year(first);
+        int month = month(first);
+        int length = daysInMonth(year, month);
+        boolean defaultDay = monthDays.length == 0 && weekdays.length == 0;
+        long yearStart = daysFromCivil(year, 1, 1);
+        int yearLength = (int) (daysFromCivil(year + 1, 1, 1) - yearStart);
+        for (int dayOfMonth = 1; dayOfMonth <= length; dayOfMonth++) {
+            long day = first + dayOfMonth - 1;
+            boolean matches;
+            if (defaultDay) {
+                matches = dayOfMonth == dayOfMonth(startDay);
+            } else if (yearlyOrdinals) {
+                matches = matchesDay(dayOfMonth, length)
+                    && matchesOrdinal(day, (int) (day - yearStart) + 1, yearLength);
+            } else {
+                matches = matchesDay(dayOfMonth, length) && matchesOrdinal(day, dayOfMonth, length);
+            }
+            if (matches) {
+                days[size++] = day;
+            }
+        }
+        return size;
+    }
+
+    private int applySetPositions(long[] days, int size) {
+        if (setPositions.length == 0 || size == 0) {
+            return size;
+        }
+        long[] selected = new long[setPositions.length];
+        int count = 0;
+        for (int position : setPositions) {
+            int index = position > 0 ? position - 1 : size + position;
+            if (index >= 0 && index < size) {
+                selected[count++] = days[index];
+            }
+        }
+        Arrays.sort(selected, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || selected[i] != days[unique - 1]) {
+                days[unique++] = selected[i];
+            }
+        }
+        return unique;
+    }
+
+    private boolean matchesMonth(long day) {
+        return monthMask == 0 || (monthMask & 1 << month(day)) != 0;
+    }
+
+    private boolean matchesMonthDay(long day) {
+        return monthDays.length == 0 || matchesDay(dayOfMonth(day), daysInMonth(year(day), month(day)));
+    }
+
+    private boolean matchesDay(int dayOfMonth, int length) {
+        if (monthDays.length == 0) {
+            return true;
+        }
+        for (int monthDay : monthDays) {
+            if (monthDay == dayOfMonth || monthDay == dayOfMonth - length - 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesWeekday(long day) {
+        return matchesOrdinal(day, 0, 0);
+    }
+
+    /**
+     * whether the weekday of the day is listed, with the ordinal counted in a span of the given length in which the
+     * day is the index-th one
+     */
+    private boolean matchesOrdinal(long day, int index, int length) {
+        if (weekdays.length == 0) {
+            return true;
+        }
+        int weekday = weekday(day);
+        for (int i = 0; i < weekdays.length; i++) {
+            if (weekdays[i] != weekday) {
+                continue;
+            }
+            int ordinal = ordinals[i];
+            if (ordinal == 0 || ordinal > 0 && (index - 1) / 7 + 1 == ordinal
+                    || ordinal < 0 && -((length - index) / 7 + 1) == ordinal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the first day of the week holding the given day
+     */
+    private long weekOf(long day) {
+        return day - floorMod(weekday(day) - weekStart, 7);
+    }
+
+    static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * the date of an epoch day, packed as year << 9 | month << 5 | day
+     */
+    static long civilFromDays(long days) {
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year << 9 | month << 5 | day;
+    }
+
+    static int year(long day) {
+        return (int) (civilFromDays(day) >> 9);
+    }
+
+    static int month(long day) {
+        return (int) (civilFromDays(day) >> 5 & 0xf);
+    }
+
+    static int dayOfMonth(long day) {
+        return (int) (civilFromDays(day) & 0x1f);
+    }
+
+    private static long monthIndex(long day) {
+        long civil = civilFromDays(day);
+        return (civil >> 9) * 12 + (civil >> 5 & 0xf) - 1;
+    }
+
+    /**
+     * the weekday of an epoch day, 0 is monday
+     */
+    static int weekday(long day) {
+        // the epoch started on a thursday
+        return (int) floorMod(day + 3, 7);
+    }
+
+    static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    static long floorDiv(long value, long divisor) {
+        return (value - floorMod(value, divisor)) / divisor;
+    }
+
+    static long floorMod(long value, long divisor) {
+        long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.metrics;
+
+/**
+ * receives the measurements of the gcalendar connector instances. Implementations registered as OSGi services are
+ * picked up by every instance, e.g. to forward the measurements to a monitoring system. The listeners are called on
+ * the measured thread, so they have to be fast and thread safe.
+ */
+public interface MetricsListener {
+
+    /**
+     * an operation of the connector finished, like "query", "insert" or "ekb.commit"
+     */
+    void operationCompleted(String instanceId, String operation, long nanos);
+
+    /**
+     * google answered a request, or it failed without an answer. The status class is "2xx", "3xx", "4xx", "5xx" or
+     * "io" if no answer came back.
+     */
+    void requestCompleted(String instanceId, String statusClass, long nanos);
+
+    /**
+     * bytes received for an operation
+     */
+    void payloadReceived(String instanceId, String operation, long bytes);
+}
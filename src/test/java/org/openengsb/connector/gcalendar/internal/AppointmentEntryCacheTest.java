@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentConverter;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.data.Link;
+import com.google.gdata.data.PlainTextConstruct;
+import com.google.gdata.data.calendar.CalendarEventEntry;
+import com.sun.net.httpserver.Headers;
+
+public class AppointmentEntryCacheTest {
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+    private volatile String etag = "\"1\"";
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                if (etag.equals(headers.getFirst("If-None-Match"))) {
+                    status[0] = 304;
+                    return null;
+                }
+                return StubGoogleServer.document(server.entry("e1", etag, "breakfast", "2012-01-01T10:00:00.000Z",
+                    "2012-01-01T11:00:00.000Z"));
+            }
+        });
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testLoadAppointmentTwice_shouldRevalidateWithConditionalRequest() throws Exception {
+        String id = server.getFeedUrl() + "/e1/1";
+        service.loadAppointment(id);
+        Appointment appointment = service.loadAppointment(id);
+
+        assertThat(appointment.getName(), is("breakfast"));
+        assertThat(server.getRequestCount(), is(2));
+        assertThat(service.getEntryCache().getMissCount(), is(1L));
+        assertThat(service.getEntryCache().getHitCount(), is(1L));
+    }
+
+    @Test
+    public void testLoadChangedAppointment_shouldReplaceCachedEntry() throws Exception {
+        String id = server.getFeedUrl() + "/e1/1";
+        service.loadAppointment(id);
+        etag = "\"2\"";
+        service.loadAppointment(id);
+
+        assertThat(service.getEntryCache().getRevalidationCount(), is(1L));
+        assertThat(service.getEntryCache().get("e1@default").getEtag(), is("\"2\""));
+    }
+
+    @Test
+    public void testCacheCapacity_shouldEvictLeastRecentlyUsedEntry() throws Exception {
+        AppointmentEntryCache cache = new AppointmentEntryCache(2);
+        cache.put("a", createEntry());
+        cache.put("b", createEntry());
+        cache.get("a");
+        cache.put("c", createEntry());
+
+        assertThat(cache.getSize(), is(2));
+        assertThat(cache.get("b") == null, is(true));
+        assertThat(cache.get("a") == null, is(false));
+    }
+
+    @Test
+    public void testEntryTakenForModification_shouldNotChangeWhatReadersSee() throws Exception {
+        AppointmentEntryCache cache = new AppointmentEntryCache();
+        CalendarEventEntry entry = createEntry();
+        entry.setTitle(new PlainTextConstruct("breakfast"));
+        cache.put("a", entry);
+        AppointmentEntryCache.Cached cached = cache.get("a");
+
+        Appointment modification = cached.getAppointment();
+        modification.setName("lunch");
+        modification.setStart(new Date(0));
+        modification.setEnd(new Date(0));
+        AppointmentConverter.extendCalendarEventEntryWithAppointment(cache.take("a"), modification);
+
+        assertThat(cached.getAppointment().getName(), is("breakfast"));
+    }
+
+    private static CalendarEventEntry createEntry() {
+        CalendarEventEntry entry = new CalendarEventEntry();
+        entry.setEtag("\"1\"");
+        entry.addLink(Link.Rel.ENTRY_EDIT, Link.Type.ATOM, "http://127.0.0.1/feeds/default/private/full/e1/1");
+        return entry;
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.DomainMethodExecutionException;
+
+public class AsyncExecutorTest {
+
+    private AsyncExecutor executor;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new AsyncExecutor("test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSubmit_shouldCompleteFuture() throws Exception {
+        Future<String> future = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+
+        assertThat(future.get(10, TimeUnit.SECONDS), is("done"));
+        awaitPending(0);
+    }
+
+    @Test
+    public void testFailingTask_shouldFailFuture() throws Exception {
+        Future<String> future = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                throw new IOException("google is unreachable");
+            }
+        });
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected the failure of the task");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+        }
+        awaitPending(0);
+    }
+
+    @Test
+    public void testCancelRunningTask_shouldInterruptIt() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Future<Void> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        assertThat(future.cancel(true), is(true));
+
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertThat(future.isCancelled(), is(true));
+        awaitPending(0);
+    }
+
+    @Test
+    public void testCancelQueuedTask_shouldFreeItsSlot() throws Exception {
+        executor.setThreads(1);
+        executor.submit(blockingTask());
+        Future<Void> queued = executor.submit(blockingTask());
+        assertThat(executor.getPending(), is(2));
+
+        queued.cancel(false);
+
+        // the queued task never runs, its slot is freed right away
+        assertThat(executor.getPending(), is(1));
+        try {
+            queued.get();
+            fail("expected the task to be cancelled");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSaturatedExecutor_shouldRejectAfterSubmitTimeout() throws Exception {
+        executor.setMaxPending(1);
+        executor.setSubmitTimeout(10);
+        Future<Void> running = executor.submit(blockingTask());
+
+        try {
+            executor.submit(blockingTask());
+            fail("expected the operation to be rejected");
+        } catch (DomainMethodExecutionException e) {
+            // the only slot is taken
+        }
+        assertThat(executor.getPending(), is(1));
+
+        release.countDown();
+        running.get(10, TimeUnit.SECONDS);
+        awaitPending(0);
+        executor.submit(blockingTask()).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testShutdownExecutor_shouldReject() throws Exception {
+        executor.shutdown();
+
+        try {
+            executor.submit(blockingTask());
+            fail("expected the operation to be rejected");
+        } catch (DomainMethodExecutionException e) {
+            // expected
+        }
+        assertThat(executor.getPending(), is(0));
+    }
+
+    private Callable<Void> blockingTask() {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                release.await();
+                return null;
+            }
+        };
+    }
+
+    /**
+     * the slot of a finished task is freed right after its future completed, so the count is polled
+     */
+    private void awaitPending(int pending) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (executor.getPending() != pending) {
+            assertTrue("pending " + executor.getPending(), System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gdata.client.calendar.CalendarService;
+import com.google.gdata.util.AuthenticationException;
+import com.google.gdata.util.ServiceException;
+
+public class CalendarSessionTest {
+
+    private CountingSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        session = new CountingSession();
+        session.setCredentials("user", "pwd");
+    }
+
+    @Test
+    public void testGetService_shouldAuthenticateOnlyOnce() throws Exception {
+        CalendarService first = session.getService();
+        CalendarService second = session.getService();
+        assertThat(second, sameInstance(first));
+        assertThat(session.logins, is(1));
+    }
+
+    @Test
+    public void testChangeCredentials_shouldInvalidateSession() throws Exception {
+        CalendarService first = session.getService();
+        session.setCredentials("user", "other");
+        assertThat(session.getService(), not(sameInstance(first)));
+        assertThat(session.logins, is(2));
+    }
+
+    @Test
+    public void testSameCredentials_shouldKeepSession() throws Exception {
+        session.getService();
+        session.setCredentials("user", "pwd");
+        session.getService();
+        assertThat(session.logins, is(1));
+    }
+
+    @Test
+    public void testExpiredToken_shouldAuthenticateAgain() throws Exception {
+        session.setTokenLifetime(-1);
+        session.getService();
+        session.getService();
+        assertThat(session.logins, is(2));
+    }
+
+    @Test
+    public void testRejectedToken_shouldRenewSessionAndRetryOnce() throws Exception {
+        String result = session.execute(new CalendarSession.Operation<String>() {
+            private boolean rejected;
+
+            @Override
+            public String execute(CalendarService service) throws IOException, ServiceException {
+                if (!rejected) {
+                    rejected = true;
+                    throw new AuthenticationException("token expired");
+                }
+                return "done";
+            }
+        });
+        assertThat(result, is("done"));
+        assertThat(session.logins, is(2));
+    }
+
+    private static class CountingSession extends CalendarSession {
+        private int logins;
+
+        @Override
+        protected CalendarService authenticate(String user, String password) {
+            logins++;
+            return mock(CalendarService.class);
+        }
+    }
+}
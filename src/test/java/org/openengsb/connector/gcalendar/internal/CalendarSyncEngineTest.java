@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openengsb.connector.gcalendar.internal.misc.AppointmentConverter;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.data.DateTime;
+import com.google.gdata.data.Link;
+import com.google.gdata.data.calendar.CalendarEventEntry;
+import com.google.gdata.data.extensions.BaseEventEntry;
+
+public class CalendarSyncEngineTest {
+
+    private final CalendarSyncEngine engine = new CalendarSyncEngine();
+
+    @Test
+    public void testFirstCycle_shouldInsertWholeCalendar() throws Exception {
+        FixedSource source = new FixedSource(createEntry("a", "breakfast", 1000), createEntry("b", "lunch", 2000));
+        SyncResult result = engine.synchronize(source);
+
+        assertThat(source.updatedMin, nullValue());
+        assertThat(result.getInserts().size(), is(2));
+        assertThat(result.getUpdates().isEmpty(), is(true));
+        assertThat(engine.getAppointments().size(), is(2));
+    }
+
+    @Test
+    public void testFollowingCycle_shouldOnlyReportChangesSinceLastChange() throws Exception {
+        engine.synchronize(new FixedSource(createEntry("a", "breakfast", 1000), createEntry("b", "lunch", 2000)));
+
+        CalendarEventEntry canceled = createEntry("a", "breakfast", 3000);
+        canceled.setStatus(BaseEventEntry.EventStatus.CANCELED);
+        FixedSource source =
+            new FixedSource(createEntry("b", "lunch", 2000), createEntry("b", "dinner", 3000), canceled);
+        SyncResult result = engine.synchronize(source);
+
+        assertThat(source.updatedMin.getValue(), is(2000L));
+        assertThat(result.getInserts().isEmpty(), is(true));
+        assertThat(result.getUpdates().size(), is(1));
+        assertThat(result.getUpdates().get(0).getName(), is("dinner"));
+        assertThat(result.getDeletes().size(), is(1));
+        assertThat(result.getDeletes().get(0).getName(), is("breakfast"));
+        assertThat(engine.getAppointments().size(), is(1));
+    }
+
+    @Test
+    public void testReset_shouldReportEntriesMissingFromFullResultAsDeleted() throws Exception {
+        engine.synchronize(new FixedSource(createEntry("a", "breakfast", 1000), createEntry("b", "lunch", 2000)));
+        engine.reset();
+        SyncResult result = engine.synchronize(new FixedSource(createEntry("b", "lunch", 2000)));
+
+        assertThat(result.getInserts().isEmpty(), is(true));
+        assertThat(result.getUpdates().isEmpty(), is(true));
+        assertThat(result.getDeletes().size(), is(1));
+    }
+
+    @Test
+    public void testRestoredCheckpoint_shouldContinueWithDeltaSync() throws Exception {
+        engine.synchronize(new FixedSource(createEntry("a", "breakfast", 1000)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine.getCheckpoint().writeTo(out);
+
+        CalendarSyncEngine restored = new CalendarSyncEngine();
+        restored.restore(SyncCheckpoint.readFrom(new ByteArrayInputStream(out.toByteArray())));
+        FixedSource source = new FixedSource(createEntry("a", "brunch", 4000));
+        SyncResult result = restored.synchronize(source);
+
+        assertThat(source.updatedMin.getValue(), is(1000L));
+        assertThat(result.getUpdates().size(), is(1));
+        assertThat(restored.getAppointments().get(0).getName(), is("brunch"));
+    }
+
+    @Test
+    public void testCheckpointOfLongDescription_shouldBeRestored() throws Exception {
+        StringBuilder description = new StringBuilder();
+        while (description.length() <= 70000) {
+            description.append("agenda \u00fc ");
+        }
+        Appointment appointment = new Appointment();
+        appointment.setId("a@default");
+        appointment.setDescription(description.toString());
+        Map<String, CalendarSyncEngine.MirrorEntry> entries =
+            new LinkedHashMap<String, CalendarSyncEngine.MirrorEntry>();
+        entries.put("a", new CalendarSyncEngine.MirrorEntry(appointment, 1000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SyncCheckpoint(1000, entries).writeTo(out);
+
+        SyncCheckpoint restored = SyncCheckpoint.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        Appointment restoredAppointment = restored.getEntries().get("a").getAppointment();
+        assertThat(restoredAppointment.getDescription(), is(description.toString()));
+        assertThat(restoredAppointment.getName(), nullValue());
+    }
+
+    @Test
+    public void testCheckpointOfEarlierVersion_shouldBeRestored() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(1);
+        data.writeLong(1000);
+        data.writeInt(1);
+        data.writeUTF("a");
+        data.writeLong(1000);
+        data.writeBoolean(true);
+        data.writeUTF("a@default");
+        data.writeBoolean(true);
+        data.writeUTF("breakfast");
+        data.writeBoolean(false);
+        data.writeBoolean(false);
+        data.writeBoolean(false);
+        data.writeBoolean(false);
+        data.writeBoolean(false);
+        data.flush();
+
+        SyncCheckpoint restored = SyncCheckpoint.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(restored.getUpdatedMin(), is(1000L));
+        assertThat(restored.getEntries().get("a").getAppointment().getName(), is("breakfast"));
+    }
+
+    @Test
+    public void testRecordedWrites_shouldNotBeReportedAgain() throws Exception {
+        engine.synchronize(new FixedSource(createEntry("a", "breakfast", 1000), createEntry("b", "lunch", 2000)));
+
+        CalendarEventEntry written = createEntry("c", "dinner", 3000);
+        engine.recordWrite(written);
+        engine.recordDelete("http://127.0.0.1/a");
+        CalendarEventEntry canceled = createEntry("a", "breakfast", 3000);
+        canceled.setStatus(BaseEventEntry.EventStatus.CANCELED);
+        SyncResult result = engine.synchronize(new FixedSource(written, canceled));
+
+        assertThat(result.isEmpty(), is(true));
+        assertThat(engine.getAppointments().size(), is(2));
+    }
+
+    @Test
+    public void testChangesFoundDuringWrite_shouldBeHeldUntilTheWriteEnded() throws Exception {
+        engine.synchronize(new FixedSource(createEntry("a", "breakfast", 1000)));
+
+        engine.beginWrite();
+        CalendarEventEntry written = createEntry("c", "dinner", 3000);
+        CalendarEventEntry external = createEntry("d", "supper", 3000);
+        SyncResult during = engine.synchronize(new FixedSource(written, external));
+        engine.recordWrite(written);
+        engine.endWrite();
+        SyncResult after = engine.synchronize(new FixedSource());
+
+        assertThat(during.isEmpty(), is(true));
+        assertThat(after.getInserts().size(), is(1));
+        assertThat(after.getInserts().get(0).getName(), is("supper"));
+        assertThat(after.getUpdates().isEmpty(), is(true));
+        assertThat(engine.synchronize(new FixedSource()).isEmpty(), is(true));
+    }
+
+    private static CalendarEventEntry createEntry(String key, String name, long updated) {
+        Appointment appointment = new Appointment();
+        appointment.setName(name);
+        appointment.setDescription(name);
+        appointment.setLocation(name);
+        appointment.setStart(new Date(updated));
+        appointment.setEnd(new Date(updated + 1000));
+        CalendarEventEntry entry = AppointmentConverter.convertAppointmentToCalendarEventEntry(appointment);
+        entry.setId(key);
+        entry.setUpdated(new DateTime(updated));
+        entry.addLink(Link.Rel.ENTRY_EDIT, Link.Type.ATOM, "http://127.0.0.1/" + key);
+        return entry;
+    }
+
+    private static class FixedSource implements CalendarSyncEngine.ChangeSource {
+        private final List<CalendarEventEntry> entries;
+        private DateTime updatedMin;
+
+        public FixedSource(CalendarEventEntry... entries) {
+            this.entries = Arrays.asList(entries);
+        }
+
+        @Override
+        public Iterator<CalendarEventEntry> fetchChanges(DateTime updatedMin) {
+            this.updatedMin = updatedMin;
+            return entries.iterator();
+        }
+    }
+}
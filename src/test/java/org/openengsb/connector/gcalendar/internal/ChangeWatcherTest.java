@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ChangeWatcherTest {
+
+    private final ScheduledExecutorService scheduler = ChangeWatcher.createScheduler(2);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testIdleCalendar_shouldBackOffToTheMaximum() throws Exception {
+        ScriptedCheck check = new ScriptedCheck(false, false, false, false, false);
+        ChangeWatcher watcher = startWatcher(check, 5, 40);
+
+        check.awaitScript();
+
+        // 5ms doubled five times, capped at 40ms
+        assertThat(watcher.getInterval(), is(40L));
+        assertThat(watcher.getActiveCheckCount(), is(0L));
+    }
+
+    @Test
+    public void testChanges_shouldResetTheInterval() throws Exception {
+        ScriptedCheck check = new ScriptedCheck(false, false, false, true);
+        ChangeWatcher watcher = startWatcher(check, 5, 40);
+
+        check.awaitScript();
+
+        assertThat(watcher.getInterval(), is(5L));
+        assertThat(watcher.getActiveCheckCount(), is(1L));
+    }
+
+    @Test
+    public void testFailingCheck_shouldBackOffLikeIdleCheck() throws Exception {
+        ScriptedCheck check = new ScriptedCheck(true, null, null);
+        ChangeWatcher watcher = startWatcher(check, 5, 40);
+
+        check.awaitScript();
+
+        assertThat(watcher.getInterval(), is(20L));
+        assertThat(watcher.getFailureCount(), is(2L));
+    }
+
+    @Test
+    public void testManyWatchers_shouldShareTheThreadsOfTheScheduler() throws Exception {
+        int watchers = 200;
+        final CountDownLatch checked = new CountDownLatch(watchers);
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        List<ChangeWatcher> started = new ArrayList<ChangeWatcher>();
+        for (int i = 0; i < watchers; i++) {
+            started.add(startWatcher(new ChangeWatcher.Check() {
+                @Override
+                public boolean check() {
+                    threads.add(Thread.currentThread().getName());
+                    checked.countDown();
+                    return false;
+                }
+            }, 10, 1000));
+        }
+
+        assertTrue(checked.await(10, TimeUnit.SECONDS));
+        assertTrue(threads.toString(), threads.size() <= 2);
+        for (ChangeWatcher watcher : started) {
+            watcher.setEnabled(false);
+        }
+    }
+
+    private ChangeWatcher startWatcher(ChangeWatcher.Check check, long minInterval, long maxInterval) {
+        ChangeWatcher watcher = new ChangeWatcher(check);
+        watcher.setIntervals(minInterval, maxInterval);
+        watcher.setScheduler(scheduler);
+        watcher.setEnabled(true);
+        return watcher;
+    }
+
+    /**
+     * answers the checks with the given results, null fails the check. Once the script is done the next check blocks
+     * until the test ends, so the interval that followed the last scripted check can be read.
+     */
+    private final class ScriptedCheck implements ChangeWatcher.Check {
+        private final Boolean[] results;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int position;
+
+        private ScriptedCheck(Boolean... results) {
+            this.results = results;
+        }
+
+        @Override
+        public boolean check() throws Exception {
+            if (position == results.length) {
+                done.countDown();
+                release.await();
+                return false;
+            }
+            Boolean result = results[position++];
+            if (result == null) {
+                throw new IllegalStateException("google is not available");
+            }
+            return result;
+        }
+
+        private void awaitScript() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+    }
+}
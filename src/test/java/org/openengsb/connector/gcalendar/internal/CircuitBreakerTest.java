@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class CircuitBreakerTest {
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> future;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = mock(ScheduledExecutorService.class);
+        future = mock(ScheduledFuture.class);
+        doReturn(future).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void testMostRequestsFailing_shouldOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker();
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            assertThat(breaker.allowRequest(), is(true));
+            breaker.onResult(i % 2 == 0, 1000);
+        }
+
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(breaker.allowRequest(), is(false));
+        assertThat(breaker.getRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void testSlowRequests_shouldOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setSlowCall(100);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            breaker.allowRequest();
+            breaker.onResult(false, TimeUnit.MILLISECONDS.toNanos(200));
+        }
+
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void testFewFailures_shouldStayClosed() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker();
+        for (int i = 0; i < 100; i++) {
+            breaker.allowRequest();
+            breaker.onResult(i % 5 == 0, 1000);
+        }
+
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void testOpenDurationRunning_shouldReject() throws Exception {
+        ManualClockBreaker breaker = openBreaker(50);
+        breaker.time += 49;
+
+        assertThat(breaker.allowRequest(), is(false));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void testOpenDurationElapsed_shouldLetOneTrialThrough() throws Exception {
+        ManualClockBreaker breaker = openBreaker(50);
+        breaker.time += 50;
+
+        assertThat(breaker.allowRequest(), is(true));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.allowRequest(), is(false));
+        breaker.onResult(false, 1000);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void testFailedTrial_shouldOpenAgain() throws Exception {
+        ManualClockBreaker breaker = openBreaker(50);
+        breaker.time += 50;
+
+        breaker.allowRequest();
+        breaker.onResult(true, 1000);
+
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(breaker.getOpenCount(), is(2L));
+    }
+
+    @Test
+    public void testSuccessfulProbe_shouldHalfOpen() throws Exception {
+        CircuitBreaker breaker = probingBreaker(false);
+        fail(breaker);
+
+        assertThat(breaker.allowRequest(), is(false));
+        runScheduledProbe(1);
+
+        assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.allowRequest(), is(true));
+    }
+
+    @Test
+    public void testFailedProbe_shouldProbeAgain() throws Exception {
+        CircuitBreaker breaker = probingBreaker(true);
+        fail(breaker);
+
+        runScheduledProbe(1);
+
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        verify(scheduler, times(2)).schedule(any(Runnable.class), eq(50L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testShutdown_shouldCancelPendingProbe() throws Exception {
+        CircuitBreaker breaker = probingBreaker(true);
+        fail(breaker);
+
+        breaker.shutdown();
+
+        verify(future).cancel(false);
+    }
+
+    @Test
+    public void testProbeRunningDuringShutdown_shouldNotReschedule() throws Exception {
+        CircuitBreaker breaker = probingBreaker(true);
+        fail(breaker);
+        ArgumentCaptor<Runnable> probeTask = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(probeTask.capture(), eq(50L), eq(TimeUnit.MILLISECONDS));
+
+        breaker.shutdown();
+        probeTask.getValue().run();
+
+        verify(scheduler, times(1)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void testNoScheduler_shouldNotProbe() throws Exception {
+        ManualClockBreaker breaker = new ManualClockBreaker();
+        breaker.setOpenDuration(50);
+        breaker.setProbe(new CircuitBreaker.Probe() {
+            @Override
+            public void probe() throws Exception {
+            }
+        });
+        fail(breaker);
+        breaker.time += 50;
+
+        assertThat(breaker.allowRequest(), is(true));
+        verify(scheduler, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void testSchedulerSetWhileOpen_shouldStartProbing() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setOpenDuration(50);
+        breaker.setProbe(new CircuitBreaker.Probe() {
+            @Override
+            public void probe() throws Exception {
+            }
+        });
+        fail(breaker);
+
+        breaker.setScheduler(scheduler);
+        runScheduledProbe(1);
+
+        assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+    }
+
+    private CircuitBreaker probingBreaker(final boolean failing) {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setOpenDuration(50);
+        breaker.setScheduler(scheduler);
+        breaker.setProbe(new CircuitBreaker.Probe() {
+            @Override
+            public void probe() throws Exception {
+                if (failing) {
+                    throw new IllegalStateException("google is down");
+                }
+            }
+        });
+        return breaker;
+    }
+
+    /**
+     * runs the probe the breaker scheduled the given number of times so far, as the scheduler would
+     */
+    private void runScheduledProbe(int scheduled) {
+        ArgumentCaptor<Runnable> probeTask = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(scheduled)).schedule(probeTask.capture(), eq(50L), eq(TimeUnit.MILLISECONDS));
+        probeTask.getValue().run();
+    }
+
+    private static ManualClockBreaker openBreaker(long openDuration) {
+        ManualClockBreaker breaker = new ManualClockBreaker();
+        breaker.setOpenDuration(openDuration);
+        fail(breaker);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        return breaker;
+    }
+
+    private static void fail(CircuitBreaker breaker) {
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            breaker.allowRequest();
+            breaker.onResult(true, 1000);
+        }
+    }
+
+    /**
+     * a breaker whose time only moves when the test says so
+     */
+    static class ManualClockBreaker extends CircuitBreaker {
+        long time = 1000;
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.openengsb.connector.gcalendar.metrics.MetricsListener;
+
+import com.google.gdata.client.calendar.CalendarService;
+import com.google.gdata.util.ServiceException;
+
+public class ConnectorMetricsTest {
+
+    @Test
+    public void testRecord_shouldCountPerOperationAndStatusClass() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics("test");
+        long begin = System.nanoTime();
+        metrics.record(ConnectorMetrics.Phase.INSERT, begin);
+        metrics.record(ConnectorMetrics.Phase.INSERT, begin);
+        metrics.recordRequest(201, begin);
+        metrics.recordRequest(304, begin);
+        metrics.recordRequest(503, begin);
+        metrics.recordRequest(0, begin);
+        metrics.recordPayload(ConnectorMetrics.Phase.QUERY, 1000);
+
+        assertThat(metrics.getCount("insert"), is(2L));
+        assertThat(metrics.getCount("query"), is(0L));
+        assertThat(metrics.getRequestCount("2xx"), is(1L));
+        assertThat(metrics.getRequestCount("3xx"), is(1L));
+        assertThat(metrics.getRequestCount("5xx"), is(1L));
+        assertThat(metrics.getRequestCount("io"), is(1L));
+        assertThat(metrics.getPayloadBytes("query"), is(1000L));
+    }
+
+    @Test
+    public void testListener_shouldReceiveMeasurements() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics("test");
+        MetricsListener listener = mock(MetricsListener.class);
+        metrics.setListeners(Collections.singletonList(listener));
+
+        metrics.recordPayload(ConnectorMetrics.Phase.QUERY, 1000);
+
+        verify(listener).payloadReceived("test", "query", 1000);
+    }
+
+    @Test
+    public void testWithoutListeners_shouldNotWalkTheListeners() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics("test");
+        metrics.setListeners(new ArrayList<MetricsListener>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Iterator<MetricsListener> iterator() {
+                throw new AssertionError("the listeners should not be walked");
+            }
+        });
+        long begin = System.nanoTime();
+
+        metrics.record(ConnectorMetrics.Phase.QUERY, begin);
+        metrics.recordRequest(200, begin);
+        metrics.recordPayload(ConnectorMetrics.Phase.QUERY, 1000);
+
+        assertThat(metrics.getCount("query"), is(1L));
+    }
+
+    /**
+     * the measurements stay on in production, so recording must not leave garbage behind on every request. Counts
+     * allocated bytes instead of time, which does not depend on the load of the build machine.
+     */
+    @Test
+    public void testRecording_shouldNotAllocate() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        ConnectorMetrics metrics = new ConnectorMetrics("test");
+        int iterations = 100000;
+        recordRepeatedly(metrics, iterations);
+        long threadId = Thread.currentThread().getId();
+
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        recordRepeatedly(metrics, iterations);
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // a single object per measurement would take at least 16 bytes each
+        assertTrue("recording allocated " + allocated + " bytes", allocated < iterations);
+    }
+
+    private static void recordRepeatedly(ConnectorMetrics metrics, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            long begin = System.nanoTime();
+            metrics.record(ConnectorMetrics.Phase.QUERY, begin);
+            metrics.recordRequest(200, begin);
+            metrics.recordPayload(ConnectorMetrics.Phase.QUERY, i);
+        }
+    }
+
+    @Test
+    public void testEntryCache_shouldBeReported() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics("test");
+        assertThat(metrics.getCacheHits(), is(0L));
+        AppointmentEntryCache cache = new AppointmentEntryCache();
+        cache.recordHit();
+        cache.recordHit();
+        cache.recordRevalidation();
+        cache.recordMiss();
+        cache.recordMiss();
+        cache.recordMiss();
+
+        metrics.setEntryCache(cache);
+
+        assertThat(metrics.getCacheHits(), is(2L));
+        assertThat(metrics.getCacheRevalidations(), is(1L));
+        assertThat(metrics.getCacheMisses(), is(3L));
+    }
+
+    @Test
+    public void testRequestExecutor_shouldReportThrottledAndRetriedRequests() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics("test");
+        assertThat(metrics.getRetriedRequests(), is(0L));
+        RequestExecutor executor = new RequestExecutor(new CalendarSession() {
+            @Override
+            protected CalendarService authenticate(String user, String password) {
+                return mock(CalendarService.class);
+            }
+        });
+        metrics.setRequestExecutor(executor);
+        executor.getRateLimiter().setMaxRate(100);
+        // the bucket holds one second worth of requests, the ones beyond have to wait
+        for (int i = 0; i < 110; i++) {
+            executor.getRateLimiter().acquire();
+        }
+        executor.execute(new CalendarSession.Operation<String>() {
+            private boolean failed;
+
+            @Override
+            public String execute(CalendarService service) throws IOException {
+                if (!failed) {
+                    failed = true;
+                    throw new IOException("connection reset");
+                }
+                return "done";
+            }
+        }, true);
+
+        assertTrue(metrics.getThrottledRequests() > 0);
+        assertThat(metrics.getRetriedRequests(), is(1L));
+    }
+
+    @Test
+    public void testCircuitBreaker_shouldBeReported() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics("test");
+        assertThat(metrics.getCircuitState(), is("CLOSED"));
+        RequestExecutor executor = new RequestExecutor(new CalendarSession() {
+            @Override
+            protected CalendarService authenticate(String user, String password) {
+                return mock(CalendarService.class);
+            }
+        });
+        executor.setMaxRetries(0);
+        metrics.setRequestExecutor(executor);
+        CalendarSession.Operation<String> failing = new CalendarSession.Operation<String>() {
+            @Override
+            public String execute(CalendarService service) throws ServiceException {
+                ServiceException e = new ServiceException("backend error");
+                e.setHttpErrorCodeOverride(500);
+                throw e;
+            }
+        };
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            try {
+                executor.execute(failing, true);
+                fail("the failure should be reported");
+            } catch (ServiceException e) {
+                // expected
+            }
+        }
+        try {
+            executor.execute(failing, true);
+            fail("the open breaker should reject the request");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+
+        assertThat(metrics.getCircuitState(), is("OPEN"));
+        assertThat(metrics.getCircuitOpenCount(), is(1L));
+        assertThat(metrics.getCircuitRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void testRegister_shouldPublishThroughJmx() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics("jmx-test");
+        metrics.record(ConnectorMetrics.Phase.UPDATE, System.nanoTime());
+        metrics.register();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name =
+                new ObjectName("org.openengsb.connector.gcalendar:type=ConnectorMetrics,instance=\"jmx-test\"");
+            Object count = server.invoke(name, "getCount", new Object[]{ "update" },
+                new String[]{ String.class.getName() });
+            assertThat(count, is((Object) 1L));
+        } finally {
+            metrics.unregister();
+        }
+    }
+}
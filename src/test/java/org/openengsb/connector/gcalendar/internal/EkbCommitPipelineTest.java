@@ -0,0 +1,285 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openengsb.core.api.ekb.EKBCommit;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+public class EkbCommitPipelineTest {
+
+    private PersistInterface persistInterface;
+    private EKBCommit commit;
+    private EkbCommitPipeline pipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        persistInterface = mock(PersistInterface.class);
+        commit = mock(EKBCommit.class);
+        EkbCommitPipeline.CommitFactory commitFactory = mock(EkbCommitPipeline.CommitFactory.class);
+        when(commitFactory.createCommit()).thenReturn(commit);
+        pipeline = new EkbCommitPipeline(commitFactory);
+        pipeline.setPersistInterface(persistInterface);
+        pipeline.setFlushInterval(60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pipeline.setFlushInterval(0);
+    }
+
+    @Test
+    public void testInsertThenUpdate_shouldCommitOneInsert() throws Exception {
+        Appointment created = createAppointment("1");
+        Appointment changed = createAppointment("1");
+        pipeline.insert(created);
+        pipeline.update(changed);
+        pipeline.flush();
+
+        verify(commit).addInsert(changed);
+        verify(commit, never()).addUpdate(any());
+        verify(persistInterface, times(1)).commit(commit);
+        assertThat(pipeline.getCollapsedCount(), is(1L));
+    }
+
+    @Test
+    public void testInsertThenDelete_shouldCommitNothing() throws Exception {
+        pipeline.insert(createAppointment("1"));
+        pipeline.delete(createAppointment("1"));
+        pipeline.flush();
+
+        verify(persistInterface, never()).commit(any(EKBCommit.class));
+        assertThat(pipeline.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testDeleteThenInsert_shouldCommitUpdate() throws Exception {
+        Appointment recreated = createAppointment("1");
+        pipeline.delete(createAppointment("1"));
+        pipeline.insert(recreated);
+        pipeline.update(createAppointment("2"));
+        pipeline.delete(createAppointment("2"));
+        pipeline.flush();
+
+        verify(commit).addUpdate(recreated);
+        verify(commit, times(1)).addDelete(any());
+        verify(persistInterface, times(1)).commit(commit);
+    }
+
+    @Test
+    public void testWithoutInterval_shouldCommitEveryWrite() throws Exception {
+        pipeline.setFlushInterval(0);
+        pipeline.insert(createAppointment("1"));
+        pipeline.flushIfDue();
+        pipeline.update(createAppointment("1"));
+        pipeline.flushIfDue();
+
+        verify(persistInterface, times(2)).commit(commit);
+    }
+
+    @Test
+    public void testWithoutInterval_shouldOnlyCommitChangesOfCallingThread() throws Exception {
+        pipeline.setFlushInterval(0);
+        Appointment own = createAppointment("1");
+        final Appointment other = createAppointment("2");
+        pipeline.insert(own);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                pipeline.insert(other);
+                pipeline.flushIfDue();
+            }
+        };
+        writer.start();
+        writer.join();
+
+        verify(commit).addInsert(other);
+        verify(commit, never()).addInsert(own);
+        pipeline.flushIfDue();
+        verify(commit).addInsert(own);
+        verify(persistInterface, times(2)).commit(commit);
+    }
+
+    @Test
+    public void testWithoutInterval_shouldNotOverlapCommits() throws Exception {
+        pipeline.setFlushInterval(0);
+        final CountDownLatch committing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                maxConcurrent.set(Math.max(maxConcurrent.get(), concurrent.incrementAndGet()));
+                committing.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                concurrent.decrementAndGet();
+                return null;
+            }
+        }).when(persistInterface).commit(any(EKBCommit.class));
+        Thread first = writer(createAppointment("1"));
+        Thread second = writer(createAppointment("2"));
+        first.start();
+        assertTrue(committing.await(5, TimeUnit.SECONDS));
+
+        second.start();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (second.getState() != Thread.State.BLOCKED) {
+            assertTrue("the second commit did not wait for the first one", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        verify(persistInterface, times(1)).commit(commit);
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+
+        verify(persistInterface, times(2)).commit(commit);
+        assertThat(maxConcurrent.get(), is(1));
+    }
+
+    @Test
+    public void testFailedCommitWithoutInterval_shouldOnlyFailItsWrite() throws Exception {
+        pipeline.setFlushInterval(0);
+        doThrow(new IllegalStateException("EKB not available")).when(persistInterface).commit(any(EKBCommit.class));
+        Appointment failed = createAppointment("1");
+        pipeline.insert(failed);
+        try {
+            pipeline.flushIfDue();
+            fail("the failure should be reported");
+        } catch (IllegalStateException e) {
+            assertThat(pipeline.getPendingCount(), is(0));
+        }
+        doNothing().when(persistInterface).commit(any(EKBCommit.class));
+
+        pipeline.insert(createAppointment("2"));
+        pipeline.flushIfDue();
+
+        verify(commit, times(1)).addInsert(failed);
+        assertThat(pipeline.getCommitCount(), is(1L));
+    }
+
+    @Test
+    public void testFlushSizeReached_shouldCommitOnCallingThread() throws Exception {
+        pipeline.setFlushSize(3);
+        for (int i = 0; i < 3; i++) {
+            pipeline.insert(createAppointment(String.valueOf(i)));
+            pipeline.flushIfDue();
+        }
+
+        verify(persistInterface, times(1)).commit(commit);
+        assertThat(pipeline.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testFailedCommit_shouldKeepChangesPending() throws Exception {
+        doThrow(new IllegalStateException("EKB not available")).when(persistInterface).commit(any(EKBCommit.class));
+        pipeline.insert(createAppointment("1"));
+        try {
+            pipeline.flush();
+            fail("the failure should be reported");
+        } catch (IllegalStateException e) {
+            assertThat(pipeline.getPendingCount(), is(1));
+        }
+        pipeline.delete(createAppointment("1"));
+        assertThat(pipeline.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testEkbFailing_shouldDropOldestChangesBeyondMaxPending() throws Exception {
+        doThrow(new IllegalStateException("EKB not available")).when(persistInterface).commit(any(EKBCommit.class));
+        pipeline.setMaxPending(2);
+        pipeline.insert(createAppointment("1"));
+        pipeline.insert(createAppointment("2"));
+        try {
+            pipeline.flush();
+            fail("the failure should be reported");
+        } catch (IllegalStateException e) {
+            assertThat(pipeline.getPendingCount(), is(2));
+        }
+
+        pipeline.insert(createAppointment("3"));
+
+        assertThat(pipeline.getPendingCount(), is(2));
+        assertThat(pipeline.getDroppedCount(), is(1L));
+    }
+
+    @Test
+    public void testScheduler_shouldFlushInBackground() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        pipeline.setScheduler(scheduler);
+        ArgumentCaptor<Runnable> flushTask = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).scheduleWithFixedDelay(flushTask.capture(), eq(60000L), eq(60000L),
+            eq(TimeUnit.MILLISECONDS));
+        pipeline.update(createAppointment("1"));
+
+        flushTask.getValue().run();
+
+        verify(persistInterface, times(1)).commit(commit);
+    }
+
+    @Test
+    public void testClose_shouldCommitPendingChanges() throws Exception {
+        pipeline.update(createAppointment("1"));
+        pipeline.close();
+
+        verify(persistInterface, times(1)).commit(commit);
+        assertThat(pipeline.getCommitCount(), is(1L));
+    }
+
+    private Thread writer(final Appointment appointment) {
+        return new Thread() {
+            @Override
+            public void run() {
+                pipeline.insert(appointment);
+                pipeline.flushIfDue();
+            }
+        };
+    }
+
+    private static Appointment createAppointment(String id) {
+        Appointment appointment = new Appointment();
+        appointment.setId(id);
+        return appointment;
+    }
+}
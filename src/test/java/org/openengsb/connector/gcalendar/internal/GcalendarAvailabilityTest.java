@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+
+import com.google.gdata.data.DateTime;
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarAvailabilityTest {
+
+    private static final String[][] EVENTS = {
+        { "2012-01-01T10:00:00.000Z", "2012-01-01T11:00:00.000Z" },
+        { "2012-01-01T10:30:00.000Z", "2012-01-01T12:00:00.000Z" },
+        { "2012-01-01T12:00:00.000Z", "2012-01-01T12:30:00.000Z" },
+        { "2012-01-01T14:00:00.000Z", "2012-01-01T15:00:00.000Z" },
+    };
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+    private volatile String lastPath;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                lastPath = path;
+                boolean freeBusy = path.contains("/" + GcalendarServiceImpl.FREE_BUSY_PROJECTION + "?");
+                StringBuilder entries = new StringBuilder();
+                for (int i = 0; i < EVENTS.length; i++) {
+                    entries.append(freeBusy ? busyEntry(EVENTS[i][0], EVENTS[i][1], false)
+                            : server.entry("e" + i, "event " + i, EVENTS[i][0], EVENTS[i][1]));
+                }
+                if (freeBusy) {
+                    // free time does not count, even if it overlaps nothing else
+                    entries.append(busyEntry("2012-01-01T16:00:00.000Z", "2012-01-01T17:00:00.000Z", true));
+                }
+                return StubGoogleServer.feed(entries.toString());
+            }
+        });
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setStreamingParser(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testBusyIntervals_shouldMergeOverlappingAndTouchingEvents() throws Exception {
+        long[] busy = service.getBusyIntervals(time("2012-01-01T00:00:00.000Z"), time("2012-01-02T00:00:00.000Z"));
+
+        assertThat(busy, is(new long[]{
+            time("2012-01-01T10:00:00.000Z").getTime(), time("2012-01-01T12:30:00.000Z").getTime(),
+            time("2012-01-01T14:00:00.000Z").getTime(), time("2012-01-01T15:00:00.000Z").getTime() }));
+        assertTrue(lastPath, lastPath.startsWith(StubGoogleServer.FEED_PATH.replace("/full", "/free-busy?")));
+        assertTrue(lastPath, lastPath.contains("singleevents=true"));
+    }
+
+    @Test
+    public void testBusyIntervals_shouldBeCutToTheRange() throws Exception {
+        long[] busy = service.getBusyIntervals(time("2012-01-01T11:00:00.000Z"), time("2012-01-01T14:30:00.000Z"));
+
+        assertThat(busy, is(new long[]{
+            time("2012-01-01T11:00:00.000Z").getTime(), time("2012-01-01T12:30:00.000Z").getTime(),
+            time("2012-01-01T14:00:00.000Z").getTime(), time("2012-01-01T14:30:00.000Z").getTime() }));
+    }
+
+    @Test
+    public void testBusyIntervals_shouldReceiveFewerBytesThanAppointments() throws Exception {
+        Date start = time("2012-01-01T00:00:00.000Z");
+        Date end = time("2012-01-02T00:00:00.000Z");
+        service.getAppointments(start, end);
+        long appointmentBytes = service.getMetrics().getPayloadBytes("query");
+
+        service.getBusyIntervals(start, end);
+
+        assertTrue(service.getMetrics().getPayloadBytes("availability") < appointmentBytes);
+    }
+
+    @Test
+    public void testFreeBusyFeed_shouldKeepUnknownProjections() throws Exception {
+        assertThat(GcalendarServiceImpl.toFreeBusyFeed("http://host/calendar/feeds/default/private/full"),
+            is("http://host/calendar/feeds/default/private/free-busy"));
+        assertThat(GcalendarServiceImpl.toFreeBusyFeed("http://host/calendar/ical/custom"),
+            is("http://host/calendar/ical/custom"));
+    }
+
+    private static Date time(String value) {
+        return new Date(DateTime.parseDateTime(value).getValue());
+    }
+
+    /**
+     * an entry as the free/busy projection returns it, only carrying its times
+     */
+    private static String busyEntry(String startTime, String endTime, boolean transparent) {
+        String transparency = transparent
+                ? "<gd:transparency value='http://schemas.google.com/g/2005#event.transparent'/>" : "";
+        return "<entry>" + transparency + "<gd:when startTime='" + startTime + "' endTime='" + endTime + "'/></entry>";
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.EKBCommit;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarBatchTest {
+
+    private static final Pattern BATCH_ID = Pattern.compile("<batch:id>(\\d+)</batch:id>");
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+    private PersistInterface persistInterface;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                StringBuilder entries = new StringBuilder();
+                for (String entry : body.split("<entry")) {
+                    Matcher matcher = BATCH_ID.matcher(entry);
+                    if (!matcher.find()) {
+                        continue;
+                    }
+                    String batchId = matcher.group(1);
+                    entries.append("<entry><batch:id>").append(batchId).append("</batch:id>");
+                    if (entry.contains("fail")) {
+                        entries.append("<batch:status code='400' reason='Bad Request'/>");
+                    } else {
+                        entries.append("<batch:status code='201' reason='Created'/>");
+                    }
+                    entries.append("<id>http://127.0.0.1/e").append(batchId).append("</id>")
+                        .append("<updated>2012-01-01T00:00:00.000Z</updated><title type='text'>x</title>")
+                        .append("<link rel='edit' type='application/atom+xml' href='http://127.0.0.1")
+                        .append(StubGoogleServer.FEED_PATH).append("/e").append(batchId).append("/1'/>")
+                        .append("</entry>");
+                }
+                return StubGoogleServer.feed(entries.toString());
+            }
+        });
+        persistInterface = mock(PersistInterface.class);
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(persistInterface);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testCreateAppointments_shouldSplitIntoChunksOfBatchSize() throws Exception {
+        service.setBatchSize(2);
+        List<AppointmentBatchResult> results = service.createAppointments(createAppointments("a", "b", "c", "d", "e"));
+
+        assertThat(server.getRequestCount(), is(3));
+        assertThat(results.size(), is(5));
+        for (AppointmentBatchResult result : results) {
+            assertThat(result.isSuccess(), is(true));
+        }
+        verify(persistInterface, times(1)).commit(any(EKBCommit.class));
+    }
+
+    @Test
+    public void testCreateAppointments_shouldReportPartialFailuresPerItem() throws Exception {
+        List<Appointment> appointments = createAppointments("a", "fail", "c");
+        List<AppointmentBatchResult> results = service.createAppointments(appointments);
+
+        assertThat(server.getRequestCount(), is(1));
+        assertThat(results.get(0).isSuccess(), is(true));
+        assertThat(results.get(1).isSuccess(), is(false));
+        assertThat(results.get(1).getStatusCode(), is(400));
+        assertThat(results.get(2).isSuccess(), is(true));
+        assertThat(appointments.get(1).getId(), nullValue());
+        assertThat(appointments.get(2).getId(), is("e2@default"));
+        verify(persistInterface, times(1)).commit(any(EKBCommit.class));
+    }
+
+    @Test
+    public void testDeleteAppointments_shouldReportMissingIdsPerItem() throws Exception {
+        List<AppointmentBatchResult> results = service.deleteAppointments(Arrays.asList("e1@default", null, " "));
+
+        assertThat(server.getRequestCount(), is(1));
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).isSuccess(), is(true));
+        assertThat(results.get(1).isSuccess(), is(false));
+        assertThat(results.get(1).getStatusCode(), is(-1));
+        assertThat(results.get(2).isSuccess(), is(false));
+        assertThat(results.get(2).getStatusCode(), is(-1));
+    }
+
+    @Test
+    public void testDeleteAppointments_shouldNotSendOnlyMissingIds() throws Exception {
+        List<AppointmentBatchResult> results = service.deleteAppointments(Arrays.asList((String) null, ""));
+
+        assertThat(server.getRequestCount(), is(0));
+        assertThat(results.get(0).getReason(), is("invalid appointment id"));
+        assertThat(results.get(1).getReason(), is("invalid appointment id"));
+    }
+
+    private static List<Appointment> createAppointments(String... names) {
+        List<Appointment> appointments = new ArrayList<Appointment>();
+        for (String name : names) {
+            Appointment appointment = new Appointment();
+            appointment.setName(name);
+            appointment.setDescription(name);
+            appointment.setLocation(name);
+            appointment.setStart(new Date());
+            appointment.setEnd(new Date());
+            appointments.add(appointment);
+        }
+        return appointments;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.AliveState;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarConcurrencyTest {
+
+    private static final int POOL_SIZE = 4;
+    private static final int LATENCY = 50;
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                return StubGoogleServer.document(server.entry("e1", "breakfast", "2012-01-01T10:00:00.000Z",
+                    "2012-01-01T11:00:00.000Z"));
+            }
+        });
+        server.setLatency(LATENCY);
+        service = new GcalendarServiceImpl("id");
+        CalendarSession session = StubGoogleServer.createSession();
+        session.setPoolSize(POOL_SIZE);
+        service.setSession(session);
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setCacheSize(0);
+        // the test measures the client pool, not the rate limit
+        service.setRateLimit(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testParallelCallers_shouldScaleUpToPoolSize() throws Exception {
+        int calls = POOL_SIZE * 10;
+        runParallel(POOL_SIZE * 2, calls);
+
+        assertThat(server.getRequestCount(), is(calls));
+        // twice as many callers as clients keep the whole pool busy, but never more than the pool
+        assertThat(server.getMaxConcurrentRequests(), is(POOL_SIZE));
+        assertThat(service.getAliveState(), is(AliveState.ONLINE));
+    }
+
+    @Test
+    public void testIdenticalLoads_shouldShareOneRequest() throws Exception {
+        int callers = POOL_SIZE * 2;
+        // long enough for every caller to arrive while the first request is still running
+        server.setLatency(LATENCY * 10);
+        final CyclicBarrier barrier = new CyclicBarrier(callers);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        List<Future<Appointment>> futures = new ArrayList<Future<Appointment>>();
+        for (int i = 0; i < callers; i++) {
+            futures.add(executor.submit(new Callable<Appointment>() {
+                @Override
+                public Appointment call() throws Exception {
+                    barrier.await();
+                    return service.loadAppointment(server.getFeedUrl() + "/e1");
+                }
+            }));
+        }
+        Set<Appointment> results = Collections.newSetFromMap(new IdentityHashMap<Appointment, Boolean>());
+        for (Future<Appointment> future : futures) {
+            Appointment appointment = future.get();
+            assertThat(appointment.getName(), is("breakfast"));
+            results.add(appointment);
+        }
+        executor.shutdown();
+
+        assertThat(server.getRequestCount(), is(1));
+        // every caller got a copy of its own
+        assertThat(results.size(), is(callers));
+        assertThat(service.getLoadFlights().getSharedCount(), is((long) callers - 1));
+        assertThat(service.getMetrics().getSharedReadRate("load"), is((double) (callers - 1) / callers));
+    }
+
+    @Test
+    public void testAliveState_shouldBeOfflineIfServerIsUnreachable() throws Exception {
+        server.stop();
+        try {
+            service.loadAppointment(server.getFeedUrl() + "/e1");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertThat(service.getAliveState(), is(AliveState.OFFLINE));
+    }
+
+    private void runParallel(int threads, int calls) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < calls; i++) {
+            // distinct ids, identical loads would share their requests
+            final String id = server.getFeedUrl() + "/e" + i;
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return service.loadAppointment(id);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+}
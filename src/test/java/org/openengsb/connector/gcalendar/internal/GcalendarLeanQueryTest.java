@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarLeanQueryTest {
+
+    private static final int ENTRIES = 20;
+
+    private StubGoogleServer server;
+    private volatile String lastPath;
+    private volatile String lastAcceptEncoding;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                lastPath = path;
+                lastAcceptEncoding = headers.getFirst("Accept-Encoding");
+                boolean projected = path.contains("fields=");
+                StringBuilder entries = new StringBuilder();
+                for (int i = 0; i < ENTRIES; i++) {
+                    String full = server.entry("e" + i, "event " + i, "2012-01-01T10:00:00.000Z",
+                        "2012-01-01T11:00:00.000Z");
+                    entries.append(projected ? project(full) : full);
+                }
+                return StubGoogleServer.feed(entries.toString());
+            }
+        });
+        server.setGzip(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testLeanQuery_shouldRequestProjectionAndGzip() throws Exception {
+        GcalendarServiceImpl service = createService(true);
+
+        List<Appointment> appointments = service.getAppointments(new Date(0), new Date());
+
+        assertThat(appointments.size(), is(ENTRIES));
+        assertThat(appointments.get(0).getName(), is("event 0"));
+        assertThat(appointments.get(0).getLocation(), is("event 0"));
+        assertTrue(lastPath.contains("fields="));
+        assertThat(lastAcceptEncoding, is("gzip"));
+    }
+
+    @Test
+    public void testLeanQuery_shouldMatchFullQuery() throws Exception {
+        List<Appointment> expected = createService(false).getAppointments(new Date(0), new Date());
+        List<Appointment> actual = createService(true).getAppointments(new Date(0), new Date());
+
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i).getId(), is(expected.get(i).getId()));
+            assertThat(actual.get(i).getName(), is(expected.get(i).getName()));
+            assertThat(actual.get(i).getDescription(), is(expected.get(i).getDescription()));
+            assertThat(actual.get(i).getStart(), is(expected.get(i).getStart()));
+            assertThat(actual.get(i).getEnd(), is(expected.get(i).getEnd()));
+        }
+    }
+
+    @Test
+    public void testLeanQuery_shouldReceiveFewerBytes() throws Exception {
+        GcalendarServiceImpl full = createService(false);
+        full.setStreamingParser(true);
+        full.getAppointments(new Date(0), new Date());
+        GcalendarServiceImpl lean = createService(true);
+        lean.getAppointments(new Date(0), new Date());
+
+        assertThat(full.getFeedTraffic().getPageCount(), is(1L));
+        assertThat(lean.getFeedTraffic().getPageCount(), is(1L));
+        assertTrue(lean.getFeedTraffic().getReceivedBytes() < full.getFeedTraffic().getReceivedBytes());
+    }
+
+    private GcalendarServiceImpl createService(boolean lean) {
+        GcalendarServiceImpl service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setLeanQueries(lean);
+        return service;
+    }
+
+    /**
+     * strips an entry down to what google returns for the lean fields projection
+     */
+    private static String project(String entry) {
+        return entry.replaceAll("<id>[^<]*</id>", "").replaceAll("<updated>[^<]*</updated>", "")
+            .replaceAll("<category [^>]*/>", "").replaceAll(" gd:etag='[^']*'", "");
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarMultiCalendarTest {
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+    private String team;
+    private String room;
+    private final List<String> paths = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                paths.add(path);
+                if (path.startsWith("/calendar/feeds/user%40example.com/")) {
+                    return StubGoogleServer.document(server.entry("review", "review", "2012-01-03T09:00:00.000Z",
+                        "2012-01-03T10:00:00.000Z"));
+                }
+                if (path.startsWith("/calendar/feeds/team/")) {
+                    return StubGoogleServer.feed(server.entry("standup", "standup", "2012-01-02T09:00:00.000Z",
+                        "2012-01-02T09:15:00.000Z"));
+                }
+                return StubGoogleServer.feed(server.entry("meeting", "meeting", "2012-01-02T08:00:00.000Z",
+                    "2012-01-02T10:00:00.000Z"));
+            }
+        });
+        String base = server.getFeedUrl().substring(0, server.getFeedUrl().indexOf(StubGoogleServer.FEED_PATH));
+        team = base + "/calendar/feeds/team/private/full";
+        room = base + "/calendar/feeds/room/private/full";
+
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setCalendars(Arrays.asList(team, room));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testGetAppointments_shouldQueryAllCalendarsConcurrently() throws Exception {
+        server.setLatency(200);
+
+        List<Appointment> appointments = service.getAppointments(new Date(0), new Date());
+
+        assertThat(appointments.size(), is(2));
+        assertThat(appointments.get(0).getName(), is("meeting"));
+        assertThat(appointments.get(1).getName(), is("standup"));
+        assertThat(server.getRequestCount(), is(2));
+        assertTrue(server.getMaxConcurrentRequests() > 1);
+    }
+
+    @Test
+    public void testGetAppointmentsByCalendar_shouldTagSourceCalendar() throws Exception {
+        Map<String, List<Appointment>> appointments = service.getAppointmentsByCalendar(new Date(0), new Date());
+
+        assertThat(appointments.keySet().iterator().next(), is(team));
+        assertThat(appointments.get(team).get(0).getName(), is("standup"));
+        assertThat(appointments.get(room).get(0).getName(), is("meeting"));
+    }
+
+    @Test
+    public void testSetCalendars_shouldExpandCalendarIds() throws Exception {
+        service.setCalendars(Arrays.asList("team@group.calendar.google.com"));
+
+        assertThat(service.getCalendars(), is(Arrays.asList(
+            "https://www.google.com/calendar/feeds/team%40group.calendar.google.com/private/full")));
+    }
+
+    @Test
+    public void testLoadAppointmentOfUnconfiguredCalendar_shouldBuildTheUrlFromTheFeeds() throws Exception {
+        Appointment appointment = service.loadAppointment("review@user@example.com");
+
+        assertThat(appointment.getName(), is("review"));
+        assertThat(paths.get(paths.size() - 1), is("/calendar/feeds/user%40example.com/private/full/review"));
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarOptimisticWriteTest {
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+    private volatile String currentEtag = "\"1\"";
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                String ifMatch = headers.getFirst("If-Match");
+                requests.add(method + " " + ifMatch);
+                paths.add(path);
+                if (ifMatch != null && !"*".equals(ifMatch) && !currentEtag.equals(ifMatch)) {
+                    status[0] = 412;
+                    return null;
+                }
+                if ("DELETE".equals(method)) {
+                    return null;
+                }
+                return StubGoogleServer.document(server.entry("e1", currentEtag, "lunch", "2012-01-01T10:00:00.000Z",
+                    "2012-01-01T11:00:00.000Z"));
+            }
+        });
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setOptimisticWrites(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testUpdateUncachedAppointment_shouldLoadTheEntryFirst() throws Exception {
+        service.updateAppointment(createAppointment());
+
+        assertThat(requests.size(), is(2));
+        assertThat(requests.get(0), is("GET null"));
+        assertThat(requests.get(1), is("PUT \"1\""));
+    }
+
+    @Test
+    public void testUpdateCachedAppointment_shouldSendCachedEtag() throws Exception {
+        Appointment appointment = createAppointment();
+        service.loadAppointment(appointment.getId());
+        requests.clear();
+
+        service.updateAppointment(appointment);
+
+        assertThat(requests.size(), is(1));
+        assertThat(requests.get(0), is("PUT \"1\""));
+    }
+
+    @Test
+    public void testUpdateConcurrentlyModifiedAppointment_shouldLoadAndRetry() throws Exception {
+        Appointment appointment = createAppointment();
+        service.loadAppointment(appointment.getId());
+        currentEtag = "\"2\"";
+        requests.clear();
+
+        service.updateAppointment(appointment);
+
+        assertThat(requests.size(), is(3));
+        assertThat(requests.get(0), is("PUT \"1\""));
+        assertThat(requests.get(2), is("PUT \"2\""));
+    }
+
+    @Test
+    public void testDeleteUncachedAppointment_shouldDeleteWithSingleRequest() throws Exception {
+        service.deleteAppointment(createAppointment().getId());
+
+        assertThat(requests.size(), is(1));
+        assertThat(requests.get(0), is("DELETE *"));
+    }
+
+    @Test
+    public void testLoadByUrl_shouldHandOutCompactIdThatStaysTheSame() throws Exception {
+        Appointment loaded = service.loadAppointment(server.getFeedUrl() + "/e1/1");
+        assertThat(loaded.getId(), is("e1@default"));
+        currentEtag = "\"2\"";
+
+        service.updateAppointment(loaded);
+
+        assertThat(loaded.getId(), is("e1@default"));
+        assertThat(service.loadAppointment(loaded.getId()).getName(), is("lunch"));
+        assertThat(paths.get(paths.size() - 1), is(StubGoogleServer.FEED_PATH + "/e1"));
+    }
+
+    private Appointment createAppointment() {
+        Appointment appointment = new Appointment();
+        appointment.setId(server.getFeedUrl() + "/e1/1");
+        appointment.setName("lunch");
+        appointment.setDescription("lunch");
+        appointment.setLocation("lunch");
+        appointment.setStart(new Date());
+        appointment.setEnd(new Date());
+        return appointment;
+    }
+}
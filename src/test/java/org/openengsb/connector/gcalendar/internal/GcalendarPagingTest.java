@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarPagingTest {
+
+    private static final int PAGES = 3;
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                int page = path.contains("page=") ? Integer.parseInt(path.substring(path.indexOf("page=") + 5)) : 1;
+                String next = page < PAGES ? server.getFeedUrl() + "?page=" + (page + 1) : null;
+                String entries = server.entry("p" + page + "a", "a", "2012-01-01T10:00:00.000Z",
+                    "2012-01-01T11:00:00.000Z")
+                        + server.entry("p" + page + "b", "b", "2012-01-01T12:00:00.000Z", "2012-01-01T13:00:00.000Z");
+                return StubGoogleServer.page(next, entries);
+            }
+        });
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setPageSize(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testGetAppointments_shouldFollowAllNextLinks() throws Exception {
+        List<Appointment> appointments = service.getAppointments(new Date(0), new Date());
+
+        assertThat(appointments.size(), is(PAGES * 2));
+        assertThat(server.getRequestCount(), is(PAGES));
+        assertThat(appointments.get(PAGES * 2 - 1).getId(), is("p3b@default"));
+    }
+
+    @Test
+    public void testIterateAppointments_shouldFetchPagesOnDemand() throws Exception {
+        Iterator<Appointment> iterator = service.iterateAppointments(new Date(0), new Date());
+
+        assertThat(server.getRequestCount(), is(0));
+        assertThat(iterator.next().getName(), is("a"));
+        assertThat(iterator.hasNext(), is(true));
+        int count = 1;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertThat(count, is(PAGES * 2));
+    }
+}
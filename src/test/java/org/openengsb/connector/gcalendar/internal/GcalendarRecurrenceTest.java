@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.data.DateTime;
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarRecurrenceTest {
+
+    private static final String DAILY = "DTSTART:20120301T100000Z\nDTEND:20120301T110000Z\nRRULE:FREQ=DAILY;COUNT=5\n";
+
+    private static final String CANCELED = "http://schemas.google.com/g/2005#event.canceled";
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+    private volatile String recurrence = DAILY;
+    private volatile boolean canceled;
+    private final AtomicInteger masterRequests = new AtomicInteger();
+    private volatile String lastQuery;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                String query = decode(path);
+                // the occurrence of the 3rd was moved to the afternoon
+                String exceptions = exception("2012-03-03", "2012-03-03T14:00:00.000Z", "2012-03-03T15:00:00.000Z");
+                if (canceled) {
+                    // and the one of the 4th was deleted
+                    exceptions += exception("2012-03-04", "2012-03-04T10:00:00.000Z", "2012-03-04T11:00:00.000Z")
+                        .replace("<gd:where", "<gd:eventStatus value='" + CANCELED + "'/><gd:where");
+                }
+                if (query.contains("gd:recurrence or gd:originalEvent")) {
+                    masterRequests.incrementAndGet();
+                    return StubGoogleServer.feed(master(false) + exceptions);
+                }
+                lastQuery = query;
+                String single = server.entry("s1", "review", "2012-03-02T12:00:00.000Z", "2012-03-02T13:00:00.000Z");
+                if (query.contains("not(gd:recurrence)")) {
+                    return StubGoogleServer.feed(single + exceptions);
+                }
+                return StubGoogleServer.feed(master(true) + single + exceptions);
+            }
+        });
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setStreamingParser(true);
+        service.setRecurrenceExpansion(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testRecurringEvent_shouldBeExpandedFromCachedMaster() throws Exception {
+        Date start = time("2012-03-01T00:00:00.000Z");
+        Date end = time("2012-03-10T00:00:00.000Z");
+
+        service.getAppointments(start, end);
+        List<Appointment> appointments = service.getAppointments(start, end);
+
+        assertThat(ids(appointments), is(ids("m1_20120301T100000Z@default", "m1_20120302T100000Z@default",
+            "s1@default", "m1_20120303T100000Z@default", "m1_20120304T100000Z@default",
+            "m1_20120305T100000Z@default")));
+        assertThat(appointments.get(0).getName(), is("standup"));
+        assertThat(appointments.get(0).getEnd(), is(time("2012-03-01T11:00:00.000Z")));
+        assertThat(appointments.get(3).getStart(), is(time("2012-03-03T14:00:00.000Z")));
+        assertThat(masterRequests.get(), is(1));
+        assertThat(service.getRecurrenceCache().getExpandedCount(), is(8L));
+        assertTrue(lastQuery, lastQuery.contains("not(gd:recurrence)"));
+    }
+
+    @Test
+    public void testChangedOccurrence_shouldReloadTheMaster() throws Exception {
+        Date start = time("2012-03-01T00:00:00.000Z");
+        Date end = time("2012-03-10T00:00:00.000Z");
+        service.getAppointments(start, end);
+
+        service.getRecurrenceCache().invalidate("m1_20120304T100000Z@default");
+        service.getRecurrenceCache().invalidate("s1@default");
+        service.getAppointments(start, end);
+
+        assertThat(masterRequests.get(), is(2));
+    }
+
+    @Test
+    public void testUnknownRule_shouldBeExpandedByGoogle() throws Exception {
+        recurrence = "DTSTART:20120301T100000Z\nDTEND:20120301T110000Z\nRDATE:20120305T100000Z\n";
+
+        List<Appointment> appointments =
+            service.getAppointments(time("2012-03-01T00:00:00.000Z"), time("2012-03-10T00:00:00.000Z"));
+
+        assertThat(ids(appointments), is(ids("m1@default", "s1@default", "m1_20120303T100000Z@default")));
+        assertTrue(lastQuery, !lastQuery.contains("not(gd:recurrence)"));
+        assertThat(service.getRecurrenceCache().getExpandedCount(), is(0L));
+    }
+
+    @Test
+    public void testCancelledOccurrence_shouldBeLeftOut() throws Exception {
+        canceled = true;
+
+        List<Appointment> appointments =
+            service.getAppointments(time("2012-03-01T00:00:00.000Z"), time("2012-03-10T00:00:00.000Z"));
+
+        assertThat(ids(appointments), is(ids("m1_20120301T100000Z@default", "m1_20120302T100000Z@default",
+            "s1@default", "m1_20120303T100000Z@default", "m1_20120305T100000Z@default")));
+        assertThat(appointments.get(3).getStart(), is(time("2012-03-03T14:00:00.000Z")));
+        assertThat(service.getRecurrenceCache().getExpandedCount(), is(3L));
+    }
+
+    @Test
+    public void testCancelledOccurrenceExpandedByGoogle_shouldBeLeftOut() throws Exception {
+        canceled = true;
+        service.setRecurrenceExpansion(false);
+        service.setStreamingParser(false);
+
+        List<Appointment> appointments =
+            service.getAppointments(time("2012-03-01T00:00:00.000Z"), time("2012-03-10T00:00:00.000Z"));
+
+        assertThat(ids(appointments), is(ids("m1@default", "s1@default", "m1_20120303T100000Z@default")));
+        assertThat(appointments.get(2).getStart(), is(time("2012-03-03T14:00:00.000Z")));
+    }
+
+    /**
+     * an exception of the recurring master, replacing the occurrence of the given day
+     */
+    private String exception(String day, String startTime, String endTime) {
+        String originalStart = day.replace("-", "") + "T100000Z";
+        return server.entry("m1_" + originalStart, "standup", startTime, endTime).replace("<gd:where",
+            "<gd:originalEvent id='m1' href='" + server.getFeedUrl() + "/m1'><gd:when startTime='" + day
+                + "T10:00:00.000Z'/></gd:originalEvent><gd:where");
+    }
+
+    /**
+     * the recurring master, within a range query it carries the occurrences of the range
+     */
+    private String master(boolean expanded) {
+        String entry = server.entry("m1", "standup", "2012-03-01T10:00:00.000Z", "2012-03-01T11:00:00.000Z");
+        if (!expanded) {
+            entry = entry.replaceFirst("<gd:when[^>]*/>", "");
+        }
+        return entry.replace("</entry>", "<gd:recurrence>" + recurrence + "</gd:recurrence></entry>");
+    }
+
+    private static List<String> ids(List<Appointment> appointments) {
+        List<String> ids = new ArrayList<String>();
+        for (Appointment appointment : appointments) {
+            ids.add(appointment.getId());
+        }
+        return ids;
+    }
+
+    private static List<String> ids(String... ids) {
+        List<String> list = new ArrayList<String>();
+        for (String id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static String decode(String path) {
+        try {
+            return URLDecoder.decode(path, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Date time(String value) {
+        return new Date(DateTime.parseDateTime(value).getValue());
+    }
+}
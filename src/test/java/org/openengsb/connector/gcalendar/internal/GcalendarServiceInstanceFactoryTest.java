@@ -48,4 +48,23 @@ public class GcalendarServiceInstanceFactoryTest {
         assertThat(service.getGooglePassword(), is("pwd"));
         assertThat(service.getGoogleUser(), is("user"));
     }
+
+    @Test
+    public void testDestroyInstance_shouldStopOnlyThatInstance() throws Exception {
+        GcalendarServiceInstanceFactory gsif = new GcalendarServiceInstanceFactory();
+        try {
+            GcalendarServiceImpl deleted = (GcalendarServiceImpl) gsif.createNewInstance("deleted");
+            GcalendarServiceImpl kept = (GcalendarServiceImpl) gsif.createNewInstance("kept");
+            deleted.setWatchEnabled(true);
+            kept.setWatchEnabled(true);
+
+            gsif.destroyInstance("deleted");
+
+            assertThat(gsif.getInstanceCount(), is(1));
+            assertThat(deleted.getChangeWatcher().isEnabled(), is(false));
+            assertThat(kept.getChangeWatcher().isEnabled(), is(true));
+        } finally {
+            gsif.shutdown();
+        }
+    }
 }
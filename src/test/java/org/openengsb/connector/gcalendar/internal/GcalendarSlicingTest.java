@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.data.DateTime;
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarSlicingTest {
+
+    private static final String[][] EVENTS = {
+        { "jan", "2012-01-10T10:00:00.000Z", "2012-01-10T11:00:00.000Z" },
+        { "boundary", "2012-01-30T10:00:00.000Z", "2012-02-03T11:00:00.000Z" },
+        { "mar", "2012-03-15T10:00:00.000Z", "2012-03-15T11:00:00.000Z" },
+        { "jun", "2012-06-01T10:00:00.000Z", "2012-06-01T11:00:00.000Z" },
+    };
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                long min = parameter(path, "start-min");
+                long max = parameter(path, "start-max");
+                StringBuilder entries = new StringBuilder();
+                for (String[] event : EVENTS) {
+                    if (millis(event[2]) > min && millis(event[1]) < max) {
+                        entries.append(server.entry(event[0], event[0], event[1], event[2]));
+                    }
+                }
+                return StubGoogleServer.feed(entries.toString());
+            }
+        });
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setSliceLength(TimeUnit.DAYS.toMillis(31));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testWideRange_shouldQuerySlicesConcurrently() throws Exception {
+        server.setLatency(200);
+
+        List<Appointment> appointments =
+            service.getAppointments(time("2012-01-01T00:00:00.000Z"), time("2012-07-01T00:00:00.000Z"));
+
+        assertThat(server.getRequestCount(), is(6));
+        assertTrue(server.getMaxConcurrentRequests() > 1);
+        assertThat(ids(appointments), is(ids("jan", "boundary", "mar", "jun")));
+    }
+
+    @Test
+    public void testNarrowRange_shouldQueryOnce() throws Exception {
+        List<Appointment> appointments =
+            service.getAppointments(time("2012-01-01T00:00:00.000Z"), time("2012-01-20T00:00:00.000Z"));
+
+        assertThat(server.getRequestCount(), is(1));
+        assertThat(ids(appointments), is(ids("jan")));
+    }
+
+    private List<String> ids(List<Appointment> appointments) {
+        List<String> ids = new ArrayList<String>();
+        for (Appointment appointment : appointments) {
+            ids.add(appointment.getId());
+        }
+        return ids;
+    }
+
+    private List<String> ids(String... eventIds) {
+        List<String> ids = new ArrayList<String>();
+        for (String eventId : eventIds) {
+            ids.add(server.getFeedUrl() + "/" + eventId + "/1");
+        }
+        return ids;
+    }
+
+    private static Date time(String value) {
+        return new Date(millis(value));
+    }
+
+    private static long millis(String value) {
+        return DateTime.parseDateTime(value).getValue();
+    }
+
+    private static long parameter(String path, String name) {
+        int index = path.indexOf(name + "=");
+        if (index < 0) {
+            return name.equals("start-min") ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        int end = path.indexOf('&', index);
+        String value = path.substring(index + name.length() + 1, end < 0 ? path.length() : end);
+        try {
+            return millis(URLDecoder.decode(value, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * the streaming parser has to produce exactly the appointments the GData client and the converter produce
+ */
+public class GcalendarStreamingParserTest {
+
+    private StubGoogleServer server;
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testRecordedFeed_shouldMatchGDataClient() throws Exception {
+        final String feed = readResource("/feeds/events.xml");
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                return feed;
+            }
+        });
+
+        List<Appointment> expected = createService(false).getAppointments(new Date(0), new Date());
+        List<Appointment> actual = createService(true).getAppointments(new Date(0), new Date());
+
+        assertThat(expected.size(), is(5));
+        assertSameAppointments(actual, expected);
+    }
+
+    @Test
+    public void testPagedFeed_shouldMatchGDataClient() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                int page = path.contains("page=") ? Integer.parseInt(path.substring(path.indexOf("page=") + 5)) : 1;
+                String next = page < 3 ? server.getFeedUrl() + "?page=" + (page + 1) : null;
+                return StubGoogleServer.page(next, server.entry("p" + page, "page " + page,
+                    "2012-01-0" + page + "T10:00:00.000Z", "2012-01-0" + page + "T11:00:00.000Z"));
+            }
+        });
+
+        List<Appointment> expected = createService(false).getAppointments(new Date(0), new Date());
+        List<Appointment> actual = createService(true).getAppointments(new Date(0), new Date());
+
+        assertThat(expected.size(), is(3));
+        assertSameAppointments(actual, expected);
+    }
+
+    private GcalendarServiceImpl createService(boolean streamingParser) {
+        GcalendarServiceImpl service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setStreamingParser(streamingParser);
+        return service;
+    }
+
+    private static void assertSameAppointments(List<Appointment> actual, List<Appointment> expected) {
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            Appointment a = actual.get(i);
+            Appointment e = expected.get(i);
+            assertThat(a.getId(), is(e.getId()));
+            assertThat(a.getName(), is(e.getName()));
+            assertThat(a.getDescription(), is(e.getDescription()));
+            assertThat(a.getLocation(), is(e.getLocation()));
+            assertThat(a.getStart(), is(e.getStart()));
+            assertThat(a.getEnd(), is(e.getEnd()));
+            assertThat(a.getFullDay(), is(e.getFullDay()));
+        }
+    }
+
+    private String readResource(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openengsb.core.api.ekb.PersistInterface;
+
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarSyncCheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubGoogleServer server;
+    private File checkpointFile;
+    private volatile boolean gone;
+    private final List<String> paths = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                paths.add(path);
+                if (gone && path.contains("updated-min")) {
+                    status[0] = 410;
+                    return null;
+                }
+                return StubGoogleServer.feed(server.entry("e1", "existing", "2012-01-01T10:00:00.000Z",
+                    "2012-01-01T11:00:00.000Z"));
+            }
+        });
+        checkpointFile = new File(folder.getRoot(), "checkpoint");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testRestoredCheckpoint_shouldBeUsedForTheFirstSync() throws Exception {
+        createService().synchronize();
+        paths.clear();
+
+        SyncResult result = createService().synchronize();
+
+        assertThat(result.isEmpty(), is(true));
+        assertThat(paths.size(), is(1));
+        assertThat(paths.get(0).contains("updated-min"), is(true));
+    }
+
+    @Test
+    public void testExpiredCheckpoint_shouldFallBackToFullSync() throws Exception {
+        createService().synchronize();
+        gone = true;
+        paths.clear();
+
+        SyncResult result = createService().synchronize();
+
+        assertThat(result.isEmpty(), is(true));
+        assertThat(paths.size(), is(2));
+        assertThat(paths.get(1).contains("updated-min"), is(false));
+        assertThat(checkpointFile.exists(), is(true));
+    }
+
+    private GcalendarServiceImpl createService() {
+        GcalendarServiceImpl service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setCheckpointFile(checkpointFile);
+        return service;
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openengsb.core.api.ekb.EKBCommit;
+import org.openengsb.core.api.ekb.PersistInterface;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.sun.net.httpserver.Headers;
+
+public class GcalendarWatchTest {
+
+    private StubGoogleServer server;
+    private GcalendarServiceImpl service;
+    private ScheduledExecutorService scheduler;
+    private final List<String> entries = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger commits = new AtomicInteger();
+    private final CountDownLatch posted = new CountDownLatch(1);
+    private volatile CountDownLatch response;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                if ("POST".equals(method)) {
+                    // google lists the created entry from now on
+                    String created = entry("n1", "created");
+                    entries.add(created);
+                    posted.countDown();
+                    awaitResponse();
+                    status[0] = 201;
+                    return StubGoogleServer.document(created);
+                }
+                StringBuilder feed = new StringBuilder();
+                for (String entry : entries) {
+                    feed.append(entry);
+                }
+                return StubGoogleServer.feed(feed.toString());
+            }
+        });
+        entries.add(entry("e1", "existing"));
+        PersistInterface persistInterface = mock(PersistInterface.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                commits.incrementAndGet();
+                return null;
+            }
+        }).when(persistInterface).commit(any(EKBCommit.class));
+        scheduler = ChangeWatcher.createScheduler(1);
+        service = new GcalendarServiceImpl("id");
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(persistInterface);
+        service.setWatchIntervals(10, 40);
+        service.setScheduler(scheduler);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.shutdown();
+        scheduler.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void testExternalChange_shouldBeCommittedOnce() throws Exception {
+        service.setWatchEnabled(true);
+        awaitChecks(2);
+        // the first check only seeds the mirror, the existing appointments are known to the EKB
+        assertThat(commits.get(), is(0));
+
+        entries.add(entry("e2", "added elsewhere"));
+        awaitChecks(3);
+
+        assertThat(commits.get(), is(1));
+        assertThat(service.getChangeWatcher().getActiveCheckCount(), is(1L));
+    }
+
+    @Test
+    public void testOwnWrite_shouldNotBeCommittedAgain() throws Exception {
+        service.setWatchEnabled(true);
+        awaitChecks(1);
+        response = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Appointment appointment = new Appointment();
+                appointment.setName("created");
+                appointment.setStart(new Date(1325412000000L));
+                appointment.setEnd(new Date(1325415600000L));
+                service.createAppointment(appointment);
+            }
+        };
+        writer.start();
+        assertTrue(posted.await(5, TimeUnit.SECONDS));
+
+        // google lists the entry already, but the write has not recorded it yet
+        awaitChecks(2);
+        assertThat(commits.get(), is(0));
+        response.countDown();
+        writer.join(5000);
+        assertThat(commits.get(), is(1));
+        awaitChecks(2);
+
+        assertThat(commits.get(), is(1));
+        assertThat(service.getChangeWatcher().getActiveCheckCount(), is(0L));
+    }
+
+    @Test
+    public void testShutdown_shouldStopWatching() throws Exception {
+        service.setWatchEnabled(true);
+        awaitChecks(1);
+        service.shutdown();
+        long checks = service.getChangeWatcher().getCheckCount();
+        service.setWatchEnabled(true);
+        Thread.sleep(100);
+
+        assertThat(service.getChangeWatcher().getCheckCount(), is(checks));
+        assertThat(service.getChangeWatcher().isEnabled(), is(false));
+    }
+
+    @Test
+    public void testDisabledWatcher_shouldNotCheck() throws Exception {
+        Thread.sleep(100);
+
+        assertThat(service.getChangeWatcher().getCheckCount(), is(0L));
+        assertThat(server.getRequestCount(), is(0));
+    }
+
+    private void awaitResponse() {
+        CountDownLatch latch = response;
+        if (latch == null) {
+            return;
+        }
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String entry(String eventId, String title) {
+        return server.entry(eventId, title, "2012-01-01T10:00:00.000Z", "2012-01-01T11:00:00.000Z");
+    }
+
+    /**
+     * waits until the given number of checks ran after the current ones
+     */
+    private void awaitChecks(int checks) throws InterruptedException {
+        long target = service.getChangeWatcher().getCheckCount() + checks;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (service.getChangeWatcher().getCheckCount() < target) {
+            assertTrue("the watcher did not check the calendar", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
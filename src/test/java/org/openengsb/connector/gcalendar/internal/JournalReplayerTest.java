@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openengsb.core.api.DomainMethodExecutionException;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.util.ServiceException;
+
+public class JournalReplayerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WriteJournal journal;
+    private RecordingTarget target;
+    private JournalReplayer replayer;
+    private ScheduledThreadPoolExecutor scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        journal = new WriteJournal(new File(folder.getRoot(), "journal"));
+        target = new RecordingTarget();
+        replayer = new JournalReplayer(journal, target);
+        scheduler = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        replayer.shutdown();
+        scheduler.shutdownNow();
+        journal.close();
+    }
+
+    @Test
+    public void testTrigger_shouldReplayOnTheScheduler() throws Exception {
+        journal.append(WriteJournal.Operation.INSERT, createAppointment("local:1", "meeting"));
+        replayer.trigger();
+        assertThat(journal.getPendingCount(), is(1));
+
+        replayer.setScheduler(scheduler);
+
+        awaitPending(0);
+        assertThat(target.calls.get(0), is("insert meeting"));
+    }
+
+    @Test
+    public void testShutdown_shouldNotScheduleRetries() throws Exception {
+        target.failure = new DomainMethodExecutionException("unable to connect", new IOException("timeout"));
+        journal.append(WriteJournal.Operation.INSERT, createAppointment("local:1", "meeting"));
+        replayer.setScheduler(scheduler);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!journal.getPending().get(0).isUncertain()) {
+            assertTrue("the replay did not run", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        replayer.shutdown();
+        scheduler.purge();
+
+        assertThat(scheduler.getQueue().isEmpty(), is(true));
+        replayer.trigger();
+        assertThat(scheduler.getQueue().isEmpty(), is(true));
+        assertThat(journal.getPendingCount(), is(1));
+    }
+
+    @Test
+    public void testShutDownScheduler_shouldKeepOperations() throws Exception {
+        scheduler.shutdown();
+        journal.append(WriteJournal.Operation.INSERT, createAppointment("local:1", "meeting"));
+
+        replayer.setScheduler(scheduler);
+        replayer.trigger();
+
+        assertThat(journal.getPendingCount(), is(1));
+        assertThat(target.calls.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testInsertAndUpdates_shouldSendOneInsertWithLatestState() throws Exception {
+        journal.append(WriteJournal.Operation.INSERT, createAppointment("local:1", "meeting"));
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("local:1", "lunch"));
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("local:1", "dinner"));
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("http://localhost/2", "call"));
+        journal.append(WriteJournal.Operation.DELETE, createAppointment("http://localhost/2", null));
+
+        replayer.replay();
+
+        assertThat(target.calls.size(), is(2));
+        assertThat(target.calls.get(0), is("insert dinner"));
+        assertThat(target.calls.get(1), is("delete http://localhost/2"));
+        assertThat(journal.getPendingCount(), is(0));
+        assertThat(journal.resolve("local:1"), is("http://localhost/created"));
+    }
+
+    @Test
+    public void testInsertThenDelete_shouldSendNothing() throws Exception {
+        journal.append(WriteJournal.Operation.INSERT, createAppointment("local:1", "meeting"));
+        journal.append(WriteJournal.Operation.DELETE, createAppointment("local:1", null));
+
+        replayer.replay();
+
+        assertThat(target.calls.isEmpty(), is(true));
+        assertThat(journal.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testUnreachableGoogle_shouldKeepOperationsAndMarkThemUncertain() throws Exception {
+        journal.append(WriteJournal.Operation.INSERT, createAppointment("local:1", "meeting"));
+        target.failure = new DomainMethodExecutionException("unable to connect", new IOException("timeout"));
+        try {
+            replayer.replay();
+            fail("the failure should be reported");
+        } catch (DomainMethodExecutionException e) {
+            assertThat(journal.getPendingCount(), is(1));
+        }
+
+        target.failure = null;
+        replayer.replay();
+        assertThat(target.calls.get(0), is("insert meeting uncertain"));
+        assertThat(journal.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testRejectedOperation_shouldBeDropped() throws Exception {
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("http://localhost/1", "meeting"));
+        ServiceException notFound = new ServiceException("not found");
+        notFound.setHttpErrorCodeOverride(404);
+        target.failure = new DomainMethodExecutionException("unable to update the appointment", notFound);
+
+        replayer.replay();
+
+        assertThat(journal.getPendingCount(), is(0));
+        assertThat(replayer.getDroppedCount(), is(1L));
+    }
+
+    private void awaitPending(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (journal.getPendingCount() != count) {
+            assertTrue("the journal was not replayed", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static Appointment createAppointment(String id, String name) {
+        Appointment appointment = new Appointment();
+        appointment.setId(id);
+        appointment.setName(name);
+        return appointment;
+    }
+
+    private static class RecordingTarget implements JournalReplayer.Target {
+        private final List<String> calls = new ArrayList<String>();
+        private RuntimeException failure;
+
+        @Override
+        public String insert(Appointment appointment, String localId, boolean uncertain) {
+            check();
+            calls.add("insert " + appointment.getName() + (uncertain ? " uncertain" : ""));
+            return "http://localhost/created";
+        }
+
+        @Override
+        public void update(Appointment appointment) {
+            check();
+            calls.add("update " + appointment.getName());
+        }
+
+        @Override
+        public void delete(Appointment appointment) {
+            check();
+            calls.add("delete " + appointment.getId());
+        }
+
+        private void check() {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
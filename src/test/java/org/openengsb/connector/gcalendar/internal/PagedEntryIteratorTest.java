@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openengsb.connector.gcalendar.internal.misc.FeedPage;
+
+public class PagedEntryIteratorTest {
+
+    private static final int PAGES = 3;
+
+    private final List<String> fetched = Collections.synchronizedList(new ArrayList<String>());
+    private final PagedEntryIterator.PageSource<String> source = new PagedEntryIterator.PageSource<String>() {
+        @Override
+        public FeedPage<String> fetch(URL pageUrl) {
+            int page = pageUrl == null ? 1 : Integer.parseInt(pageUrl.getQuery().substring("page=".length()));
+            fetched.add(String.valueOf(page));
+            String next = page < PAGES ? "http://localhost/feed?page=" + (page + 1) : null;
+            return new FeedPage<String>(Arrays.asList(page + "a", page + "b"), next);
+        }
+    };
+
+    @Test
+    public void testFirstEntryOnly_shouldFetchOnePage() throws Exception {
+        InlineExecutor executor = new InlineExecutor(false);
+        Iterator<String> iterator = new PagedEntryIterator<String>(source, executor);
+
+        assertThat(iterator.next(), is("1a"));
+
+        assertThat(fetched, is(Arrays.asList("1")));
+        assertThat(executor.submitted, is(0));
+    }
+
+    @Test
+    public void testSecondEntry_shouldPrefetchNextPage() throws Exception {
+        InlineExecutor executor = new InlineExecutor(false);
+        Iterator<String> iterator = new PagedEntryIterator<String>(source, executor);
+
+        iterator.next();
+        iterator.next();
+
+        assertThat(fetched, is(Arrays.asList("1", "2")));
+        assertThat(executor.submitted, is(1));
+        assertThat(drain(iterator), is(Arrays.asList("2a", "2b", "3a", "3b")));
+        assertThat(fetched.size(), is(PAGES));
+    }
+
+    @Test
+    public void testSaturatedExecutor_shouldFetchOnCallingThread() throws Exception {
+        Iterator<String> iterator = new PagedEntryIterator<String>(source, new InlineExecutor(true));
+
+        assertThat(drain(iterator).size(), is(PAGES * 2));
+        assertThat(fetched.size(), is(PAGES));
+    }
+
+    @Test
+    public void testWithoutExecutor_shouldFetchOnCallingThread() throws Exception {
+        Iterator<String> iterator = new PagedEntryIterator<String>(source);
+
+        assertThat(drain(iterator).size(), is(PAGES * 2));
+    }
+
+    @Test
+    public void testPrefetchExecutor_shouldBeBounded() throws Exception {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) PagedEntryIterator.createPrefetchExecutor(2);
+        try {
+            assertThat(executor.getMaximumPoolSize(), is(2));
+            assertThat(executor.getQueue().remainingCapacity(), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> drain(Iterator<String> iterator) {
+        List<String> items = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            items.add(iterator.next());
+        }
+        return items;
+    }
+
+    /**
+     * runs the prefetch right away on the calling thread, or rejects it like a saturated executor
+     */
+    private static class InlineExecutor extends AbstractExecutorService {
+        private final boolean rejecting;
+        private int submitted;
+
+        InlineExecutor(boolean rejecting) {
+            this.rejecting = rejecting;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (rejecting) {
+                throw new RejectedExecutionException("all prefetch threads are busy");
+            }
+            submitted++;
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+}
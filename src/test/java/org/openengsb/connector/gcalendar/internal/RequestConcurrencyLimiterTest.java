@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openengsb.core.api.ekb.PersistInterface;
+
+import com.google.gdata.client.calendar.CalendarService;
+import com.sun.net.httpserver.Headers;
+
+public class RequestConcurrencyLimiterTest {
+
+    private static final int MAX_PER_HOST = 2;
+
+    private StubGoogleServer server;
+    private RequestConcurrencyLimiter limiter;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGoogleServer(new StubGoogleServer.Responder() {
+            @Override
+            public String respond(String method, String path, Headers headers, String body, int[] status) {
+                return StubGoogleServer.document(server.entry("e1", "breakfast", "2012-01-01T10:00:00.000Z",
+                    "2012-01-01T11:00:00.000Z"));
+            }
+        });
+        server.setLatency(50);
+        limiter = new RequestConcurrencyLimiter();
+        limiter.setMaxPerHost(MAX_PER_HOST);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        limiter.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void testInstancesSharingLimiter_shouldRespectPerHostLimit() throws Exception {
+        final List<GcalendarServiceImpl> services = new ArrayList<GcalendarServiceImpl>();
+        for (int i = 0; i < 3; i++) {
+            services.add(createService("id" + i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(12);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < 24; i++) {
+            final GcalendarServiceImpl service = services.get(i % services.size());
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return service.loadAppointment(server.getFeedUrl() + "/e1");
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertThat(server.getMaxConcurrentRequests(), is(MAX_PER_HOST));
+        assertThat(limiter.getLeaseCount(), is(24L));
+        assertTrue(limiter.getWaitCount() > 0);
+        assertThat(limiter.getLeased(), is(0));
+        assertThat(services.get(0).getMetrics().getRequestSlotLeases(), is(24L));
+    }
+
+    @Test
+    public void testReleasedHost_shouldBeForgotten() throws Exception {
+        limiter.acquire("www.google.com");
+        assertThat(limiter.getHostCount(), is(1));
+
+        limiter.release("www.google.com");
+
+        assertThat(limiter.getHostCount(), is(0));
+    }
+
+    @Test
+    public void testCallerWaitingForClient_shouldNotHoldSlot() throws Exception {
+        limiter.setMaxTotal(2);
+        final CalendarSession busy = createSession(1);
+        CalendarSession other = createSession(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Thread queued = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    busy.execute(new NoOperation());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        try {
+            executor.submit(call(busy, new CalendarSession.Operation<Object>() {
+                @Override
+                public Object execute(CalendarService service) throws IOException {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return null;
+                }
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // the only client of the busy instance is taken, the second caller waits for it
+            queued.start();
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (queued.getState() != Thread.State.WAITING) {
+                assertTrue("the second caller did not wait", System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+
+            // another instance still gets the slot the queued caller does not hold
+            executor.submit(call(other, new NoOperation())).get(10, TimeUnit.SECONDS);
+
+            assertThat(limiter.getLeased(), is(1));
+            assertThat(limiter.getWaitCount(), is(0L));
+        } finally {
+            release.countDown();
+            queued.join(TimeUnit.SECONDS.toMillis(10));
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdown_shouldRejectRequests() throws Exception {
+        limiter.shutdown();
+        try {
+            limiter.acquire("www.google.com");
+            fail("a limiter that is shut down must not lease slots");
+        } catch (IOException e) {
+            assertThat(limiter.getLeased(), is(0));
+        }
+    }
+
+    private CalendarSession createSession(int poolSize) {
+        CalendarSession session = new CalendarSession() {
+            @Override
+            protected CalendarService authenticate(String user, String password) {
+                return mock(CalendarService.class);
+            }
+        };
+        session.setPoolSize(poolSize);
+        session.setConcurrencyLimiter(limiter);
+        session.setHost("www.google.com");
+        return session;
+    }
+
+    private static Callable<Object> call(final CalendarSession session,
+            final CalendarSession.Operation<Object> operation) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return session.execute(operation);
+            }
+        };
+    }
+
+    private static class NoOperation implements CalendarSession.Operation<Object> {
+        @Override
+        public Object execute(CalendarService service) {
+            return null;
+        }
+    }
+
+    private GcalendarServiceImpl createService(String id) {
+        GcalendarServiceImpl service = new GcalendarServiceImpl(id);
+        service.setSession(StubGoogleServer.createSession());
+        service.setFeedUrl(server.getFeedUrl());
+        service.setPersistInterface(mock(PersistInterface.class));
+        service.setCacheSize(0);
+        service.setRateLimit(1000);
+        service.setConcurrencyLimiter(limiter);
+        return service;
+    }
+}
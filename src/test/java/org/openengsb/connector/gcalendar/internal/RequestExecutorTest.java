@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gdata.client.calendar.CalendarService;
+import com.google.gdata.util.ServiceException;
+
+public class RequestExecutorTest {
+
+    private CalendarSession session;
+    private RequestExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        session = new CalendarSession() {
+            @Override
+            protected CalendarService authenticate(String user, String password) {
+                return mock(CalendarService.class);
+            }
+        };
+        executor = new RequestExecutor(session);
+    }
+
+    @Test
+    public void testServerError_shouldRetryIdempotentOperation() throws Exception {
+        FailingOperation operation = new FailingOperation(2, 500, "backend error");
+        assertThat(executor.execute(operation, true), is("done"));
+        assertThat(operation.calls, is(3));
+        assertThat(executor.getRetryCount(), is(2L));
+    }
+
+    @Test
+    public void testServerError_shouldNotRetryInsert() throws Exception {
+        FailingOperation operation = new FailingOperation(1, 500, "backend error");
+        try {
+            executor.execute(operation, false);
+            fail("the failure should be reported");
+        } catch (ServiceException e) {
+            assertThat(operation.calls, is(1));
+        }
+    }
+
+    @Test
+    public void testClientError_shouldNotRetry() throws Exception {
+        FailingOperation operation = new FailingOperation(1, 404, "not found");
+        try {
+            executor.execute(operation, true);
+            fail("the failure should be reported");
+        } catch (ServiceException e) {
+            assertThat(operation.calls, is(1));
+        }
+    }
+
+    @Test
+    public void testExceededQuota_shouldLowerRateAndRetry() throws Exception {
+        double initialRate = executor.getRateLimiter().getRate();
+        FailingOperation operation = new FailingOperation(1, 403, "quotaExceeded");
+        assertThat(executor.execute(operation, true), is("done"));
+        assertThat(operation.calls, is(2));
+        assertTrue(executor.getRateLimiter().getRate() < initialRate);
+        assertThat(executor.getRateLimiter().getDecreaseCount(), is(1L));
+    }
+
+    @Test
+    public void testForbidden_shouldNotRetry() throws Exception {
+        FailingOperation operation = new FailingOperation(1, 403, "not allowed to access this calendar");
+        try {
+            executor.execute(operation, true);
+            fail("the failure should be reported");
+        } catch (ServiceException e) {
+            assertThat(operation.calls, is(1));
+        }
+    }
+
+    @Test
+    public void testGoogleFailing_shouldFailFastOnceTheBreakerOpened() throws Exception {
+        executor.setMaxRetries(0);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            try {
+                executor.execute(new FailingOperation(1, 500, "backend error"), true);
+                fail("the failure should be reported");
+            } catch (ServiceException e) {
+                assertThat(e.getHttpErrorCodeOverride(), is(500));
+            }
+        }
+        FailingOperation operation = new FailingOperation(0, 200, "ok");
+        try {
+            executor.execute(operation, true);
+            fail("the request should be rejected");
+        } catch (CircuitOpenException e) {
+            assertThat(operation.calls, is(0));
+        }
+    }
+
+    @Test
+    public void testProbe_shouldPassTheOpenBreakerWithoutRetry() throws Exception {
+        executor.setMaxRetries(0);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            try {
+                executor.execute(new FailingOperation(1, 500, "backend error"), true);
+                fail("the failure should be reported");
+            } catch (ServiceException e) {
+                // expected
+            }
+        }
+        executor.setMaxRetries(3);
+        FailingOperation operation = new FailingOperation(1, 500, "backend error");
+        try {
+            executor.executeProbe(operation);
+            fail("the failure should be reported");
+        } catch (ServiceException e) {
+            assertThat(operation.calls, is(1));
+            assertThat(executor.getRetryCount(), is(0L));
+        }
+        assertThat(executor.executeProbe(operation), is("done"));
+        assertThat(executor.getCircuitBreaker().getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void testRuntimeExceptionDuringTrial_shouldOpenAgain() throws Exception {
+        CircuitBreakerTest.ManualClockBreaker breaker = new CircuitBreakerTest.ManualClockBreaker();
+        breaker.setOpenDuration(50);
+        executor = new RequestExecutor(session, breaker);
+        executor.setMaxRetries(0);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            breaker.allowRequest();
+            breaker.onResult(true, 1000);
+        }
+        breaker.time += 50;
+
+        try {
+            executor.execute(new CalendarSession.Operation<String>() {
+                @Override
+                public String execute(CalendarService service) {
+                    throw new IllegalStateException("unreadable answer");
+                }
+            }, true);
+            fail("the failure should be reported");
+        } catch (IllegalStateException e) {
+            assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+            assertThat(breaker.getOpenCount(), is(2L));
+        }
+    }
+
+    @Test
+    public void testRateLimiter_shouldThrottleBurstAboveRate() throws Exception {
+        ManualClockRateLimiter limiter = new ManualClockRateLimiter(5);
+        for (int i = 0; i < 7; i++) {
+            limiter.acquire();
+        }
+        // five tokens are available at once, the other two take 200ms each
+        assertThat(limiter.sleeps, is(Arrays.asList(TimeUnit.MILLISECONDS.toNanos(200),
+            TimeUnit.MILLISECONDS.toNanos(200))));
+        assertThat(limiter.getThrottledCount(), is(2L));
+    }
+
+    @Test
+    public void testRateLimiter_shouldRejectZeroRate() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        try {
+            limiter.setMaxRate(0);
+            fail("expected the rate to be rejected");
+        } catch (IllegalArgumentException e) {
+            // no token would ever be refilled
+        }
+        assertThat(limiter.getRate(), is(RateLimiter.DEFAULT_MAX_RATE));
+    }
+
+    /**
+     * a rate limiter whose waits only advance its clock
+     */
+    private static class ManualClockRateLimiter extends RateLimiter {
+        private final List<Long> sleeps = new ArrayList<Long>();
+        private long time;
+
+        private ManualClockRateLimiter(double maxRate) {
+            super(maxRate);
+        }
+
+        @Override
+        long nanoTime() {
+            return time;
+        }
+
+        @Override
+        void sleep(long nanos) {
+            sleeps.add(nanos);
+            time += nanos;
+        }
+    }
+
+    private static class FailingOperation implements CalendarSession.Operation<String> {
+        private final int failures;
+        private final int code;
+        private final String message;
+        private int calls;
+
+        private FailingOperation(int failures, int code, String message) {
+            this.failures = failures;
+            this.code = code;
+            this.message = message;
+        }
+
+        @Override
+        public String execute(CalendarService service) throws IOException, ServiceException {
+            calls++;
+            if (calls <= failures) {
+                ServiceException e = new ServiceException(message);
+                e.setHttpErrorCodeOverride(code);
+                throw e;
+            }
+            return "done";
+        }
+    }
+}
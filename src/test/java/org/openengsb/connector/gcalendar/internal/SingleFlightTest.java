@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, String> flights = new SingleFlight<String, String>(
+        new SingleFlight.Copier<String>() {
+            @Override
+            public String copy(String value) {
+                return value;
+            }
+        });
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final CountDownLatch loading = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentCalls_shouldShareOneLoad() throws Exception {
+        Future<String> first = call(blockingLoader("old"));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Future<String> second = call(blockingLoader("other"));
+        awaitShared(1);
+
+        release.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS), is("old"));
+        assertThat(second.get(5, TimeUnit.SECONDS), is("old"));
+        assertThat(loads.get(), is(1));
+    }
+
+    @Test
+    public void testCallAfterNewGeneration_shouldNotJoinOlderLoad() throws Exception {
+        Future<String> first = call(blockingLoader("old"));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Future<String> second = call(blockingLoader("other"));
+        awaitShared(1);
+
+        flights.newGeneration();
+        String fresh = flights.execute("key", new Callable<String>() {
+            @Override
+            public String call() {
+                loads.incrementAndGet();
+                return "new";
+            }
+        });
+        release.countDown();
+
+        assertThat(fresh, is("new"));
+        assertThat(first.get(5, TimeUnit.SECONDS), is("old"));
+        assertThat(second.get(5, TimeUnit.SECONDS), is("old"));
+        assertThat(loads.get(), is(2));
+        assertThat(flights.getSharedCount(), is(1L));
+    }
+
+    @Test
+    public void testOlderLoad_shouldNotRemoveNewerOne() throws Exception {
+        Future<String> first = call(blockingLoader("old"));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        flights.newGeneration();
+        final CountDownLatch newLoading = new CountDownLatch(1);
+        final CountDownLatch newRelease = new CountDownLatch(1);
+        Future<String> second = call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                newLoading.countDown();
+                newRelease.await(5, TimeUnit.SECONDS);
+                return "new";
+            }
+        });
+        assertTrue(newLoading.await(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        assertThat(first.get(5, TimeUnit.SECONDS), is("old"));
+        Future<String> third = call(blockingLoader("other"));
+        awaitShared(1);
+        newRelease.countDown();
+
+        assertThat(second.get(5, TimeUnit.SECONDS), is("new"));
+        assertThat(third.get(5, TimeUnit.SECONDS), is("new"));
+        assertThat(loads.get(), is(2));
+    }
+
+    private Future<String> call(final Callable<String> loader) {
+        return callers.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return flights.execute("key", loader);
+            }
+        });
+    }
+
+    private Callable<String> blockingLoader(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return value;
+            }
+        };
+    }
+
+    private void awaitShared(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (flights.getSharedCount() < count) {
+            assertTrue("the call did not join the load", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
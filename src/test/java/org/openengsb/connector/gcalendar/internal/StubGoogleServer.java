@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gdata.client.calendar.CalendarService;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * local stand-in for the google calendar feeds, so the connector can be tested without a google account
+ */
+public class StubGoogleServer {
+
+    public static final String FEED_PATH = "/calendar/feeds/default/private/full";
+
+    /**
+     * answers a request of the connector
+     */
+    public interface Responder {
+        /**
+         * returns the atom document to send back, the status is written to status[0]
+         */
+        String respond(String method, String path, Headers headers, String body, int[] status);
+    }
+
+    private final HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile long latency;
+    private volatile boolean gzip;
+
+    public StubGoogleServer(final Responder responder) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                int concurrent = inFlight.incrementAndGet();
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (concurrent <= max || maxInFlight.compareAndSet(max, concurrent)) {
+                        break;
+                    }
+                }
+                String body = read(exchange.getRequestBody());
+                if (latency > 0) {
+                    try {
+                        Thread.sleep(latency);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                inFlight.decrementAndGet();
+                int[] status = new int[]{ 200 };
+                String response = responder.respond(exchange.getRequestMethod(),
+                    exchange.getRequestURI().toString(), exchange.getRequestHeaders(), body, status);
+                byte[] bytes = response == null ? new byte[0] : response.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/atom+xml; charset=UTF-8");
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (gzip && bytes.length > 0 && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    bytes = compress(bytes);
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(status[0], bytes.length == 0 ? -1 : bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    public String getFeedUrl() {
+        return String.format("http://127.0.0.1:%d%s", server.getAddress().getPort(), FEED_PATH);
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * the highest number of requests that were processed at the same time
+     */
+    public int getMaxConcurrentRequests() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * delays every answer by the given number of milliseconds
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * compresses answers of requests that accept gzip
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * a session that does not authenticate at all, the stub accepts every request
+     */
+    public static CalendarSession createSession() {
+        return new CalendarSession() {
+            @Override
+            protected CalendarService authenticate(String user, String password) {
+                return new CalendarService(APPLICATION_NAME);
+            }
+        };
+    }
+
+    public static String feed(String entries) {
+        return page(null, entries);
+    }
+
+    /**
+     * a feed page linking to the page at nextHref, if it is not null
+     */
+    public static String page(String nextHref, String entries) {
+        String next = nextHref == null ? ""
+                : "<link rel='next' type='application/atom+xml' href='" + nextHref.replace("&", "&amp;") + "'/>";
+        return "<?xml version='1.0' encoding='UTF-8'?>"
+                + "<feed xmlns='http://www.w3.org/2005/Atom' xmlns:gd='http://schemas.google.com/g/2005' "
+                + "xmlns:batch='http://schemas.google.com/gdata/batch' "
+                + "xmlns:openSearch='http://a9.com/-/spec/opensearch/1.1/'>"
+                + "<id>http://127.0.0.1/feed</id><updated>2012-01-01T00:00:00.000Z</updated>"
+                + "<title type='text'>stub</title>" + next + entries + "</feed>";
+    }
+
+    /**
+     * turns an entry into a standalone document, as returned for requests of a single entry
+     */
+    public static String document(String entry) {
+        return "<?xml version='1.0' encoding='UTF-8'?>"
+                + entry.replaceFirst("<entry", "<entry xmlns='http://www.w3.org/2005/Atom' "
+                        + "xmlns:gd='http://schemas.google.com/g/2005'");
+    }
+
+    /**
+     * an event entry as google returns it, times are given in RFC 3339 format
+     */
+    public String entry(String eventId, String title, String startTime, String endTime) {
+        return entry(eventId, "\"1\"", title, startTime, endTime);
+    }
+
+    /**
+     * an event entry with the given ETag, which has to include the quotes
+     */
+    public String entry(String eventId, String etag, String title, String startTime, String endTime) {
+        return "<entry gd:etag='" + etag + "'><id>" + getFeedUrl() + "/" + eventId + "</id>"
+                + "<updated>2012-01-01T00:00:00.000Z</updated>"
+                + "<category scheme='http://schemas.google.com/g/2005#kind' "
+                + "term='http://schemas.google.com/g/2005#event'/>"
+                + "<title type='text'>" + title + "</title><content type='text'>" + title + "</content>"
+                + "<link rel='edit' type='application/atom+xml' href='" + getFeedUrl() + "/" + eventId + "/1'/>"
+                + "<gd:where valueString='" + title + "'/>"
+                + "<gd:when startTime='" + startTime + "' endTime='" + endTime + "'/></entry>";
+    }
+
+    private static byte[] compress(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+        gzipOut.write(bytes);
+        gzipOut.close();
+        return out.toByteArray();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openengsb.domain.appointment.Appointment;
+
+public class WriteJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReopen_shouldRecoverPendingOperations() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        journal.append(WriteJournal.Operation.INSERT, createAppointment("local:1", "meeting"));
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("local:1", "lunch"));
+        journal.append(WriteJournal.Operation.DELETE, createAppointment("http://localhost/2", null));
+        journal.markApplied(journal.getPending().subList(0, 1));
+        journal.addAlias("local:1", "http://localhost/1");
+        journal.close();
+
+        WriteJournal recovered = new WriteJournal(file);
+        List<WriteJournal.Entry> pending = recovered.getPending();
+        assertThat(pending.size(), is(2));
+        assertThat(pending.get(0).getOperation(), is(WriteJournal.Operation.UPDATE));
+        assertThat(pending.get(0).getAppointment().getName(), is("lunch"));
+        assertThat(pending.get(0).isUncertain(), is(true));
+        assertThat(pending.get(1).getAppointment().getId(), is("http://localhost/2"));
+        assertThat(recovered.resolve("local:1"), is("http://localhost/1"));
+        recovered.close();
+    }
+
+    @Test
+    public void testTornRecord_shouldBeCutOff() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("http://localhost/1", "meeting"));
+        journal.close();
+        long length = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(length);
+        raf.write(new byte[]{ 0, 0, 0, 42, 1, 2, 3 });
+        raf.close();
+
+        WriteJournal recovered = new WriteJournal(file);
+        assertThat(recovered.getPendingCount(), is(1));
+        assertThat(file.length(), is(length));
+        recovered.append(WriteJournal.Operation.DELETE, createAppointment("http://localhost/1", null));
+        recovered.close();
+
+        assertThat(new WriteJournal(file).getPendingCount(), is(2));
+    }
+
+    @Test
+    public void testAllApplied_shouldCompactButKeepAliases() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        journal.setCompactSize(1);
+        for (int i = 0; i < 10; i++) {
+            journal.append(WriteJournal.Operation.UPDATE, createAppointment("http://localhost/" + i, "meeting"));
+        }
+        journal.addAlias("local:1", "http://localhost/1");
+        long length = file.length();
+        journal.markApplied(journal.getPending());
+
+        assertTrue(file.length() < length);
+        journal.close();
+        WriteJournal recovered = new WriteJournal(file);
+        assertThat(recovered.getPendingCount(), is(0));
+        assertThat(recovered.resolve("local:1"), is("http://localhost/1"));
+    }
+
+    @Test
+    public void testCompactedAliasesLargerThanCompactSize_shouldNotCompactAgain() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        for (int i = 0; i < 100; i++) {
+            journal.addAlias("local:" + i, "http://localhost/" + i);
+        }
+        journal.setCompactSize(file.length() / 2);
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("http://localhost/1", "meeting"));
+        journal.markApplied(journal.getPending());
+        long compacted = file.length();
+
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("http://localhost/1", "lunch"));
+        journal.markApplied(journal.getPending());
+
+        assertTrue(file.length() > compacted);
+        journal.close();
+    }
+
+    @Test
+    public void testOldAliases_shouldExpire() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        journal.setMaxAliasAge(TimeUnit.HOURS.toMillis(1));
+        journal.addAlias("local:1", "http://localhost/1");
+
+        journal.expireAliases(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+
+        assertThat(journal.resolve("local:1"), is("local:1"));
+        assertThat(journal.getAliasCount(), is(0));
+        journal.close();
+    }
+
+    @Test
+    public void testTooManyAliases_shouldForgetOldestOnes() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        journal.setMaxAliases(2);
+        journal.addAlias("local:1", "http://localhost/1");
+        journal.addAlias("local:2", "http://localhost/2");
+        journal.addAlias("local:3", "http://localhost/3");
+
+        assertThat(journal.getAliasCount(), is(2));
+        assertThat(journal.resolve("local:1"), is("local:1"));
+        assertThat(journal.resolve("local:3"), is("http://localhost/3"));
+        journal.close();
+    }
+
+    @Test
+    public void testAliasOfPendingOperation_shouldNotExpire() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        journal.setMaxAliasAge(TimeUnit.HOURS.toMillis(1));
+        journal.addAlias("local:1", "http://localhost/1");
+        journal.append(WriteJournal.Operation.UPDATE, createAppointment("local:1", "lunch"));
+
+        journal.expireAliases(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+
+        assertThat(journal.resolve("local:1"), is("http://localhost/1"));
+        journal.close();
+    }
+
+    @Test
+    public void testLongStrings_shouldBeRecovered() throws Exception {
+        StringBuilder description = new StringBuilder();
+        while (description.length() <= 70000) {
+            description.append("agenda \u00fc ");
+        }
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        Appointment appointment = createAppointment("local:1", "meeting");
+        appointment.setDescription(description.toString());
+        journal.append(WriteJournal.Operation.INSERT, appointment);
+        journal.addAlias("local:2", "http://localhost/2");
+        journal.close();
+
+        WriteJournal recovered = new WriteJournal(file);
+        assertThat(recovered.getPending().get(0).getAppointment().getDescription(), is(description.toString()));
+        assertThat(recovered.resolve("local:2"), is("http://localhost/2"));
+        recovered.close();
+    }
+
+    @Test
+    public void testLocalId_shouldBeKnownUntilItsAliasExpired() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        WriteJournal journal = new WriteJournal(file);
+        journal.setMaxAliasAge(TimeUnit.HOURS.toMillis(1));
+        journal.append(WriteJournal.Operation.INSERT, createAppointment("local:1", "meeting"));
+        assertThat(journal.isKnown("local:1"), is(true));
+        journal.expireAliases(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+        assertThat(journal.isKnown("local:1"), is(true));
+
+        // the age counts from the applied insert, not from the append
+        journal.addAlias("local:1", "http://localhost/1");
+        journal.markApplied(journal.getPending());
+        journal.expireAliases(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(59));
+        assertThat(journal.isKnown("local:1"), is(true));
+        journal.expireAliases(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+
+        assertThat(journal.isKnown("local:1"), is(false));
+        assertThat(journal.isKnown("local:2"), is(false));
+        journal.close();
+    }
+
+    private static Appointment createAppointment(String id, String name) {
+        Appointment appointment = new Appointment();
+        appointment.setId(id);
+        appointment.setName(name);
+        appointment.setStart(new Date(1300000000000L));
+        appointment.setEnd(new Date(1300003600000L));
+        appointment.setFullDay(false);
+        return appointment;
+    }
+}
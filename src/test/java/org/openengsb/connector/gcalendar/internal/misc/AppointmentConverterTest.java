@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.openengsb.domain.appointment.Appointment;
+
+import com.google.gdata.data.Link;
+import com.google.gdata.data.calendar.CalendarEventEntry;
+
+public class AppointmentConverterTest {
+
+    private static final String[] ZONES = { "UTC", "Europe/Vienna", "America/Los_Angeles", "America/Sao_Paulo",
+        "Pacific/Auckland", "Asia/Kolkata" };
+
+    @Test
+    public void testStartOfDay_shouldMatchCalendar() throws Exception {
+        Random random = new Random(42);
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            for (int i = 0; i < 10000; i++) {
+                long instant = (long) (random.nextDouble() * 2000000000000L);
+                assertThat(id, AppointmentConverter.startOfDay(instant, zone, zone), is(trimTime(instant, zone, zone)));
+                assertThat(id, AppointmentConverter.startOfDay(instant, zone, utc), is(trimTime(instant, zone, utc)));
+            }
+        }
+    }
+
+    @Test
+    public void testConvertTimedAppointment_shouldKeepTimes() throws Exception {
+        Appointment appointment = createAppointment(false);
+
+        Appointment converted = convertBack(AppointmentConverter.convertAppointmentToCalendarEventEntry(appointment));
+
+        assertThat(converted.getFullDay(), is(false));
+        assertThat(converted.getStart(), is(appointment.getStart()));
+        assertThat(converted.getEnd(), is(appointment.getEnd()));
+        assertThat(converted.getLocation(), is(appointment.getLocation()));
+    }
+
+    @Test
+    public void testConvertFullDayAppointment_shouldStartAtLocalMidnight() throws Exception {
+        Appointment appointment = createAppointment(true);
+
+        Appointment converted = convertBack(AppointmentConverter.convertAppointmentToCalendarEventEntry(appointment));
+
+        TimeZone local = TimeZone.getDefault();
+        assertThat(converted.getFullDay(), is(true));
+        long start = converted.getStart().getTime();
+        long end = converted.getEnd().getTime();
+        assertThat(start, is(trimTime(start, local, local)));
+        assertThat(end, is(trimTime(end, local, local)));
+    }
+
+    @Test
+    public void testChangedDefaultZone_shouldBeUsedForFullDays() throws Exception {
+        TimeZone previous = TimeZone.getDefault();
+        try {
+            for (String id : ZONES) {
+                TimeZone zone = TimeZone.getTimeZone(id);
+                TimeZone.setDefault(zone);
+                Appointment converted =
+                    convertBack(AppointmentConverter.convertAppointmentToCalendarEventEntry(createAppointment(true)));
+
+                // a midnight of the previous default zone is no midnight of the new one
+                long start = converted.getStart().getTime();
+                assertThat(id, start, is(trimTime(start, zone, zone)));
+            }
+        } finally {
+            TimeZone.setDefault(previous);
+        }
+    }
+
+    @Test
+    public void testExtendLoadedEntry_shouldKeepTheAtomId() throws Exception {
+        CalendarEventEntry entry = new CalendarEventEntry();
+        entry.setId("http://www.google.com/calendar/feeds/default/events/e1");
+        Appointment appointment = createAppointment(false);
+        appointment.setId("http://www.google.com/calendar/feeds/other/private/full/e1/1");
+
+        AppointmentConverter.extendCalendarEventEntryWithAppointment(entry, appointment);
+
+        assertThat(entry.getId(), is("http://www.google.com/calendar/feeds/default/events/e1"));
+    }
+
+    private static Appointment createAppointment(boolean fullDay) {
+        Appointment appointment = new Appointment();
+        appointment.setName("meeting");
+        appointment.setDescription("weekly meeting");
+        appointment.setLocation("room 1");
+        appointment.setStart(new Date(1300000000000L));
+        appointment.setEnd(new Date(1300000000000L + 2 * 24 * 60 * 60 * 1000));
+        appointment.setFullDay(fullDay);
+        return appointment;
+    }
+
+    private static Appointment convertBack(CalendarEventEntry entry) {
+        entry.addLink(Link.Rel.ENTRY_EDIT, Link.Type.ATOM, "http://localhost/entry");
+        return AppointmentConverter.convertCalendarEventEntryToAppointment(entry);
+    }
+
+    /**
+     * the Calendar based implementation the converter used before
+     */
+    private static long trimTime(long instant, TimeZone dayZone, TimeZone midnightZone) {
+        Calendar cal = Calendar.getInstance(dayZone);
+        cal.setTimeInMillis(instant);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.setTimeZone(midnightZone);
+        return cal.getTimeInMillis();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import org.junit.Test;
+
+public class AppointmentIdsTest {
+
+    private static final String FEED =
+        "https://www.google.com/calendar/feeds/team%40group.calendar.google.com/private/full";
+
+    @Test
+    public void testFromEditLink_shouldDropTheVersion() throws Exception {
+        String id = AppointmentIds.fromEditLink(FEED + "/4q8v0h7k2a/63456789");
+
+        assertThat(id, is("4q8v0h7k2a@team@group.calendar.google.com"));
+        assertThat(AppointmentIds.fromEditLink(FEED + "/4q8v0h7k2a/63456790"), is(id));
+        assertThat(AppointmentIds.getEventId(id), is("4q8v0h7k2a"));
+        assertThat(AppointmentIds.getCalendarKeyOf(id), is(AppointmentIds.getCalendarKey(FEED)));
+    }
+
+    @Test
+    public void testFromEditLink_shouldKeepUnknownLinks() throws Exception {
+        assertThat(AppointmentIds.fromEditLink("http://localhost/entry"), is("http://localhost/entry"));
+        assertThat(AppointmentIds.fromEditLink(FEED), is(FEED));
+    }
+
+    @Test
+    public void testToFeedUrl_shouldReplaceTheCalendar() throws Exception {
+        String feed = AppointmentIds.toFeedUrl(FEED, "user@gmail.com");
+
+        assertThat(feed, is("https://www.google.com/calendar/feeds/user%40gmail.com/private/full"));
+        assertThat(AppointmentIds.getCalendarKey(feed), is("user@gmail.com"));
+        assertThat(AppointmentIds.toFeedUrl("http://localhost/entry", "user@gmail.com"), nullValue());
+    }
+
+    @Test
+    public void testUrlId_shouldNotBeTakenForCompactId() throws Exception {
+        String url = FEED + "/4q8v0h7k2a";
+
+        assertThat(AppointmentIds.isUrl(url), is(true));
+        assertThat(AppointmentIds.getEventId(url), nullValue());
+        assertThat(AppointmentIds.getEventId("local:42"), nullValue());
+    }
+
+    @Test
+    public void testOccurrenceId_shouldAppendTheOriginalStart() throws Exception {
+        String master = "4q8v0h7k2a@team@group.calendar.google.com";
+        // 2012-03-15T10:00:05Z
+        long start = 1331805605000L;
+
+        assertThat(AppointmentIds.occurrenceId(master, start, false),
+            is("4q8v0h7k2a_20120315T100005Z@team@group.calendar.google.com"));
+        assertThat(AppointmentIds.occurrenceId(master, start - 36005000L, true),
+            is("4q8v0h7k2a_20120315@team@group.calendar.google.com"));
+        assertThat(AppointmentIds.occurrenceId(FEED + "/4q8v0h7k2a", start, false), nullValue());
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.openengsb.domain.appointment.Appointment;
+
+public class AppointmentIndexTest {
+
+    @Test
+    public void testFindOverlapping_shouldMatchLinearScan() throws Exception {
+        Random random = new Random(42);
+        List<Appointment> appointments = new ArrayList<Appointment>();
+        for (int i = 0; i < 2000; i++) {
+            long start = random.nextInt(1000000);
+            // mostly short appointments with a few that span a large part of the range
+            long duration = random.nextInt(100) == 0 ? random.nextInt(500000) : random.nextInt(1000);
+            appointments.add(createAppointment(String.valueOf(i), start, start + duration));
+        }
+        AppointmentIndex index = new AppointmentIndex(appointments);
+
+        for (int i = 0; i < 200; i++) {
+            long from = random.nextInt(1000000);
+            long to = from + random.nextInt(50000);
+            Set<String> expected = new HashSet<String>();
+            for (Appointment appointment : appointments) {
+                if (appointment.getEnd().getTime() > from && appointment.getStart().getTime() < to) {
+                    expected.add(appointment.getId());
+                }
+            }
+            Set<String> actual = new HashSet<String>();
+            long previousStart = Long.MIN_VALUE;
+            for (Appointment appointment : index.findOverlapping(from, to)) {
+                actual.add(appointment.getId());
+                assertThat(appointment.getStart().getTime() >= previousStart, is(true));
+                previousStart = appointment.getStart().getTime();
+            }
+            assertThat(actual, is(expected));
+        }
+    }
+
+    @Test
+    public void testFindOverlapping_shouldExcludeTouchingAppointments() throws Exception {
+        List<Appointment> appointments = new ArrayList<Appointment>();
+        appointments.add(createAppointment("before", 0, 10));
+        appointments.add(createAppointment("inside", 10, 20));
+        appointments.add(createAppointment("after", 20, 30));
+        AppointmentIndex index = new AppointmentIndex(appointments);
+
+        List<Appointment> result = index.findOverlapping(10, 20);
+
+        assertThat(result.size(), is(1));
+        assertThat(result.get(0).getId(), is("inside"));
+    }
+
+    private static Appointment createAppointment(String id, long start, long end) {
+        Appointment appointment = new Appointment();
+        appointment.setId(id);
+        appointment.setStart(new Date(start));
+        appointment.setEnd(new Date(end));
+        return appointment;
+    }
+}
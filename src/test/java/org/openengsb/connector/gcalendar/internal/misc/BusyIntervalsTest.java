@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BusyIntervalsTest {
+
+    private static final int RANGE = 1000;
+
+    @Test
+    public void testSortedAndUnsortedInput_shouldMatchBruteForce() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 1000; round++) {
+            long[] intervals = randomIntervals(random, 0);
+            long[] expected = bruteForce(intervals, 100, 900);
+
+            BusyIntervals unsorted = new BusyIntervals(100, 900);
+            add(unsorted, intervals);
+            assertThat(Arrays.toString(intervals), unsorted.toArray(), is(expected));
+
+            BusyIntervals sorted = new BusyIntervals(100, 900);
+            add(sorted, sortByStart(intervals));
+            assertThat(Arrays.toString(intervals), sorted.toArray(), is(expected));
+        }
+    }
+
+    @Test
+    public void testUnion_shouldMatchMergingEverything() throws Exception {
+        Random random = new Random(7);
+        for (int round = 0; round < 1000; round++) {
+            long[] first = randomIntervals(random, 1);
+            long[] second = randomIntervals(random, 1);
+            long[] all = Arrays.copyOf(first, first.length + second.length);
+            System.arraycopy(second, 0, all, first.length, second.length);
+
+            long[] union = BusyIntervals.union(merge(first), merge(second));
+
+            assertThat(union, is(bruteForce(all, 0, RANGE * 2)));
+        }
+    }
+
+    /**
+     * random intervals of at least the given length, empty ones are dropped by BusyIntervals
+     */
+    private static long[] randomIntervals(Random random, int minLength) {
+        long[] intervals = new long[random.nextInt(30) * 2];
+        for (int i = 0; i < intervals.length; i += 2) {
+            intervals[i] = random.nextInt(RANGE);
+            intervals[i + 1] = intervals[i] + minLength + random.nextInt(100);
+        }
+        return intervals;
+    }
+
+    private static long[] merge(long[] intervals) {
+        BusyIntervals busy = new BusyIntervals(0, RANGE * 2);
+        add(busy, intervals);
+        return busy.toArray();
+    }
+
+    private static void add(BusyIntervals busy, long[] intervals) {
+        for (int i = 0; i < intervals.length; i += 2) {
+            busy.add(intervals[i], intervals[i + 1]);
+        }
+    }
+
+    private static long[] sortByStart(long[] intervals) {
+        long[][] pairs = new long[intervals.length / 2][];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = new long[]{ intervals[2 * i], intervals[2 * i + 1] };
+        }
+        Arrays.sort(pairs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return o1[0] < o2[0] ? -1 : o1[0] == o2[0] ? 0 : 1;
+            }
+        });
+        long[] sorted = new long[intervals.length];
+        for (int i = 0; i < pairs.length; i++) {
+            sorted[2 * i] = pairs[i][0];
+            sorted[2 * i + 1] = pairs[i][1];
+        }
+        return sorted;
+    }
+
+    /**
+     * marks every busy millisecond and reads the runs back
+     */
+    private static long[] bruteForce(long[] intervals, int from, int to) {
+        boolean[] busy = new boolean[to];
+        for (int i = 0; i < intervals.length; i += 2) {
+            for (long t = Math.max(from, intervals[i]); t < Math.min(to, intervals[i + 1]); t++) {
+                busy[(int) t] = true;
+            }
+        }
+        long[] runs = new long[to];
+        int length = 0;
+        for (int t = from; t < to; t++) {
+            if (busy[t] && (t == from || !busy[t - 1])) {
+                runs[length++] = t;
+            }
+            if (busy[t] && (t == to - 1 || !busy[t + 1])) {
+                runs[length++] = t + 1;
+            }
+        }
+        return Arrays.copyOf(runs, length);
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Austrian Association for Software Tool Integration (AASTI)
+ * under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright
+ * ownership. The AASTI licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openengsb.connector.gcalendar.internal.misc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.google.gdata.data.DateTime;
+import com.google.gdata.util.ParseException;
+
+public class RecurrenceTest {
+
+    /**
+     * the range the occurrences in the fixture were expanded for
+     */
+    private static final long FROM = instant("2011-01-01T00:00:00.000Z");
+    private static final long TO = instant("2031-01-01T00:00:00.000Z");
+
+    private static final Pattern ENTRY = Pattern.compile("<entry>(.*?)</entry>", Pattern.DOTALL);
+    private static final Pattern EDIT_LINK = Pattern.compile("<link rel='edit'[^>]*href='([^']*)'");
+    private static final Pattern RECURRENCE = Pattern.compile("<gd:recurrence>(.*?)</gd:recurrence>", Pattern.DOTALL);
+    private static final Pattern WHEN = Pattern.compile("<gd:when startTime='([^']*)' endTime='([^']*)'/>");
+    private static final Pattern EVENT_ID = Pattern.compile("<id>[^<]*/([^/<]*)</id>");
+    private static final Pattern ORIGINAL_EVENT =
+        Pattern.compile("<gd:originalEvent id='([^']*)'[^>]*>\\s*<gd:when startTime='([^']*)'/>");
+
+    @Test
+    public void testExpansion_shouldMatchTheOccurrencesOfTheFeed() throws Exception {
+        Matcher entry = ENTRY.matcher(readResource("/feeds/recurrences.xml"));
+        int masters = 0;
+        while (entry.find()) {
+            String id = find(EDIT_LINK, entry.group(1));
+            Recurrence recurrence = Recurrence.parse(find(RECURRENCE, entry.group(1)));
+
+            List<String> expected = new ArrayList<String>();
+            Matcher when = WHEN.matcher(entry.group(1));
+            while (when.find()) {
+                expected.add(instant(when.group(1)) + "-" + instant(when.group(2)));
+            }
+            assertThat(id + " has no occurrences", expected.isEmpty(), is(false));
+            assertThat(id, expand(recurrence, FROM, TO, new long[0]), is(expected));
+            masters++;
+        }
+        assertThat(masters, is(12));
+    }
+
+    @Test
+    public void testExceptions_shouldMatchTheOccurrencesOfTheFeed() throws Exception {
+        String feed = readResource("/feeds/recurrence-exceptions.xml");
+        Map<String, List<Long>> overridden = new HashMap<String, List<Long>>();
+        Matcher original = ORIGINAL_EVENT.matcher(feed);
+        while (original.find()) {
+            List<Long> starts = overridden.get(original.group(1));
+            if (starts == null) {
+                starts = new ArrayList<Long>();
+                overridden.put(original.group(1), starts);
+            }
+            starts.add(instant(original.group(2)));
+        }
+        assertThat(overridden.size(), is(2));
+
+        Matcher entry = ENTRY.matcher(feed);
+        int masters = 0;
+        while (entry.find()) {
+            Matcher recurrenceText = RECURRENCE.matcher(entry.group(1));
+            if (!recurrenceText.find()) {
+                continue;
+            }
+            String id = find(EVENT_ID, entry.group(1));
+            Recurrence recurrence = Recurrence.parse(recurrenceText.group(1));
+
+            List<String> expected = new ArrayList<String>();
+            Matcher when = WHEN.matcher(entry.group(1));
+            while (when.find()) {
+                expected.add(instant(when.group(1)) + "-" + instant(when.group(2)));
+            }
+            assertThat(id, expand(recurrence, FROM, TO, toArray(overridden.get(id))), is(expected));
+            masters++;
+        }
+        assertThat(masters, is(2));
+    }
+
+    @Test
+    public void testOverriddenOccurrence_shouldBeLeftOut() throws Exception {
+        Recurrence recurrence = Recurrence.parse("DTSTART:20120301T100000Z\nDTEND:20120301T110000Z\n"
+                + "RRULE:FREQ=DAILY;COUNT=3\nEXDATE:20120301T100000Z\n");
+        long overridden = instant("2012-03-02T10:00:00.000Z");
+
+        List<String> occurrences = expand(recurrence, FROM, TO, new long[]{ overridden });
+
+        // the count includes the excluded occurrences, like google counts them
+        assertThat(occurrences.size(), is(1));
+        assertThat(occurrences.get(0), is(instant("2012-03-03T10:00:00.000Z") + "-"
+                + instant("2012-03-03T11:00:00.000Z")));
+    }
+
+    @Test
+    public void testOccurrenceInProgress_shouldOverlapTheRange() throws Exception {
+        Recurrence recurrence = Recurrence.parse("DTSTART:20120301T230000Z\nDURATION:PT2H\nRRULE:FREQ=DAILY\n");
+
+        List<String> occurrences = expand(recurrence, instant("2012-03-05T00:00:00.000Z"),
+            instant("2012-03-05T12:00:00.000Z"), new long[0]);
+
+        assertThat(occurrences.size(), is(1));
+        assertThat(occurrences.get(0), is(instant("2012-03-04T23:00:00.000Z") + "-"
+                + instant("2012-03-05T01:00:00.000Z")));
+    }
+
+    @Test
+    public void testUnsupportedProperties_shouldBeReported() throws Exception {
+        String[] unsupported = {
+            "DTSTART:20120301T100000Z\nDTEND:20120301T110000Z\nRDATE:20120310T100000Z\n",
+            "DTSTART:20120301T100000Z\nDTEND:20120301T110000Z\nRRULE:FREQ=DAILY;BYHOUR=10,14\n",
+            "DTSTART:20120301T100000Z\nDTEND:20120301T110000Z\nRRULE:FREQ=HOURLY\n",
+            "DTSTART;TZID=Nowhere/Special:20120301T100000\nDURATION:PT1H\nRRULE:FREQ=DAILY\n",
+        };
+        for (String text : unsupported) {
+            try {
+                Recurrence.parse(text);
+                fail("expected the recurrence to be rejected: " + text);
+            } catch (ParseException e) {
+                // google expands these itself
+            }
+        }
+    }
+
+    private static List<String> expand(Recurrence recurrence, long from, long to, long[] overridden) {
+        List<String> occurrences = new ArrayList<String>();
+        Recurrence.Occurrences expansion = recurrence.occurrences(from, to, overridden);
+        while (expansion.next()) {
+            occurrences.add(expansion.getStart() + "-" + expansion.getEnd());
+        }
+        return occurrences;
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static String find(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        assertTrue(pattern.pattern(), matcher.find());
+        return matcher.group(1);
+    }
+
+    /**
+     * the instant of a time as the converter reads it, full days start at local midnight
+     */
+    private static long instant(String value) {
+        DateTime time = DateTime.parseDateTimeChoice(value);
+        return AppointmentConverter.toInstant(time, time.isDateOnly());
+    }
+
+    private String readResource(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}